@@ -0,0 +1,20 @@
+package org.tradeworld.benchmarks;
+
+import org.tradeworld.utils.bbox.MutableBoundingBox;
+import org.tradeworld.utils.rstar.Bounded;
+
+/**
+ * Object stored in the spatial indexes in the benchmarks.
+ */
+public final class BenchmarkObject implements Bounded {
+    private final MutableBoundingBox bounds = new MutableBoundingBox();
+
+    public BenchmarkObject(double x1, double y1, double x2, double y2) {
+        bounds.set(x1, y1, x2, y2);
+    }
+
+    @Override
+    public MutableBoundingBox getBounds() {
+        return bounds;
+    }
+}
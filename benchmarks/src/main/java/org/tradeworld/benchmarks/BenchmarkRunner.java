@@ -0,0 +1,40 @@
+package org.tradeworld.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, writing the results as JSON to target/jmh-result.json unless another result file or format is given.
+ *
+ * Build with a JDK that can still compile for Java 6, such as JDK 8, with mvn -N install, mvn -f common/pom.xml install
+ * and mvn -f benchmarks/pom.xml package, and run with java -jar benchmarks/target/benchmarks.jar [JMH options],
+ * for example with a benchmark name pattern and -p size=10000 to only run some of the benchmarks.
+ * Use -h to list the JMH options.
+ */
+public final class BenchmarkRunner {
+
+    /**
+     * Result file used when none is given.
+     */
+    public static final String DEFAULT_RESULT_FILE = "target/jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        final CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        if (commandLineOptions.shouldHelp()) {
+            commandLineOptions.showHelp();
+            return;
+        }
+
+        final ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLineOptions);
+        if (!commandLineOptions.getResultFormat().hasValue()) options.resultFormat(ResultFormatType.JSON);
+        if (!commandLineOptions.getResult().hasValue()) options.result(DEFAULT_RESULT_FILE);
+
+        new Runner(options.build()).run();
+    }
+
+    private BenchmarkRunner() {
+    }
+}
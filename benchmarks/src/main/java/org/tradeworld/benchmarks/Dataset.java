@@ -0,0 +1,85 @@
+package org.tradeworld.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.tradeworld.utils.bbox.ImmutableBoundingBox;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Parameters of a benchmark run, and the objects and searches generated for them.
+ * The same random seed is used for every run, so all implementations get the same data.
+ */
+@State(Scope.Benchmark)
+public class Dataset {
+
+    /**
+     * Number of precalculated searches and moves, a power of two.
+     */
+    public static final int QUERY_COUNT = 1024;
+
+    /**
+     * Width and height of the searched areas.
+     */
+    public static final double QUERY_SIZE = 20;
+
+    /**
+     * Max number of objects added or removed in a measured batch, should not be larger than the smallest size.
+     */
+    public static final int BATCH_SIZE = 1000;
+
+    private static final long SEED = 42;
+
+    @Param({"BRUTE_FORCE", "RSTAR", "GRID"})
+    public Implementation implementation;
+
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    @Param({"UNIFORM", "CLUSTERED", "SKEWED_SIZES"})
+    public Distribution distribution;
+
+    /**
+     * Objects that are initially in the index.
+     */
+    public List<BenchmarkObject> objects;
+
+    /**
+     * Objects that are not initially in the index, for adding.
+     */
+    public List<BenchmarkObject> extraObjects;
+
+    /**
+     * Areas to search, centered on objects, so that searches find something also with clustered objects.
+     */
+    public ImmutableBoundingBox[] queries;
+
+    /**
+     * Distances to move objects, x and y interleaved.
+     */
+    public double[] moves;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(SEED);
+        objects = distribution.createObjects(size, random);
+        extraObjects = distribution.createObjects(BATCH_SIZE, random);
+
+        queries = new ImmutableBoundingBox[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            final BenchmarkObject object = objects.get(random.nextInt(size));
+            final double x = object.getBounds().getCenterX() - 0.5 * QUERY_SIZE;
+            final double y = object.getBounds().getCenterY() - 0.5 * QUERY_SIZE;
+            queries[i] = new ImmutableBoundingBox(x, y, x + QUERY_SIZE, y + QUERY_SIZE);
+        }
+
+        moves = new double[2 * QUERY_COUNT];
+        for (int i = 0; i < moves.length; i++) {
+            moves[i] = random.nextGaussian();
+        }
+    }
+}
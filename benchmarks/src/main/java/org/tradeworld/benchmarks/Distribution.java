@@ -0,0 +1,91 @@
+package org.tradeworld.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Ways to place and size the objects in the benchmarks.
+ */
+public enum Distribution {
+
+    /**
+     * Small objects spread evenly over the world.
+     */
+    UNIFORM {
+        @Override
+        public List<BenchmarkObject> createObjects(int count, Random random) {
+            final List<BenchmarkObject> objects = new ArrayList<BenchmarkObject>(count);
+            for (int i = 0; i < count; i++) {
+                objects.add(createObject(random.nextDouble() * WORLD_SIZE, random.nextDouble() * WORLD_SIZE, smallSize(random), random));
+            }
+            return objects;
+        }
+    },
+
+    /**
+     * Small objects gathered around a few centers, like settlements.
+     */
+    CLUSTERED {
+        @Override
+        public List<BenchmarkObject> createObjects(int count, Random random) {
+            final double[] clusterCenters = new double[2 * CLUSTER_COUNT];
+            for (int i = 0; i < clusterCenters.length; i++) {
+                clusterCenters[i] = random.nextDouble() * WORLD_SIZE;
+            }
+
+            final List<BenchmarkObject> objects = new ArrayList<BenchmarkObject>(count);
+            for (int i = 0; i < count; i++) {
+                final int cluster = random.nextInt(CLUSTER_COUNT);
+                final double x = clusterCenters[2 * cluster] + random.nextGaussian() * CLUSTER_RADIUS;
+                final double y = clusterCenters[2 * cluster + 1] + random.nextGaussian() * CLUSTER_RADIUS;
+                objects.add(createObject(x, y, smallSize(random), random));
+            }
+            return objects;
+        }
+    },
+
+    /**
+     * Objects spread evenly over the world, mostly small, but some much larger.
+     */
+    SKEWED_SIZES {
+        @Override
+        public List<BenchmarkObject> createObjects(int count, Random random) {
+            final List<BenchmarkObject> objects = new ArrayList<BenchmarkObject>(count);
+            for (int i = 0; i < count; i++) {
+                final double sizeType = random.nextDouble();
+                final double size;
+                if (sizeType < 0.9) size = smallSize(random);
+                else if (sizeType < 0.99) size = 5 + random.nextDouble() * 15;
+                else size = 50 + random.nextDouble() * 150;
+
+                objects.add(createObject(random.nextDouble() * WORLD_SIZE, random.nextDouble() * WORLD_SIZE, size, random));
+            }
+            return objects;
+        }
+    };
+
+    /**
+     * Width and height of the area the objects are mostly placed in.
+     */
+    public static final double WORLD_SIZE = 1000;
+
+    private static final int CLUSTER_COUNT = 20;
+    private static final double CLUSTER_RADIUS = 20;
+
+    /**
+     * @return objects placed and sized according to this distribution.
+     */
+    public abstract List<BenchmarkObject> createObjects(int count, Random random);
+
+    private static double smallSize(Random random) {
+        return 0.5 + random.nextDouble() * 1.5;
+    }
+
+    private static BenchmarkObject createObject(double centerX, double centerY, double size, Random random) {
+        // Vary the aspect ratio a bit
+        final double width = size * (0.5 + random.nextDouble());
+        final double height = size * (0.5 + random.nextDouble());
+        return new BenchmarkObject(centerX - 0.5 * width, centerY - 0.5 * height, centerX + 0.5 * width, centerY + 0.5 * height);
+    }
+}
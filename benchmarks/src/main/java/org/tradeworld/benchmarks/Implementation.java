@@ -0,0 +1,38 @@
+package org.tradeworld.benchmarks;
+
+import org.tradeworld.utils.rstar.BruteForceSpatialIndex;
+import org.tradeworld.utils.rstar.GridSpatialIndex;
+import org.tradeworld.utils.rstar.RStarSpatialIndex;
+import org.tradeworld.utils.rstar.SpatialIndex;
+
+/**
+ * Spatial index implementations to benchmark.
+ */
+public enum Implementation {
+
+    BRUTE_FORCE {
+        @Override
+        public SpatialIndex<BenchmarkObject> create() {
+            return new BruteForceSpatialIndex<BenchmarkObject>();
+        }
+    },
+
+    RSTAR {
+        @Override
+        public SpatialIndex<BenchmarkObject> create() {
+            return new RStarSpatialIndex<BenchmarkObject>();
+        }
+    },
+
+    GRID {
+        @Override
+        public SpatialIndex<BenchmarkObject> create() {
+            return new GridSpatialIndex<BenchmarkObject>();
+        }
+    };
+
+    /**
+     * @return a new empty index.
+     */
+    public abstract SpatialIndex<BenchmarkObject> create();
+}
@@ -0,0 +1,75 @@
+package org.tradeworld.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tradeworld.utils.bbox.MutableBoundingBox;
+import org.tradeworld.utils.rstar.SpatialIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures searching and moving objects in an index that has all the objects of the dataset.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SpatialIndexSearchBenchmark {
+
+    private SpatialIndex<BenchmarkObject> index;
+    private List<BenchmarkObject> indexedObjects;
+    private final List<BenchmarkObject> result = new ArrayList<BenchmarkObject>();
+    private int queryIndex = 0;
+    private int moveIndex = 0;
+    private int movedObjectIndex = 0;
+
+    @Setup(Level.Trial)
+    public void setUp(Dataset dataset) {
+        index = dataset.implementation.create();
+        index.addAll(dataset.objects);
+        indexedObjects = dataset.objects;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        // Stop the index from listening to the objects.  JMH 1.21 can not pass the same state to both setup and tear down.
+        index.removeAll(indexedObjects);
+    }
+
+    @Benchmark
+    public int getContained(Dataset dataset) {
+        result.clear();
+        return index.getContained(dataset.queries[queryIndex++ & (Dataset.QUERY_COUNT - 1)], result);
+    }
+
+    @Benchmark
+    public int getIntersecting(Dataset dataset) {
+        result.clear();
+        return index.getIntersecting(dataset.queries[queryIndex++ & (Dataset.QUERY_COUNT - 1)], result);
+    }
+
+    @Benchmark
+    public void move(Dataset dataset) {
+        final MutableBoundingBox bounds = dataset.objects.get(movedObjectIndex).getBounds();
+        final double dx = dataset.moves[moveIndex];
+        final double dy = dataset.moves[moveIndex + 1];
+        bounds.set(bounds.getMinX() + dx, bounds.getMinY() + dy, bounds.getMaxX() + dx, bounds.getMaxY() + dy);
+
+        moveIndex = (moveIndex + 2) & (dataset.moves.length - 1);
+        movedObjectIndex = (movedObjectIndex + 1) % dataset.size;
+    }
+}
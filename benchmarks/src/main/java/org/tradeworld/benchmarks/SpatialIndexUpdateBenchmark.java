@@ -0,0 +1,95 @@
+package org.tradeworld.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tradeworld.utils.rstar.SpatialIndex;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures adding and removing objects, and bulk loading an empty index.
+ *
+ * Adding and removing are measured in batches of Dataset.BATCH_SIZE operations on an index that has all the objects of
+ * the dataset, as the index changes with each operation.  The scores for them are the times of a whole batch.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class SpatialIndexUpdateBenchmark {
+
+    /**
+     * Index with all the objects of the dataset, created again for each iteration.
+     */
+    @State(Scope.Benchmark)
+    public static class FilledIndex {
+        private SpatialIndex<BenchmarkObject> index;
+        private Dataset dataset;
+        private int objectIndex;
+
+        @Setup(Level.Iteration)
+        public void setUp(Dataset dataset) {
+            this.dataset = dataset;
+            index = dataset.implementation.create();
+            index.addAll(dataset.objects);
+            objectIndex = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            // Stop the index from listening to the objects.  JMH 1.21 can not pass the same state to both setup and tear down.
+            index.removeAll(dataset.objects);
+            index.removeAll(dataset.extraObjects);
+        }
+    }
+
+    /**
+     * Empty index, created again for each invocation.
+     */
+    @State(Scope.Benchmark)
+    public static class EmptyIndex {
+        private SpatialIndex<BenchmarkObject> index;
+        private Dataset dataset;
+
+        @Setup(Level.Invocation)
+        public void setUp(Dataset dataset) {
+            this.dataset = dataset;
+            index = dataset.implementation.create();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            index.removeAll(dataset.objects);
+        }
+    }
+
+    @Benchmark
+    @Warmup(iterations = 5, batchSize = Dataset.BATCH_SIZE)
+    @Measurement(iterations = 20, batchSize = Dataset.BATCH_SIZE)
+    public void add(Dataset dataset, FilledIndex filledIndex) {
+        filledIndex.index.add(dataset.extraObjects.get(filledIndex.objectIndex++));
+    }
+
+    @Benchmark
+    @Warmup(iterations = 5, batchSize = Dataset.BATCH_SIZE)
+    @Measurement(iterations = 20, batchSize = Dataset.BATCH_SIZE)
+    public boolean remove(Dataset dataset, FilledIndex filledIndex) {
+        return filledIndex.index.remove(dataset.objects.get(filledIndex.objectIndex++));
+    }
+
+    @Benchmark
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public void bulkLoad(Dataset dataset, EmptyIndex emptyIndex) {
+        emptyIndex.index.addAll(dataset.objects);
+    }
+}
@@ -1,6 +1,7 @@
 package org.tradeworld.components;
 
 import org.tradeworld.entity.BaseComponent;
+import org.tradeworld.entity.World;
 
 /**
  * Something that grows.
@@ -15,6 +16,24 @@ public class Crop extends BaseComponent {
     }
 
     public Crop(float growTimeSeconds) {
+        plant(growTimeSeconds);
+    }
+
+    /**
+     * @return a recycled crop from the pool of the world if there is one available, otherwise a new crop.  Planted now.
+     */
+    public static Crop obtain(World world, float growTimeSeconds) {
+        final Crop crop = world.obtainComponent(Crop.class);
+        if (crop == null) return new Crop(growTimeSeconds);
+
+        crop.plant(growTimeSeconds);
+        return crop;
+    }
+
+    /**
+     * Starts growing the crop from the current time.
+     */
+    public void plant(float growTimeSeconds) {
         growStartTime = System.currentTimeMillis();
         this.growTimeSeconds = growTimeSeconds;
     }
@@ -4,7 +4,11 @@ import org.tradeworld.entity.BaseComponent;
 
 /**
  * Something that can be eaten, and has some effect on a body.
+ *
+ * @deprecated use EdibleView, stored in an EdibleView.Store.  GrowSystem and ChunkedGrowSystem make grown crops edible
+ *             with an EdibleView, so systems that look for Edible components no longer find crops.
  */
+@Deprecated
 public class Edible extends BaseComponent {
 
     public float energyJoule = 10;
@@ -0,0 +1,102 @@
+package org.tradeworld.components;
+
+import org.tradeworld.entity.ColumnStore;
+import org.tradeworld.entity.ColumnView;
+import org.tradeworld.entity.FloatColumn;
+
+/**
+ * Something that can be eaten, and has some effect on a body.  Replaces the deprecated Edible component, with the same values
+ * stored in primitive columns instead of as one object per entity.
+ *
+ * Add an EdibleView.Store to the world, and add the component to entities with it.
+ */
+public class EdibleView extends ColumnView {
+
+    /**
+     * Stores the edible values of all entities in a world.
+     */
+    public static final class Store extends ColumnStore<EdibleView> {
+        private final FloatColumn energyJoule = addFloatColumn(10);
+        private final FloatColumn poisonDamage = addFloatColumn(0);
+        private final FloatColumn heal = addFloatColumn(0);
+
+        public Store() {
+            super(EdibleView.class);
+        }
+
+        /**
+         * @return the energy column, for accessing the values in EntityChunks.
+         */
+        public FloatColumn getEnergyJouleColumn() {
+            return energyJoule;
+        }
+
+        /**
+         * @return the poison damage column, for accessing the values in EntityChunks.
+         */
+        public FloatColumn getPoisonDamageColumn() {
+            return poisonDamage;
+        }
+
+        /**
+         * @return the heal column, for accessing the values in EntityChunks.
+         */
+        public FloatColumn getHealColumn() {
+            return heal;
+        }
+
+        @Override
+        protected EdibleView createView() {
+            return new EdibleView(this);
+        }
+    }
+
+    private final Store store;
+
+    private EdibleView(Store store) {
+        super(store);
+        this.store = store;
+    }
+
+    public float getEnergyJoule() {
+        return store.energyJoule.get(getIndex());
+    }
+
+    public void setEnergyJoule(float energyJoule) {
+        store.energyJoule.set(getIndex(), energyJoule);
+    }
+
+    public float getPoisonDamage() {
+        return store.poisonDamage.get(getIndex());
+    }
+
+    public void setPoisonDamage(float poisonDamage) {
+        store.poisonDamage.set(getIndex(), poisonDamage);
+    }
+
+    public float getHeal() {
+        return store.heal.get(getIndex());
+    }
+
+    public void setHeal(float heal) {
+        store.heal.set(getIndex(), heal);
+    }
+
+    /**
+     * Sets all values at once.
+     */
+    public void set(float energyJoule, float poisonDamage, float heal) {
+        setEnergyJoule(energyJoule);
+        setPoisonDamage(poisonDamage);
+        setHeal(heal);
+    }
+
+    @Override
+    public String toString() {
+        return "EdibleView{" +
+                "energyJoule=" + getEnergyJoule() +
+                ", poisonDamage=" + getPoisonDamage() +
+                ", heal=" + getHeal() +
+                '}';
+    }
+}
@@ -1,6 +1,7 @@
 package org.tradeworld.components;
 
 import org.tradeworld.entity.BaseComponent;
+import org.tradeworld.entity.World;
 
 /**
  * Something with a name.
@@ -15,4 +16,15 @@ public class Named extends BaseComponent {
     public Named(String name) {
         this.name = name;
     }
+
+    /**
+     * @return a recycled name from the pool of the world if there is one available, otherwise a new name.
+     */
+    public static Named obtain(World world, String name) {
+        final Named named = world.obtainComponent(Named.class);
+        if (named == null) return new Named(name);
+
+        named.name = name;
+        return named;
+    }
 }
@@ -0,0 +1,160 @@
+package org.tradeworld.entity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * All entities in an ArchetypeWorld that have exactly the same set of component types.
+ * The entities are stored in EntityChunks, all chunks except the last one are kept full.
+ */
+public final class Archetype {
+
+    private final ArchetypeWorld world;
+    private final IdSet componentTypeIds;
+    private final Class<? extends Component>[] columnTypes;
+    private final int[] columnTypeIds;
+    private final int[] columnByComponentTypeId;
+    private final int chunkCapacity;
+
+    private final List<EntityChunk> chunks = new ArrayList<EntityChunk>();
+    private final List<EntityChunk> chunksUnmodifiable = Collections.unmodifiableList(chunks);
+    private int entityCount = 0;
+
+    /**
+     * @param world the world that the archetype is in, provides the chunk numbers and column stores.
+     * @param componentTypeIds the component types of entities in this archetype.  Should not be modified afterwards.
+     * @param chunkCapacity number of entities in each chunk.
+     */
+    Archetype(ArchetypeWorld world, IdSet componentTypeIds, int chunkCapacity) {
+        this.world = world;
+        this.componentTypeIds = componentTypeIds;
+        this.chunkCapacity = chunkCapacity;
+
+        // Assign a column to each component type
+        final List<Class<? extends Component>> types = new ArrayList<Class<? extends Component>>();
+        int maxId = -1;
+        for (int id = componentTypeIds.nextId(0); id >= 0; id = componentTypeIds.nextId(id + 1)) {
+            types.add(IdRegistry.getComponentType(id));
+            maxId = id;
+        }
+        columnTypes = types.toArray(new Class[types.size()]);
+
+        columnTypeIds = new int[columnTypes.length];
+        columnByComponentTypeId = new int[maxId + 1];
+        Arrays.fill(columnByComponentTypeId, -1);
+        int column = 0;
+        for (int id = componentTypeIds.nextId(0); id >= 0; id = componentTypeIds.nextId(id + 1)) {
+            columnTypeIds[column] = id;
+            columnByComponentTypeId[id] = column++;
+        }
+    }
+
+    /**
+     * @return ids of the component types of the entities in this archetype.  Should not be modified.
+     */
+    public IdSet getComponentTypeIds() {
+        return componentTypeIds;
+    }
+
+    /**
+     * @return the chunks with the entities of this archetype.
+     */
+    public List<EntityChunk> getChunks() {
+        return chunksUnmodifiable;
+    }
+
+    /**
+     * @return number of entities in this archetype.
+     */
+    public int getEntityCount() {
+        return entityCount;
+    }
+
+    ArchetypeWorld getWorld() {
+        return world;
+    }
+
+    int getColumnCount() {
+        return columnTypes.length;
+    }
+
+    Class<? extends Component> getColumnType(int column) {
+        return columnTypes[column];
+    }
+
+    int getColumnTypeId(int column) {
+        return columnTypeIds[column];
+    }
+
+    /**
+     * @return the column index for the specified component type, or -1 if it is not part of this archetype.
+     */
+    int getColumn(int componentTypeId) {
+        if (componentTypeId < 0 || componentTypeId >= columnByComponentTypeId.length) return -1;
+        else return columnByComponentTypeId[componentTypeId];
+    }
+
+    void add(Entity entity) {
+        // Add to the last chunk, or a new one if it is full
+        EntityChunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.isFull()) {
+            chunk = new EntityChunk(this, chunkCapacity, world.allocateChunkNumber());
+            chunks.add(chunk);
+        }
+
+        chunk.add(entity);
+        entityCount++;
+    }
+
+    void remove(Entity entity) {
+        final EntityChunk chunk = entity.chunk;
+        final int index = entity.chunkIndex;
+        checkContains(entity);
+
+        removeAt(chunk, index);
+        entity.chunk = null;
+        entity.chunkIndex = -1;
+    }
+
+    /**
+     * Moves the entity from this archetype to the target archetype, together with its column component values.
+     */
+    void moveTo(Entity entity, Archetype target) {
+        final EntityChunk chunk = entity.chunk;
+        final int index = entity.chunkIndex;
+        checkContains(entity);
+
+        // Add first, the values of the entity are overwritten when its old place is filled
+        target.add(entity);
+        removeAt(chunk, index);
+    }
+
+    private void checkContains(Entity entity) {
+        final EntityChunk chunk = entity.chunk;
+        if (chunk == null || chunk.getArchetype() != this) throw new IllegalArgumentException("The entity " + entity + " is not in the archetype " + this);
+    }
+
+    private void removeAt(EntityChunk chunk, int index) {
+        // Fill the hole with the last entity of the archetype, to keep chunks full
+        final EntityChunk lastChunk = chunks.get(chunks.size() - 1);
+        final int lastIndex = lastChunk.size() - 1;
+        if (chunk != lastChunk || index != lastIndex) {
+            chunk.moveFrom(lastChunk, lastIndex, index);
+        }
+        lastChunk.removeLast();
+
+        if (lastChunk.size() == 0) {
+            chunks.remove(chunks.size() - 1);
+            world.releaseChunkNumber(lastChunk.getChunkNumber());
+        }
+
+        entityCount--;
+    }
+
+    @Override
+    public String toString() {
+        return "Archetype" + componentTypeIds;
+    }
+}
@@ -0,0 +1,159 @@
+package org.tradeworld.entity;
+
+import org.tradeworld.utils.ParameterChecker;
+
+import java.util.*;
+
+/**
+ * A world that in addition to the normal entity handling groups entities by their component types into Archetypes,
+ * with the components of each type stored in dense arrays in EntityChunks.
+ *
+ * Systems extending ChunkedEntitySystem iterate the chunks directly, which avoids looking up each component through
+ * its entity, and keeps the components a system uses next to each other in memory.
+ * The entities remain the owners of their object components, the chunks are updated to match them during the refresh
+ * at the start of each world process.  The values of column components are stored in primitive arrays in the chunks,
+ * and are moved with the entities during the refresh, so views should be positioned again after it.
+ */
+public class ArchetypeWorld extends DefaultWorld {
+
+    /**
+     * Default number of entities in each chunk.
+     */
+    public static final int DEFAULT_CHUNK_CAPACITY = 512;
+
+    /**
+     * Largest number of entities in each chunk, the column values of a chunk are stored in one column page.
+     */
+    public static final int MAX_CHUNK_CAPACITY = Column.PAGE_SIZE;
+
+    private final int chunkCapacity;
+
+    // Numbers of the chunks, used to address the column pages of each chunk.  Numbers of dropped chunks are reused.
+    private final IdSet releasedChunkNumbers = new IdSet();
+    private int nextChunkNumber = 0;
+
+    // Only modified during the refresh at the start of world processing
+    private final Map<IdSet, Archetype> archetypeLookup = new HashMap<IdSet, Archetype>();
+    private final List<Archetype> archetypes = new ArrayList<Archetype>();
+    private final List<Archetype> archetypesUnmodifiable = Collections.unmodifiableList(archetypes);
+
+    public ArchetypeWorld() {
+        this(1);
+    }
+
+    public ArchetypeWorld(long simulationStepMilliseconds) {
+        this(simulationStepMilliseconds, DEFAULT_CHUNK_CAPACITY);
+    }
+
+    /**
+     * @param simulationStepMilliseconds length of one simulation step.
+     * @param chunkCapacity number of entities in each chunk, at most MAX_CHUNK_CAPACITY.
+     */
+    public ArchetypeWorld(long simulationStepMilliseconds, int chunkCapacity) {
+        super(simulationStepMilliseconds);
+        ParameterChecker.checkIntegerInRange(chunkCapacity, "chunkCapacity", 1, MAX_CHUNK_CAPACITY + 1);
+
+        this.chunkCapacity = chunkCapacity;
+    }
+
+    /**
+     * @return number of entities in each chunk.
+     */
+    public final int getChunkCapacity() {
+        return chunkCapacity;
+    }
+
+    /**
+     * @return all archetypes that have been created so far, in order of creation.
+     *         Should only be used from the world thread or while systems are processing.
+     */
+    public final List<Archetype> getArchetypes() {
+        return archetypesUnmodifiable;
+    }
+
+    /**
+     * Adds the non-empty chunks of all archetypes that contain all the specified component types to the output collection.
+     * Should only be used from the world thread or while systems are processing.
+     *
+     * @param componentTypeIds the component types that the entities should have.
+     * @param chunksOut collection to add the chunks to.
+     * @return number of entities in the added chunks.
+     */
+    public final int getChunks(IdSet componentTypeIds, Collection<EntityChunk> chunksOut) {
+        int entityCount = 0;
+        for (Archetype archetype : archetypes) {
+            if (archetype.getEntityCount() > 0 && archetype.getComponentTypeIds().containsAll(componentTypeIds)) {
+                chunksOut.addAll(archetype.getChunks());
+                entityCount += archetype.getEntityCount();
+            }
+        }
+        return entityCount;
+    }
+
+    @Override
+    protected void handleAddedEntity(Entity entity) {
+        getArchetype(entity.getComponentTypeIds()).add(entity);
+    }
+
+    @Override
+    protected void handleRemovedEntity(Entity entity) {
+        final EntityChunk chunk = entity.chunk;
+        if (chunk != null) {
+            chunk.getArchetype().remove(entity);
+        }
+    }
+
+    @Override
+    protected void handleChangedEntity(Entity entity) {
+        final EntityChunk chunk = entity.chunk;
+
+        // Skip entities that have already been removed from the world
+        if (chunk == null) return;
+
+        final IdSet componentTypeIds = entity.getComponentTypeIds();
+        final Archetype archetype = chunk.getArchetype();
+        if (archetype.getComponentTypeIds().equals(componentTypeIds)) {
+            // Same component types, only update the components in case some were replaced
+            chunk.updateComponents(entity.chunkIndex);
+        }
+        else {
+            // Move to the archetype for the new component types
+            archetype.moveTo(entity, getArchetype(componentTypeIds));
+        }
+    }
+
+    /**
+     * @return number for a new chunk, with column pages allocated for it in all column stores.
+     */
+    final int allocateChunkNumber() {
+        final int releasedChunkNumber = releasedChunkNumbers.nextId(0);
+        if (releasedChunkNumber >= 0) {
+            // The column pages of released chunks are kept
+            releasedChunkNumbers.remove(releasedChunkNumber);
+            return releasedChunkNumber;
+        }
+        else {
+            final int chunkNumber = nextChunkNumber++;
+            for (ColumnStore<?> columnStore : getColumnStores()) {
+                columnStore.ensureChunkPages(chunkNumber, chunkCapacity);
+            }
+            return chunkNumber;
+        }
+    }
+
+    final void releaseChunkNumber(int chunkNumber) {
+        releasedChunkNumbers.add(chunkNumber);
+    }
+
+    private Archetype getArchetype(IdSet componentTypeIds) {
+        Archetype archetype = archetypeLookup.get(componentTypeIds);
+        if (archetype == null) {
+            // Use a private copy as key, the archetype must not change if the original set is modified
+            final IdSet key = new IdSet(componentTypeIds);
+            archetype = new Archetype(this, key, chunkCapacity);
+            archetypeLookup.put(key, archetype);
+            archetypes.add(archetype);
+        }
+        return archetype;
+    }
+}
@@ -1,22 +1,38 @@
 package org.tradeworld.entity;
 
+import org.tradeworld.utils.ParameterChecker;
 import org.tradeworld.utils.Ticker;
+import org.tradeworld.utils.WorkerPool;
 
 import java.util.*;
 
 /**
  * Base implementation of an EntitySystem, provides functionality that is common for most EntitySystems that handle entities.
+ *
+ * If concurrent processing is turned on in the constructor, the handled entities are split into chunks that are processed
+ * in parallel by a WorkerPool, the shared one by default (concurrent reading of the handledEntities set is ok, as it is not modified during processing).
+ * In that case the processing of one entity by a system should never modify another entity handled by the same system.
+ * postProcess is only called after all chunks are processed.
  */
-// TODO: Support concurrent processing of entities if a flag to that effect is passed in the constructor.
-// Use a thread pool to process a part of the handled entities in each thread (concurrent reading of the handledEntities list is ok, as it is not modified during processing).
-// If concurrent processing is on, the processing of one entity by a system should never modify another handled by the same system.
 public abstract class BaseEntitySystem extends BaseSystem {
 
-    private final long handledComponentTypeIds;
+    /**
+     * Default for the smallest number of entities that is worth handing over to another thread.
+     */
+    public static final int DEFAULT_MINIMUM_CHUNK_SIZE = 1000;
+
+    private final IdSet handledComponentTypeIds;
+
+    private final boolean concurrentProcessing;
+    private int minimumChunkSize = DEFAULT_MINIMUM_CHUNK_SIZE;
+    private WorkerPool workerPool = WorkerPool.getShared();
+
+    // Used to process chunks of handled entities in parallel.  Set up before each concurrent processing pass.
+    private final ChunkProcessor chunkProcessor = new ChunkProcessor();
 
     // Updated by onEntityAdded, onEntityRemoved and onEntityChanged,
     // these are called by World during the common process phase, and do not need to be thread safe.
-    private final List<Entity> handledEntities = new ArrayList<Entity>();
+    private final EntitySet handledEntities = new EntitySet();
 
 
     /**
@@ -46,10 +62,69 @@ public abstract class BaseEntitySystem extends BaseSystem {
      * @param handledComponentTypes entities with the component types listed here will be handled by this system.
      */
     protected BaseEntitySystem(Class<? extends EntitySystem> baseType, double processingIntervalSeconds, Class<? extends Component> ... handledComponentTypes) {
+        this(baseType, processingIntervalSeconds, false, handledComponentTypes);
+    }
+
+    /**
+     * Creates a new BaseEntitySystem, that is interested in entities with the specified types of components.
+     * Only entities with all the specified component types are processed by default.
+     *
+     * @param baseType the base type for this entity system, or the default one if null.
+     * @param processingIntervalSeconds number of seconds between each process pass of this system, or zero to process as often as process() is called.
+     * @param concurrentProcessing if true, the handled entities are processed in parallel in chunks of at least getMinimumChunkSize() entities.
+     *                             processEntity must then not modify other entities handled by this system.
+     * @param handledComponentTypes entities with the component types listed here will be handled by this system.
+     */
+    protected BaseEntitySystem(Class<? extends EntitySystem> baseType, double processingIntervalSeconds, boolean concurrentProcessing, Class<? extends Component> ... handledComponentTypes) {
         super(baseType, processingIntervalSeconds);
+        this.concurrentProcessing = concurrentProcessing;
         handledComponentTypeIds = IdRegistry.getComponentTypeIds(handledComponentTypes);
     }
 
+    @Override
+    public final IdSet getHandledComponentTypeIds() {
+        return handledComponentTypeIds;
+    }
+
+    /**
+     * @return true if the handled entities are processed in parallel.
+     */
+    public final boolean isConcurrentProcessing() {
+        return concurrentProcessing;
+    }
+
+    /**
+     * @return the smallest number of entities processed by one thread when concurrent processing is on.
+     */
+    public final int getMinimumChunkSize() {
+        return minimumChunkSize;
+    }
+
+    /**
+     * @param minimumChunkSize the smallest number of entities processed by one thread when concurrent processing is on.
+     *                         Processing of fewer entities than this is done in the calling thread.
+     */
+    public final void setMinimumChunkSize(int minimumChunkSize) {
+        ParameterChecker.checkPositiveNonZeroInteger(minimumChunkSize, "minimumChunkSize");
+        this.minimumChunkSize = minimumChunkSize;
+    }
+
+    /**
+     * @return the pool used for processing chunks of entities when concurrent processing is on.
+     */
+    public final WorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * @param workerPool the pool to use for processing chunks of entities when concurrent processing is on.
+     *                   The shared pool is used by default.
+     */
+    public final void setWorkerPool(WorkerPool workerPool) {
+        ParameterChecker.checkNotNull(workerPool, "workerPool");
+        this.workerPool = workerPool;
+    }
+
     @Override
     public final void onEntityAdded(Entity entity) {
         if (!entity.isHandledBySystem(systemId)) {
@@ -60,7 +135,7 @@ public abstract class BaseEntitySystem extends BaseSystem {
     @Override
     public final void onEntityRemoved(Entity entity) {
         if (entity.isHandledBySystem(systemId)) {
-            removeEntityIfWeShould(entity);
+            removeEntity(entity);
         }
     }
 
@@ -74,11 +149,28 @@ public abstract class BaseEntitySystem extends BaseSystem {
 
     }
 
+    @Override
+    public final void onEntityComponentsReplaced(Entity entity) {
+        if (entity.isHandledBySystem(systemId)) {
+            handleReplacedComponents(entity);
+        }
+    }
+
     protected void doProcess(Ticker systemTicker) {
         preProcess(systemTicker);
 
-        for (Entity handledEntity : handledEntities) {
-            processEntity(ticker, handledEntity);
+        final WorkerPool workerPool = this.workerPool;
+        final int chunkCount = concurrentProcessing ? Math.min(handledEntities.size() / minimumChunkSize, workerPool.getThreadCount()) : 1;
+        if (chunkCount > 1) {
+            // Process chunks in parallel, returns when all chunks are processed
+            chunkProcessor.setup(systemTicker, chunkCount);
+            workerPool.run(chunkCount, chunkProcessor);
+            chunkProcessor.setup(null, 0);
+        }
+        else {
+            for (int i = 0; i < handledEntities.size(); i++) {
+                processEntity(systemTicker, handledEntities.get(i));
+            }
         }
 
         postProcess(systemTicker);
@@ -113,8 +205,20 @@ public abstract class BaseEntitySystem extends BaseSystem {
      */
     protected void handleRemovedEntity(Entity entity) {}
 
+    /**
+     * Called for handled entities where some of the handled components were replaced with other components of the same type.
+     * Can be used to update any state the system keeps about the components.
+     */
+    protected void handleReplacedComponents(Entity entity) {}
+
 
     /**
+     * Overrides may only depend on the handled component types of the entity (and on things that never change).
+     * The world offers added entities only if they have all the handled component types, and notifies changed
+     * entities only when one of the handled component types was added or removed.  An override that looks at other
+     * components, or at component values, is not called again when those change, so the entity is silently never added
+     * or never removed.  Add any component types the decision depends on to the handled component types instead.
+     *
      * @return true if this system should keep track of the specified entity and process it on each process call.
      */
     protected boolean shouldHandle(Entity entity) {
@@ -131,11 +235,37 @@ public abstract class BaseEntitySystem extends BaseSystem {
 
     private void removeEntityIfWeShould(Entity entity) {
         if (!shouldHandle(entity)) {
-            handleRemovedEntity(entity);
-            entity.setHandledBySystem(systemId, false);
-            handledEntities.remove(entity);
+            removeEntity(entity);
         }
     }
 
+    private void removeEntity(Entity entity) {
+        handleRemovedEntity(entity);
+        entity.setHandledBySystem(systemId, false);
+        handledEntities.remove(entity);
+    }
+
+    /**
+     * Processes one chunk of the handled entities.
+     */
+    private final class ChunkProcessor implements WorkerPool.IndexedTask {
+        private Ticker ticker;
+        private int chunkCount;
+
+        private void setup(Ticker ticker, int chunkCount) {
+            this.ticker = ticker;
+            this.chunkCount = chunkCount;
+        }
+
+        @Override
+        public void run(int chunkIndex) {
+            final int entityCount = handledEntities.size();
+            final int start = (int) ((long) entityCount * chunkIndex / chunkCount);
+            final int end = (int) ((long) entityCount * (chunkIndex + 1) / chunkCount);
+            for (int i = start; i < end; i++) {
+                processEntity(ticker, handledEntities.get(i));
+            }
+        }
+    }
 
 }
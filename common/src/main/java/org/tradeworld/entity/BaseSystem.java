@@ -1,5 +1,6 @@
 package org.tradeworld.entity;
 
+import org.tradeworld.utils.Log;
 import org.tradeworld.utils.Ticker;
 
 /**
@@ -11,9 +12,19 @@ public abstract class BaseSystem implements EntitySystem {
     protected final int systemId;
     protected double processingIntervalSeconds = 0;
     protected final Ticker ticker = new Ticker();
+    protected final Log log = Log.get(getClass());
+
+    // Game times in milliseconds, from the world ticker
+    private long processingPhaseMilliseconds = 0;
+    private long nextProcessTimeMilliseconds = 0;
+    private long lastProcessTimeMilliseconds = 0;
 
     private World world = null;
 
+    private boolean componentAccessDeclared = false;
+    private final IdSet readComponentTypeIds = new IdSet();
+    private final IdSet writtenComponentTypeIds = new IdSet();
+
     protected BaseSystem() {
         this(null);
     }
@@ -32,21 +43,35 @@ public abstract class BaseSystem implements EntitySystem {
     }
 
     /**
-     * @return an approximate interval in seconds between each time that the system is processed.
+     * @return an approximate game time interval in seconds between each time that the system is processed.
      *                                  Zero if the system is processed every time process() is called.
      */
+    @Override
     public final double getProcessingIntervalSeconds() {
         return processingIntervalSeconds;
     }
 
     /**
-     * @param processingIntervalSeconds an approximate interval in seconds between each time that the system is processed.
+     * @param processingIntervalSeconds an approximate game time interval in seconds between each time that the system is processed.
      *                                  Set to zero to process the system every time process() is called.
      */
     public final void setProcessingIntervalSeconds(double processingIntervalSeconds) {
         this.processingIntervalSeconds = processingIntervalSeconds;
     }
 
+    /**
+     * @return game time offset in seconds of the processing times of the system within its processing interval.
+     */
+    public final double getProcessingPhaseSeconds() {
+        return processingPhaseMilliseconds * 0.001;
+    }
+
+    @Override
+    public final void setProcessingPhaseSeconds(double processingPhaseSeconds) {
+        processingPhaseMilliseconds = Math.round(processingPhaseSeconds * 1000);
+        nextProcessTimeMilliseconds = processingPhaseMilliseconds;
+    }
+
     @Override
     public Class<? extends EntitySystem> getBaseType() {
         return baseType;
@@ -57,10 +82,54 @@ public abstract class BaseSystem implements EntitySystem {
         return systemId;
     }
 
+    @Override
+    public final boolean isComponentAccessDeclared() {
+        return componentAccessDeclared;
+    }
+
+    @Override
+    public final IdSet getReadComponentTypeIds() {
+        return readComponentTypeIds;
+    }
+
+    @Override
+    public final IdSet getWrittenComponentTypeIds() {
+        return writtenComponentTypeIds;
+    }
+
+    @Override
+    public IdSet getHandledComponentTypeIds() {
+        return null;
+    }
+
+    /**
+     * Declares component types that this system reads when processing.
+     * Once a system has declared its component access, it can be processed at the same time as other systems that do not write
+     * to the components it uses.  Should be called before the world is initialized, e.g. in the constructor.
+     * Calling this with no parameters declares that the system reads no components.
+     */
+    protected final void declareReadComponents(Class<? extends Component> ... componentTypes) {
+        readComponentTypeIds.addAll(IdRegistry.getComponentTypeIds(componentTypes));
+        componentAccessDeclared = true;
+    }
+
+    /**
+     * Declares component types that this system modifies, adds or removes when processing.
+     * Once a system has declared its component access, it can be processed at the same time as other systems that do not use
+     * the components it writes.  Should be called before the world is initialized, e.g. in the constructor.
+     * Calling this with no parameters declares that the system writes no components.
+     */
+    protected final void declareWrittenComponents(Class<? extends Component> ... componentTypes) {
+        writtenComponentTypeIds.addAll(IdRegistry.getComponentTypeIds(componentTypes));
+        componentAccessDeclared = true;
+    }
+
     @Override
     public final void init(World world) {
         this.world = world;
         ticker.reset();
+        nextProcessTimeMilliseconds = processingPhaseMilliseconds;
+        lastProcessTimeMilliseconds = 0;
         onInit();
     }
 
@@ -72,17 +141,29 @@ public abstract class BaseSystem implements EntitySystem {
     }
 
     @Override
-    public final void process() {
-        if (ticker.getSecondsSinceLastTick() >= processingIntervalSeconds) {
+    public final void process(Ticker worldTicker) {
+        final long time = worldTicker.getMillisecondsSinceStart();
+        final long intervalMilliseconds = Math.round(processingIntervalSeconds * 1000);
+        if (intervalMilliseconds <= 0 || time >= nextProcessTimeMilliseconds) {
+            if (intervalMilliseconds > 0) {
+                // Next time that is at the phase offset from a multiple of the interval
+                long sincePhase = (time - processingPhaseMilliseconds) % intervalMilliseconds;
+                if (sincePhase < 0) sincePhase += intervalMilliseconds;
+                nextProcessTimeMilliseconds = time - sincePhase + intervalMilliseconds;
+            }
+
+            // Advance the system ticker by the game time since the system was last processed
+            ticker.tick(time - lastProcessTimeMilliseconds);
+            lastProcessTimeMilliseconds = time;
+
             doProcess(ticker);
-            ticker.tick();
         }
     }
 
     /**
      * Processes this entity system.
      *
-     * @param systemTicker a ticker with information on how long since this system was last processed.
+     * @param systemTicker a ticker with information on how much game time has passed since this system was last processed.
      */
     protected void doProcess(Ticker systemTicker) {
     }
@@ -99,6 +180,10 @@ public abstract class BaseSystem implements EntitySystem {
     public void onEntityComponentsChanged(Entity entity) {
     }
 
+    @Override
+    public void onEntityComponentsReplaced(Entity entity) {
+    }
+
     /**
      * Called when the system is initialized.
      */
@@ -0,0 +1,159 @@
+package org.tradeworld.entity;
+
+import org.tradeworld.utils.ParameterChecker;
+import org.tradeworld.utils.Ticker;
+import org.tradeworld.utils.WorkerPool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base class for systems that process the components of entities chunk by chunk, using the dense component arrays of an ArchetypeWorld.
+ * Processes all chunks of archetypes that contain all the handled component types.
+ *
+ * If concurrent processing is turned on in the constructor, the chunks are processed in parallel by a WorkerPool, the shared one by default,
+ * when they have at least getMinimumConcurrentEntityCount() entities in total.
+ * In that case processChunk should not modify entities in other chunks.  postProcess is only called after all chunks are processed.
+ */
+public abstract class ChunkedEntitySystem extends BaseSystem {
+
+    /**
+     * Default for the smallest total number of entities in the chunks that is worth processing in parallel.
+     */
+    public static final int DEFAULT_MINIMUM_CONCURRENT_ENTITY_COUNT = BaseEntitySystem.DEFAULT_MINIMUM_CHUNK_SIZE;
+
+    private final IdSet handledComponentTypeIds;
+    private final boolean concurrentProcessing;
+    private int minimumConcurrentEntityCount = DEFAULT_MINIMUM_CONCURRENT_ENTITY_COUNT;
+    private WorkerPool workerPool = WorkerPool.getShared();
+
+    // Only used during processing
+    private final List<EntityChunk> chunks = new ArrayList<EntityChunk>();
+    private final ChunkProcessor chunkProcessor = new ChunkProcessor();
+
+    /**
+     * @param baseType the base type for this entity system, or the default one if null.
+     * @param processingIntervalSeconds number of seconds between each process pass of this system, or zero to process as often as process() is called.
+     * @param concurrentProcessing if true, the chunks are processed in parallel.  processChunk must then not modify entities in other chunks.
+     * @param handledComponentTypes chunks of entities with all the component types listed here will be processed by this system.
+     */
+    protected ChunkedEntitySystem(Class<? extends EntitySystem> baseType, double processingIntervalSeconds, boolean concurrentProcessing, Class<? extends Component> ... handledComponentTypes) {
+        super(baseType, processingIntervalSeconds);
+        ParameterChecker.checkNotNull(handledComponentTypes, "handledComponentTypes");
+
+        this.concurrentProcessing = concurrentProcessing;
+        handledComponentTypeIds = IdRegistry.getComponentTypeIds(handledComponentTypes);
+    }
+
+    @Override
+    public final IdSet getHandledComponentTypeIds() {
+        return handledComponentTypeIds;
+    }
+
+    /**
+     * @return true if the chunks are processed in parallel.
+     */
+    public final boolean isConcurrentProcessing() {
+        return concurrentProcessing;
+    }
+
+    /**
+     * @return the smallest total number of entities in the chunks that is processed in parallel when concurrent processing is on.
+     */
+    public final int getMinimumConcurrentEntityCount() {
+        return minimumConcurrentEntityCount;
+    }
+
+    /**
+     * @param minimumConcurrentEntityCount the smallest total number of entities in the chunks that is processed in parallel
+     *                                     when concurrent processing is on.  Fewer entities are processed in the calling thread.
+     */
+    public final void setMinimumConcurrentEntityCount(int minimumConcurrentEntityCount) {
+        ParameterChecker.checkPositiveNonZeroInteger(minimumConcurrentEntityCount, "minimumConcurrentEntityCount");
+        this.minimumConcurrentEntityCount = minimumConcurrentEntityCount;
+    }
+
+    /**
+     * @return the pool used for processing chunks when concurrent processing is on.
+     */
+    public final WorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * @param workerPool the pool to use for processing chunks when concurrent processing is on.
+     *                   The shared pool is used by default.
+     */
+    public final void setWorkerPool(WorkerPool workerPool) {
+        ParameterChecker.checkNotNull(workerPool, "workerPool");
+        this.workerPool = workerPool;
+    }
+
+    @Override
+    protected void onInit() {
+        if (!(getWorld() instanceof ArchetypeWorld)) throw new IllegalStateException("The system " + getClass().getSimpleName() + " can only be used in an ArchetypeWorld");
+    }
+
+    @Override
+    protected void doProcess(Ticker systemTicker) {
+        preProcess(systemTicker);
+
+        chunks.clear();
+        ((ArchetypeWorld) getWorld()).getChunks(handledComponentTypeIds, chunks);
+
+        if (concurrentProcessing && chunks.size() > 1 && countEntities() >= minimumConcurrentEntityCount) {
+            // Process chunks in parallel, returns when all chunks are processed
+            chunkProcessor.ticker = systemTicker;
+            workerPool.run(chunks.size(), chunkProcessor);
+            chunkProcessor.ticker = null;
+        }
+        else {
+            for (EntityChunk chunk : chunks) {
+                processChunk(systemTicker, chunk);
+            }
+        }
+
+        chunks.clear();
+
+        postProcess(systemTicker);
+    }
+
+    private int countEntities() {
+        int entityCount = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            entityCount += chunks.get(i).size();
+        }
+        return entityCount;
+    }
+
+    /**
+     * Called before chunk processing begins.
+     * @param ticker contains delta time and total simulation time.
+     */
+    protected void preProcess(Ticker ticker) {}
+
+    /**
+     * Called after chunk processing ends.
+     * @param ticker contains delta time and total simulation time.
+     */
+    protected void postProcess(Ticker ticker) {}
+
+    /**
+     * Called to process the entities in a chunk.  Use chunk.getComponents to get the component arrays.
+     * @param ticker contains delta time and total simulation time.
+     * @param chunk chunk with entities that have all the handled component types.
+     */
+    protected abstract void processChunk(Ticker ticker, EntityChunk chunk);
+
+    /**
+     * Processes one chunk.
+     */
+    private final class ChunkProcessor implements WorkerPool.IndexedTask {
+        private Ticker ticker;
+
+        @Override
+        public void run(int index) {
+            processChunk(ticker, chunks.get(index));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.tradeworld.entity;
+
+/**
+ * Stores one primitive field of a column component for all entities, indexed by the column slot of the entity.
+ *
+ * The column slot is the dense entity index, except in an ArchetypeWorld, where entities that have been placed in an
+ * EntityChunk use negative slots that address a page of values owned by the chunk.  Those pages are the value arrays
+ * returned by EntityChunk.getValues, so chunked systems can iterate the values directly.
+ *
+ * Values are stored in fixed size pages that are never reallocated, so growing the column when entities are created
+ * does not lose values written concurrently by other threads.
+ */
+public abstract class Column {
+
+    static final int PAGE_SIZE_BITS = 10;
+    static final int PAGE_SIZE = 1 << PAGE_SIZE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    Column() {
+    }
+
+    /**
+     * Makes sure there are pages for all entity indexes below the specified capacity.
+     */
+    abstract void ensureCapacity(int capacity);
+
+    /**
+     * Sets the value at the specified slot to the default value of the column.
+     */
+    abstract void reset(int slot);
+
+    /**
+     * Makes sure there is a page for the chunk with the specified number.
+     * @param capacity number of values in the page.
+     */
+    abstract void ensureChunkPage(int chunkNumber, int capacity);
+
+    /**
+     * Copies the value at one slot to another slot.
+     */
+    abstract void copy(int fromSlot, int toSlot);
+
+    /**
+     * @return the column slot of the specified index in the chunk with the specified number.
+     */
+    static int chunkSlot(int chunkNumber, int index) {
+        return ~((chunkNumber << PAGE_SIZE_BITS) | index);
+    }
+
+    static int pageCount(int capacity) {
+        return (capacity + PAGE_MASK) >>> PAGE_SIZE_BITS;
+    }
+}
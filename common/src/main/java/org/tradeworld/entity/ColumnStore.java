@@ -0,0 +1,202 @@
+package org.tradeworld.entity;
+
+import org.tradeworld.utils.ParameterChecker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the data of one type of small numeric component for all entities in a world, in primitive columns
+ * indexed by the column slot of the entity (see Column), instead of as one object per entity.
+ *
+ * The component is accessed through a ColumnView, a reusable flyweight that implements Component and reads and writes
+ * the columns at the index of the entity it is positioned on.  Entities keep track of which column components they have,
+ * so systems can handle entities with column components just like entities with normal components.
+ *
+ * Implementations add their columns in field initializers, and create views of the component type:
+ * <pre>
+ * public static final class Store extends ColumnStore&lt;EdibleView&gt; {
+ *     private final FloatColumn energyJoule = addFloatColumn(10);
+ *     public Store() { super(EdibleView.class); }
+ *     protected EdibleView createView() { return new EdibleView(this); }
+ * }
+ * </pre>
+ * A store is added to a world with World.addColumnStore before the world is initialized.
+ */
+public abstract class ColumnStore<V extends ColumnView> {
+
+    private final Class<V> componentType;
+    private final int componentTypeId;
+    private final List<Column> columns = new ArrayList<Column>();
+
+    // Capacity that has been requested from all columns so far
+    private int capacity = 0;
+
+    /**
+     * @param componentType the view class, used as the base type of the component.
+     */
+    protected ColumnStore(Class<V> componentType) {
+        ParameterChecker.checkNotNull(componentType, "componentType");
+
+        this.componentType = componentType;
+        componentTypeId = IdRegistry.getComponentTypeId(componentType);
+    }
+
+    /**
+     * @return base type of the component stored in this store.
+     */
+    public final Class<V> getComponentType() {
+        return componentType;
+    }
+
+    /**
+     * @return id of the component type stored in this store.
+     */
+    public final int getComponentTypeId() {
+        return componentTypeId;
+    }
+
+    /**
+     * Adds the component to the entity, with default values for all columns.
+     * Does nothing but return a view if the entity already has the component.
+     * @return a new view positioned on the entity.
+     */
+    public final V add(Entity entity) {
+        return add(entity, createView());
+    }
+
+    /**
+     * Adds the component to the entity, with default values for all columns.
+     * Does nothing but position the view if the entity already has the component.
+     * @param view view to position on the entity, obtained from view().
+     * @return the view, positioned on the entity.
+     */
+    public final V add(Entity entity, V view) {
+        entity.addColumnComponent(this);
+        return position(view, entity);
+    }
+
+    /**
+     * Adds the component to the entity, with default values for all columns, without positioning a view on it.
+     * Does nothing if the entity already has the component.
+     */
+    public final void addDefaults(Entity entity) {
+        entity.addColumnComponent(this);
+    }
+
+    /**
+     * Removes the component from the entity, if present.
+     */
+    public final void remove(Entity entity) {
+        entity.removeComponent(componentType);
+    }
+
+    /**
+     * @return true if the entity has the component.
+     */
+    public final boolean contains(Entity entity) {
+        return entity.containsComponent(componentTypeId);
+    }
+
+    /**
+     * @return a new view positioned on the entity, or null if the entity does not have the component.
+     *         When processing many entities, use one view and position it with ColumnView.moveTo instead.
+     */
+    public final V get(Entity entity) {
+        if (!contains(entity)) return null;
+        else return position(createView(), entity);
+    }
+
+    /**
+     * Positions an existing view on the entity, so that no view needs to be allocated.
+     * @param view view to position on the entity, obtained from view().
+     * @return the view positioned on the entity, or null if the entity does not have the component.
+     */
+    public final V get(Entity entity, V view) {
+        if (!contains(entity)) return null;
+        else return position(view, entity);
+    }
+
+    /**
+     * @return a new view that is not positioned on any entity.  Use ColumnView.moveTo to position it.
+     */
+    public final V view() {
+        return createView();
+    }
+
+    /**
+     * Creates a new view for this store.
+     */
+    protected abstract V createView();
+
+    /**
+     * Adds a float column, should be called from a field initializer of the implementation.
+     */
+    protected final FloatColumn addFloatColumn(float defaultValue) {
+        return addColumn(new FloatColumn(defaultValue));
+    }
+
+    /**
+     * Adds a long column, should be called from a field initializer of the implementation.
+     */
+    protected final LongColumn addLongColumn(long defaultValue) {
+        return addColumn(new LongColumn(defaultValue));
+    }
+
+    /**
+     * Makes sure all columns have room for entity indexes below the specified capacity.
+     */
+    final synchronized void ensureCapacity(int capacity) {
+        if (capacity > this.capacity) {
+            for (Column column : columns) {
+                column.ensureCapacity(capacity);
+            }
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * Makes sure all columns have a page for the chunk with the specified number.
+     */
+    final synchronized void ensureChunkPages(int chunkNumber, int chunkCapacity) {
+        for (Column column : columns) {
+            column.ensureChunkPage(chunkNumber, chunkCapacity);
+        }
+    }
+
+    /**
+     * Sets all columns at the specified column slot to their default values.
+     */
+    final void reset(int slot) {
+        for (Column column : columns) {
+            column.reset(slot);
+        }
+    }
+
+    /**
+     * Copies the values of all columns from one column slot to another.
+     */
+    final void copy(int fromSlot, int toSlot) {
+        for (Column column : columns) {
+            column.copy(fromSlot, toSlot);
+        }
+    }
+
+    private synchronized <T extends Column> T addColumn(T column) {
+        column.ensureCapacity(capacity);
+        columns.add(column);
+        return column;
+    }
+
+    private V position(V view, Entity entity) {
+        ParameterChecker.checkNotNull(view, "view");
+
+        view.moveTo(entity);
+        return view;
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnStore{" + componentType.getSimpleName() + "}";
+    }
+}
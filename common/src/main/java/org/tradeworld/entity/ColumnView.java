@@ -0,0 +1,78 @@
+package org.tradeworld.entity;
+
+import org.tradeworld.utils.ParameterChecker;
+
+/**
+ * Flyweight access to a component stored in a ColumnStore.  A view is positioned on one entity at a time,
+ * and reads and writes the columns of the store at the column slot of that entity.
+ *
+ * Implementations provide getters and setters that access the columns of their store using getIndex().
+ * Views are not thread safe, use a separate view in each thread.
+ * In an ArchetypeWorld the values of an entity move when the entity moves between chunks during the world refresh,
+ * so views positioned before a refresh should be positioned again after it.
+ */
+public abstract class ColumnView implements Component {
+
+    private final ColumnStore<?> store;
+    private Entity entity = null;
+    private int index = 0;
+
+    protected ColumnView(ColumnStore<?> store) {
+        ParameterChecker.checkNotNull(store, "store");
+        this.store = store;
+    }
+
+    /**
+     * Positions this view on the specified entity.  The entity should have the component.
+     * @return this view, for chaining.
+     */
+    public final ColumnView moveTo(Entity entity) {
+        ParameterChecker.checkNotNull(entity, "entity");
+
+        this.entity = entity;
+        index = entity.columnSlot;
+        return this;
+    }
+
+    /**
+     * @return the entity this view is positioned on, or null if not positioned.
+     */
+    public final Entity getEntity() {
+        return entity;
+    }
+
+    /**
+     * @return the column slot to use for accessing the columns.
+     */
+    protected final int getIndex() {
+        if (entity == null) throw new IllegalStateException("The view is not positioned on any entity");
+        return index;
+    }
+
+    @Override
+    public final int getComponentTypeId() {
+        return store.getComponentTypeId();
+    }
+
+    @Override
+    public final Class<? extends Component> getBaseType() {
+        return store.getComponentType();
+    }
+
+    /**
+     * Positions the view on the entity, column components are added to entities with ColumnStore.add.
+     */
+    @Override
+    public final void setEntity(Entity entity) {
+        moveTo(entity);
+    }
+
+    /**
+     * Clears the position of the view.
+     */
+    @Override
+    public final void onRemoved() {
+        entity = null;
+        index = 0;
+    }
+}
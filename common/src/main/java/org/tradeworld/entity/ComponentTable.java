@@ -0,0 +1,67 @@
+package org.tradeworld.entity;
+
+import java.util.Arrays;
+
+/**
+ * Immutable table of the components of an entity, indexed by component type id.
+ * Entities replace their table with an updated copy when components are added or removed, so it can be read without locking.
+ *
+ * Column components are included in the component type ids, but have no component object in the table.
+ */
+final class ComponentTable {
+
+    static final ComponentTable EMPTY = new ComponentTable(new IdSet(), new Component[0]);
+
+    private final IdSet componentTypeIds;
+    private final Component[] componentsByTypeId;
+
+    private ComponentTable(IdSet componentTypeIds, Component[] componentsByTypeId) {
+        this.componentTypeIds = componentTypeIds;
+        this.componentsByTypeId = componentsByTypeId;
+    }
+
+    /**
+     * @return ids of the component types in the table.  Must not be modified.
+     */
+    IdSet getComponentTypeIds() {
+        return componentTypeIds;
+    }
+
+    boolean contains(int componentTypeId) {
+        return componentTypeIds.contains(componentTypeId);
+    }
+
+    /**
+     * @return the component with the specified type id, or null if there is none, or if it is a column component.
+     */
+    Component get(int componentTypeId) {
+        if (componentTypeId < 0 || componentTypeId >= componentsByTypeId.length) return null;
+        else return componentsByTypeId[componentTypeId];
+    }
+
+    /**
+     * @return a copy of this table with the specified component added or replaced.  Null component for a column component.
+     */
+    ComponentTable with(int componentTypeId, Component component) {
+        final IdSet updatedTypeIds = new IdSet(componentTypeIds);
+        updatedTypeIds.add(componentTypeId);
+
+        final Component[] updatedComponents = Arrays.copyOf(componentsByTypeId, Math.max(componentsByTypeId.length, componentTypeId + 1));
+        updatedComponents[componentTypeId] = component;
+
+        return new ComponentTable(updatedTypeIds, updatedComponents);
+    }
+
+    /**
+     * @return a copy of this table without the specified component type.
+     */
+    ComponentTable without(int componentTypeId) {
+        final IdSet updatedTypeIds = new IdSet(componentTypeIds);
+        updatedTypeIds.remove(componentTypeId);
+
+        final Component[] updatedComponents = componentsByTypeId.clone();
+        if (componentTypeId < updatedComponents.length) updatedComponents[componentTypeId] = null;
+
+        return new ComponentTable(updatedTypeIds, updatedComponents);
+    }
+}
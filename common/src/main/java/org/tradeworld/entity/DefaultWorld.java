@@ -1,38 +1,106 @@
 package org.tradeworld.entity;
 
+import org.tradeworld.utils.BoundedPool;
+import org.tradeworld.utils.FixedStepTimer;
+import org.tradeworld.utils.Log;
 import org.tradeworld.utils.ParameterChecker;
 import org.tradeworld.utils.Ticker;
+import org.tradeworld.utils.WorkerPool;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Manages all entities and systems in a game/simulation.
  */
 public class DefaultWorld implements World {
 
+    /**
+     * Default max number of simulation steps that are run back to back if processing has fallen behind.
+     */
+    public static final int DEFAULT_MAX_CATCH_UP_STEPS = 5;
+
+    private static final Log LOG = Log.get(DefaultWorld.class);
+
     private final List<EntitySystem> entitySystems = new ArrayList<EntitySystem>();
     private final AtomicBoolean initialized = new AtomicBoolean(false);
     private final AtomicBoolean running = new AtomicBoolean(false);
 
-    // The entities list is not modified while a system is processing entities, so processing can be done with multiple threads.
-    private final List<Entity> entities = new ArrayList<Entity>();
+    // The entities set is not modified while a system is processing entities, so processing can be done with multiple threads.
+    private final EntitySet entities = new EntitySet();
+
+    // Only used by refreshEntities.
+    private final List<Entity> addedEntities = new ArrayList<Entity>();
+    private final List<Entity> removedEntities = new ArrayList<Entity>();
+    private final IdSet removedEntityIndexes = new IdSet();
+    private final IdSet removedBeforeAddedEntityIndexes = new IdSet();
+
+    // Indexes of entities whose components changed since the last refresh, and that may need to be added or removed from systems.
+    private final IdSet changedEntityIndexes = new IdSet();
+
+    // Positions of the systems to notify when a component type is added to or removed from an entity, by component type id.
+    // Built at init.  Systems that have no handled component types are notified of all changes.
+    private int[][] systemPositionsByComponentType = new int[0][];
+    private final IdSet systemsNotifiedOfAllChanges = new IdSet();
+    private final IdSet flippedComponentTypeIds = new IdSet();
+    private final IdSet systemsToNotify = new IdSet();
+    private final List<EntityCommandBuffer> drainedBuffers = new ArrayList<EntityCommandBuffer>();
+    private final List<EntityCommandBuffer.Commands> drainedCommands = new ArrayList<EntityCommandBuffer.Commands>();
+    private int[] playbackPositions = new int[4];
+
+    // Systems that handle entities with a given set of component types, filled in as needed during refresh.
+    private final Map<IdSet, EntitySystem[]> systemsByComponentTypes = new HashMap<IdSet, EntitySystem[]>();
+
+    // Entities in the world by entity index, only modified during the refresh at the start of world processing.
+    // The elements are published with volatile semantics, so other threads can resolve entity ids at any time.
+    private volatile AtomicReferenceArray<Entity> entitiesByIndex = new AtomicReferenceArray<Entity>(64);
 
-    private final ConcurrentMap<Long, Entity> entityLookup = new ConcurrentHashMap<Long, Entity>();
     private final Map<Class, EntitySystem> systemLookup = new HashMap<Class, EntitySystem>();
 
-    // Added and removed entities are first stored in concurrent collections, and then applied to the world at the start of world processing.
-    private final ConcurrentMap<Entity, Boolean> addedAndRemovedEntities = new ConcurrentHashMap<Entity, Boolean>();
+    // Created and removed entities and component changes are recorded by each thread in its own command buffer,
+    // and played back in the order they were issued at the start of world processing.
+    // Buffers of threads that have ended are dropped after their last commands are played back.
+    private final AtomicLong nextCommandSequence = new AtomicLong(0);
+    private final List<EntityCommandBuffer> commandBuffers = new CopyOnWriteArrayList<EntityCommandBuffer>();
+    private final ThreadLocal<EntityCommandBuffer> threadCommandBuffer = new ThreadLocal<EntityCommandBuffer>() {
+        @Override
+        protected EntityCommandBuffer initialValue() {
+            final EntityCommandBuffer commandBuffer = new EntityCommandBuffer(Thread.currentThread());
+            commandBuffers.add(commandBuffer);
+            return commandBuffer;
+        }
+    };
+
+    // Dense entity indexes, indexes of removed entities are reused with the next generation.
+    private final Object entityIndexLock = new Object();
+    private int nextFreeEntityIndex = 0;
+    private int[] generationsByIndex = new int[64];
+    private int[] releasedEntityIndexes = new int[16];
+    private int releasedEntityIndexCount = 0;
+
+    // Removed components by component base type, reused with obtainComponent.
+    private final ConcurrentMap<Class<?>, BoundedPool<Component>> componentPools = new ConcurrentHashMap<Class<?>, BoundedPool<Component>>();
 
-    // Keeps track of changed entities, that is, entities whose components changed, and that may need to be added or removed from systems.
-    private final ConcurrentMap<Entity, Boolean> changedEntities = new ConcurrentHashMap<Entity, Boolean>();
+    // Removed components of pooled types, released to their pools at the end of the next refresh,
+    // so that they are not reused while systems or chunks still refer to them.
+    private final Queue<Component> removedComponents = new ConcurrentLinkedQueue<Component>();
 
-    private final AtomicLong nextFreeEntityId = new AtomicLong(1);
+    // Only modified before the world is initialized.
+    private final List<ColumnStore<?>> columnStores = new ArrayList<ColumnStore<?>>();
+    private final Map<Class<?>, ColumnStore<?>> columnStoreLookup = new HashMap<Class<?>, ColumnStore<?>>();
 
     private long simulationStepMilliseconds;
+    private int maxCatchUpSteps = DEFAULT_MAX_CATCH_UP_STEPS;
+    private volatile FixedStepTimer stepTimer = null;
+
+    private boolean parallelSystemProcessing = false;
+    private SystemScheduler systemScheduler = null;
 
     public DefaultWorld() {
         this(1);
@@ -52,6 +120,58 @@ public class DefaultWorld implements World {
         this.simulationStepMilliseconds = simulationStepMilliseconds;
     }
 
+    public int getMaxCatchUpSteps() {
+        return maxCatchUpSteps;
+    }
+
+    /**
+     * @param maxCatchUpSteps max number of simulation steps that are run back to back if processing has fallen behind.
+     *                        Any further missed steps are dropped.  Zero to never catch up.
+     */
+    public void setMaxCatchUpSteps(int maxCatchUpSteps) {
+        ParameterChecker.checkNonNegativeInteger(maxCatchUpSteps, "maxCatchUpSteps");
+
+        this.maxCatchUpSteps = maxCatchUpSteps;
+        final FixedStepTimer timer = stepTimer;
+        if (timer != null) timer.setMaxCatchUpSteps(maxCatchUpSteps);
+    }
+
+    /**
+     * @return timer used by the simulation loop, with step statistics, or null if the simulation loop has not been started.
+     */
+    public FixedStepTimer getStepTimer() {
+        return stepTimer;
+    }
+
+    /**
+     * @return how far the current time is from the last simulated step towards the next one, in the range 0..1.
+     *         Can be used to interpolate rendered positions between simulation steps.  Zero if the simulation loop is not running.
+     */
+    public double getInterpolationAlpha() {
+        final FixedStepTimer timer = stepTimer;
+        if (timer == null) return 0;
+        else return timer.getInterpolationAlpha();
+    }
+
+    /**
+     * @return true if systems that do not access the same components are processed in parallel.
+     */
+    public final boolean isParallelSystemProcessing() {
+        return parallelSystemProcessing;
+    }
+
+    /**
+     * @param parallelSystemProcessing if true, systems that have declared their component access and do not write components
+     *                                 used by each other are processed in parallel, see SystemScheduler.
+     *                                 If false, systems are processed one at a time in the order they were added.
+     *                                 Should be called before init.
+     */
+    public final void setParallelSystemProcessing(boolean parallelSystemProcessing) {
+        if (initialized.get()) throw new IllegalStateException("setParallelSystemProcessing must be called before init is called.");
+
+        this.parallelSystemProcessing = parallelSystemProcessing;
+    }
+
     @Override
     public final <T extends EntitySystem> T addSystem(T entitySystem) {
         ParameterChecker.checkNotAlreadyContained(entitySystem, entitySystems, "entitySystems");
@@ -74,19 +194,84 @@ public class DefaultWorld implements World {
         return (T) entitySystem;
     }
 
+    @Override
+    public final <T extends Component> BoundedPool<T> addComponentPool(Class<T> componentType, int maxSize) {
+        ParameterChecker.checkNotNull(componentType, "componentType");
+        ParameterChecker.checkNotAlreadyContained(componentType, componentPools, "componentPools");
+
+        final BoundedPool<T> pool = new BoundedPool<T>(maxSize);
+        componentPools.put(componentType, (BoundedPool<Component>) pool);
+        return pool;
+    }
+
+    /**
+     * @return the pool for the specified component base type, or null if there is none.
+     */
+    public final <T extends Component> BoundedPool<T> getComponentPool(Class<T> componentType) {
+        return (BoundedPool<T>) componentPools.get(componentType);
+    }
+
+    @Override
+    public final <T extends Component> T obtainComponent(Class<T> componentType) {
+        final BoundedPool<Component> pool = componentPools.get(componentType);
+        if (pool == null) return null;
+        else return componentType.cast(pool.obtain());
+    }
+
+    @Override
+    public final void recycleComponent(Component component) {
+        if (componentPools.containsKey(component.getBaseType())) removedComponents.add(component);
+    }
+
+    @Override
+    public final <T extends ColumnStore<?>> T addColumnStore(T columnStore) {
+        ParameterChecker.checkNotAlreadyContained(columnStore, columnStores, "columnStores");
+        if (initialized.get()) throw new IllegalStateException("addColumnStore must be called before init is completed.");
+
+        final Class<?> componentType = columnStore.getComponentType();
+        if (columnStoreLookup.containsKey(componentType)) throw new IllegalStateException("A column store for the component type '"+componentType+"' is already added!");
+
+        synchronized (entityIndexLock) {
+            columnStore.ensureCapacity(nextFreeEntityIndex);
+            columnStores.add(columnStore);
+        }
+        columnStoreLookup.put(componentType, columnStore);
+
+        return columnStore;
+    }
+
+    @Override
+    public final <V extends ColumnView> ColumnStore<V> getColumnStore(Class<V> componentType) {
+        // Stores are only added with their own component type as key
+        return (ColumnStore<V>) columnStoreLookup.get(componentType);
+    }
+
+    /**
+     * @return the column stores added to this world.  Only changed before the world is initialized.
+     */
+    final List<ColumnStore<?>> getColumnStores() {
+        return columnStores;
+    }
+
     @Override
     public final void init() {
-        // TODO: Add logging support
-        System.out.println("Initializing.");
+        LOG.info("Initializing.");
 
         if (initialized.get()) throw new IllegalStateException("World was already initialized, can not initialize again");
 
         registerSystems();
 
+        if (parallelSystemProcessing) {
+            systemScheduler = new SystemScheduler(entitySystems, WorkerPool.getShared());
+        }
+
         for (EntitySystem entitySystem : entitySystems) {
             entitySystem.init(this);
         }
 
+        buildChangeRouting();
+        assignProcessingPhases();
+
         initialized.set(true);
 
         refreshEntities();
@@ -109,18 +294,21 @@ public class DefaultWorld implements World {
         // Initialize if needed
         if (!initialized.get()) init();
 
-        // Main simulation loop
-        Ticker ticker = new Ticker();
+        // Main simulation loop, runs steps at fixed points in time, so that processing time does not slow down the simulation rate
+        final Ticker ticker = new Ticker();
+        final FixedStepTimer timer = new FixedStepTimer(simulationStepMilliseconds, maxCatchUpSteps);
+        stepTimer = timer;
         running.set(true);
         while(running.get()) {
-            ticker.tick();
+            final int steps = timer.awaitSteps();
+            for (int i = 0; i < steps && running.get(); i++) {
+                timer.stepStarted();
 
-            process(ticker);
+                // Game time advances by exactly one step for each process
+                ticker.tick(simulationStepMilliseconds);
+                process(ticker);
 
-            try {
-                Thread.sleep(simulationStepMilliseconds);
-            } catch (InterruptedException e) {
-                // Ignore
+                timer.stepEnded();
             }
         }
 
@@ -144,17 +332,29 @@ public class DefaultWorld implements World {
         ParameterChecker.checkNotNull(entity, "entity");
         ParameterChecker.check(entity.getWorld() == this, "entity", "The world of the removed entity should be the same as the world it is removed from.");
 
-        addedAndRemovedEntities.put(entity, false);
+        recordCommand(EntityCommandBuffer.DESTROY, entity, -1);
     }
 
     @Override
     public Entity getEntity(long entityId) {
-        return entityLookup.get(entityId);
+        final int entityIndex = EntityIds.getIndex(entityId);
+        final AtomicReferenceArray<Entity> entities = entitiesByIndex;
+        if (entityIndex < 0 || entityIndex >= entities.length()) return null;
+
+        // Check the whole id, so that stale ids for removed entities are not resolved to a later entity with the same index
+        final Entity entity = entities.get(entityIndex);
+        if (entity == null || entity.getEntityId() != entityId) return null;
+        else return entity;
+    }
+
+    @Override
+    public void onEntityComponentAdded(Entity entity, int componentTypeId) {
+        recordCommand(EntityCommandBuffer.ADD_COMPONENT, entity, componentTypeId);
     }
 
     @Override
-    public void onEntityComponentsChanged(Entity entity) {
-        changedEntities.put(entity, true);
+    public void onEntityComponentRemoved(Entity entity, int componentTypeId) {
+        recordCommand(EntityCommandBuffer.REMOVE_COMPONENT, entity, componentTypeId);
     }
 
 
@@ -163,8 +363,13 @@ public class DefaultWorld implements World {
         refreshEntities();
 
         // Process entities with systems
-        for (EntitySystem entitySystem : entitySystems) {
-            entitySystem.process();
+        if (systemScheduler != null) {
+            systemScheduler.process(ticker);
+        }
+        else {
+            for (EntitySystem entitySystem : entitySystems) {
+                entitySystem.process(ticker);
+            }
         }
 
     }
@@ -172,13 +377,13 @@ public class DefaultWorld implements World {
     @Override
     public Entity createEntity(Component... components) {
         // Get id
-        final long entityId = nextFreeEntityId.getAndIncrement();
+        final long entityId = allocateEntityId();
 
-        // Create entity class
-        Entity entity = new Entity(entityId, this, components);
+        // Entities are not recycled, as references to removed entities may be kept around and must not alias new entities
+        final Entity entity = new Entity(entityId, this, components);
 
         // Schedule for addition
-        addedAndRemovedEntities.put(entity, true);
+        recordCommand(EntityCommandBuffer.CREATE, entity, -1);
 
         return entity;
     }
@@ -201,6 +406,26 @@ public class DefaultWorld implements World {
     protected void onShutdown() {
     }
 
+    /**
+     * Called when an entity has been added to the world, during the refresh at the start of world processing, before systems are notified.
+     */
+    protected void handleAddedEntity(Entity entity) {
+    }
+
+    /**
+     * Called when an entity is removed from the world, during the refresh at the start of world processing,
+     * after systems are notified and before the entity is cleaned up.
+     */
+    protected void handleRemovedEntity(Entity entity) {
+    }
+
+    /**
+     * Called for entities whose components have been added, removed or replaced, during the refresh at the start of world processing,
+     * before systems are notified.
+     */
+    protected void handleChangedEntity(Entity entity) {
+    }
+
 
     private void doShutdown() {
         if (initialized.get()) {
@@ -211,6 +436,7 @@ public class DefaultWorld implements World {
                 entitySystems.get(i).shutdown();
             }
 
+            systemScheduler = null;
             initialized.set(false);
         }
         else {
@@ -218,56 +444,346 @@ public class DefaultWorld implements World {
         }
     }
 
-    private void refreshEntities() {
-        // Add and remove entities marked for addition or removal.
-        for (Map.Entry<Entity, Boolean> entry : addedAndRemovedEntities.entrySet()) {
-            boolean add = entry.getValue();
-            Entity entity = entry.getKey();
+    private long allocateEntityId() {
+        synchronized (entityIndexLock) {
+            final int entityIndex;
+            if (releasedEntityIndexCount > 0) {
+                entityIndex = releasedEntityIndexes[--releasedEntityIndexCount];
+            }
+            else {
+                entityIndex = nextFreeEntityIndex++;
+                for (ColumnStore<?> columnStore : columnStores) {
+                    columnStore.ensureCapacity(nextFreeEntityIndex);
+                }
 
-            if (add) {
-                // Add entity
-                entities.add(entity);
+                if (entityIndex >= generationsByIndex.length) {
+                    generationsByIndex = Arrays.copyOf(generationsByIndex, generationsByIndex.length * 2);
+                }
+                generationsByIndex[entityIndex] = 1;
+            }
+
+            return EntityIds.create(entityIndex, generationsByIndex[entityIndex]);
+        }
+    }
+
+    private void releaseEntityIndex(int entityIndex) {
+        synchronized (entityIndexLock) {
+            // Invalidate ids using the index, skip zero so that ids are never zero
+            int generation = generationsByIndex[entityIndex] + 1;
+            if (generation == 0) generation = 1;
+            generationsByIndex[entityIndex] = generation;
 
-                entityLookup.put(entity.getEntityId(), entity);
+            if (releasedEntityIndexCount >= releasedEntityIndexes.length) {
+                releasedEntityIndexes = Arrays.copyOf(releasedEntityIndexes, releasedEntityIndexes.length * 2);
+            }
+            releasedEntityIndexes[releasedEntityIndexCount++] = entityIndex;
+        }
+    }
 
-                // Notify systems
-                for (EntitySystem entitySystem : entitySystems) {
+    private void setEntityAtIndex(int entityIndex, Entity entity) {
+        final AtomicReferenceArray<Entity> entities = entitiesByIndex;
+        if (entityIndex >= entities.length()) {
+            // Only the world thread changes the array, so the copy is not missing any later changes
+            final AtomicReferenceArray<Entity> grownEntities = new AtomicReferenceArray<Entity>(Math.max(entityIndex + 1, entities.length() * 2));
+            for (int i = 0; i < entities.length(); i++) {
+                grownEntities.lazySet(i, entities.get(i));
+            }
+            grownEntities.set(entityIndex, entity);
+            entitiesByIndex = grownEntities;
+        }
+        else {
+            entities.set(entityIndex, entity);
+        }
+    }
+
+    private void recordCommand(byte type, Entity entity, int componentTypeId) {
+        threadCommandBuffer.get().record(nextCommandSequence.getAndIncrement(), type, entity, componentTypeId);
+    }
+
+    private void refreshEntities() {
+        // Apply the commands recorded by all threads, in the order they were issued
+        drainCommands();
+        playBackCommands();
+
+        // Remove the removed entities from the entity set in one pass
+        if (!removedEntities.isEmpty()) {
+            entities.removeAll(removedEntities);
+        }
+
+        // Notify the systems interested in the component types of added entities
+        for (Entity entity : addedEntities) {
+            if (!removedEntityIndexes.contains(entity.getEntityIndex())) {
+                final IdSet componentTypeIds = entity.getComponentTypeIds();
+                entity.refreshedComponentTypeIds = componentTypeIds;
+                for (EntitySystem entitySystem : getSystemsHandling(componentTypeIds)) {
                     entitySystem.onEntityAdded(entity);
                 }
             }
-            else {
-                // Remove entity (if contained)
-                final boolean wasRemoved = entities.remove(entity);
+        }
+        addedEntities.clear();
+
+        for (Entity entity : removedEntities) {
+            // Notify the systems that were notified of the component types the entity had at the last refresh,
+            // entities removed before their first refresh were never added to any system
+            final IdSet refreshedComponentTypeIds = entity.refreshedComponentTypeIds;
+            if (refreshedComponentTypeIds != null) {
+                for (EntitySystem entitySystem : getSystemsHandling(refreshedComponentTypeIds)) {
+                    entitySystem.onEntityRemoved(entity);
+                }
+            }
+
+            handleRemovedEntity(entity);
+
+            // Stop resolving the id before the entity is cleaned up
+            final int entityIndex = entity.getEntityIndex();
+            setEntityAtIndex(entityIndex, null);
+
+            // Cleanup entity
+            entity.onRemoved();
+
+            releaseEntityIndex(entityIndex);
+        }
+        removedEntities.clear();
+        removedEntityIndexes.clear();
+
+        // Notify about changed entities, once for each entity
+        final AtomicReferenceArray<Entity> indexedEntities = entitiesByIndex;
+        for (int entityIndex = changedEntityIndexes.nextId(0); entityIndex >= 0; entityIndex = changedEntityIndexes.nextId(entityIndex + 1)) {
+            final Entity entity = indexedEntities.get(entityIndex);
+            if (entity == null) continue;
+
+            handleChangedEntity(entity);
+
+            // Determine the component types that were added or removed since the last refresh
+            final IdSet componentTypeIds = entity.getComponentTypeIds();
+            flippedComponentTypeIds.set(componentTypeIds);
+            if (entity.refreshedComponentTypeIds != null) flippedComponentTypeIds.xor(entity.refreshedComponentTypeIds);
+            entity.refreshedComponentTypeIds = componentTypeIds;
+
+            // Notify only the systems that handle some of the flipped component types
+            if (!flippedComponentTypeIds.isEmpty()) {
+                selectSystemsToNotify(flippedComponentTypeIds);
+                for (int position = systemsToNotify.nextId(0); position >= 0; position = systemsToNotify.nextId(position + 1)) {
+                    entitySystems.get(position).onEntityComponentsChanged(entity);
+                }
+            }
 
-                if (wasRemoved) {
-                    // Notify systems
-                    for (EntitySystem entitySystem : entitySystems) {
-                        entitySystem.onEntityRemoved(entity);
+            // Notify the systems that handle component types whose components were replaced, if the types were not added or removed
+            final IdSet replacedComponentTypeIds = entity.replacedComponentTypeIds;
+            if (replacedComponentTypeIds != null && !replacedComponentTypeIds.isEmpty()) {
+                replacedComponentTypeIds.removeAll(flippedComponentTypeIds);
+                if (!replacedComponentTypeIds.isEmpty()) {
+                    selectSystemsToNotify(replacedComponentTypeIds);
+                    for (int position = systemsToNotify.nextId(0); position >= 0; position = systemsToNotify.nextId(position + 1)) {
+                        entitySystems.get(position).onEntityComponentsReplaced(entity);
                     }
+                }
+                replacedComponentTypeIds.clear();
+            }
+        }
+        changedEntityIndexes.clear();
 
-                    long entityId = entity.getEntityId();
+        // Systems have been notified and chunks rebuilt, so nothing refers to the removed components anymore
+        releaseRemovedComponents();
 
-                    // Cleanup entity
-                    entity.onRemoved();
+        recycleCommands();
+    }
 
-                    entityLookup.remove(entityId);
+    private void releaseRemovedComponents() {
+        Component component;
+        while ((component = removedComponents.poll()) != null) {
+            componentPools.get(component.getBaseType()).release(component);
+        }
+    }
 
-                    // TODO: Recycle entity
+    private void selectSystemsToNotify(IdSet componentTypeIds) {
+        systemsToNotify.set(systemsNotifiedOfAllChanges);
+        for (int typeId = componentTypeIds.nextId(0); typeId >= 0; typeId = componentTypeIds.nextId(typeId + 1)) {
+            if (typeId < systemPositionsByComponentType.length) {
+                for (int position : systemPositionsByComponentType[typeId]) {
+                    systemsToNotify.add(position);
                 }
             }
         }
-        addedAndRemovedEntities.clear();
+    }
 
-        // Notify about changed entities
-        for (Map.Entry<Entity, Boolean> entry : changedEntities.entrySet()) {
-            final Entity entity = entry.getKey();
+    private void drainCommands() {
+        for (EntityCommandBuffer commandBuffer : commandBuffers) {
+            // Check before draining, an ended thread can not record more commands after the drain
+            if (!commandBuffer.isOwnerAlive()) commandBuffers.remove(commandBuffer);
 
-            // Notify systems
-            for (EntitySystem entitySystem : entitySystems) {
-                entitySystem.onEntityComponentsChanged(entity);
+            final EntityCommandBuffer.Commands commands = commandBuffer.drain();
+            if (commands.size > 0) {
+                drainedBuffers.add(commandBuffer);
+                drainedCommands.add(commands);
+            }
+            else {
+                commandBuffer.recycle(commands);
+            }
+        }
+    }
+
+    /**
+     * @return number of threads that have recorded entity changes and not ended before the last world process.
+     */
+    int getCommandBufferCount() {
+        return commandBuffers.size();
+    }
+
+    private void recycleCommands() {
+        for (int i = 0; i < drainedBuffers.size(); i++) {
+            drainedBuffers.get(i).recycle(drainedCommands.get(i));
+        }
+        drainedBuffers.clear();
+        drainedCommands.clear();
+    }
+
+    private void playBackCommands() {
+        final int commandListCount = drainedCommands.size();
+        if (playbackPositions.length < commandListCount) playbackPositions = new int[commandListCount * 2];
+        Arrays.fill(playbackPositions, 0, commandListCount, 0);
+
+        // Merge the command lists by sequence number, each list is already in sequence order
+        while (true) {
+            int nextList = -1;
+            long nextSequence = Long.MAX_VALUE;
+            for (int i = 0; i < commandListCount; i++) {
+                final EntityCommandBuffer.Commands commands = drainedCommands.get(i);
+                final int position = playbackPositions[i];
+                if (position < commands.size && commands.sequences[position] < nextSequence) {
+                    nextSequence = commands.sequences[position];
+                    nextList = i;
+                }
+            }
+            if (nextList < 0) break;
+
+            final EntityCommandBuffer.Commands commands = drainedCommands.get(nextList);
+            final int position = playbackPositions[nextList]++;
+            playBackCommand(commands.types[position], commands.entities[position], commands.componentTypeIds[position]);
+        }
+    }
+
+    private void playBackCommand(byte type, Entity entity, int componentTypeId) {
+        final int entityIndex = entity.getEntityIndex();
+        final boolean inWorld = entities.contains(entity) && !removedEntityIndexes.contains(entityIndex);
+
+        switch (type) {
+            case EntityCommandBuffer.CREATE:
+                if (!inWorld && entity.getWorld() == this) {
+                    entities.add(entity);
+                    setEntityAtIndex(entityIndex, entity);
+                    handleAddedEntity(entity);
+                    addedEntities.add(entity);
+
+                    // Removal recorded by another thread before the creation could be played back
+                    if (removedBeforeAddedEntityIndexes.contains(entityIndex)) {
+                        removedBeforeAddedEntityIndexes.remove(entityIndex);
+                        removedEntityIndexes.add(entityIndex);
+                        removedEntities.add(entity);
+                    }
+                }
+                break;
+
+            case EntityCommandBuffer.DESTROY:
+                if (inWorld) {
+                    removedEntityIndexes.add(entityIndex);
+                    removedEntities.add(entity);
+                    changedEntityIndexes.remove(entityIndex);
+                }
+                else if (!entities.contains(entity) && entity.getWorld() == this) {
+                    // The creation of the entity has not been played back yet
+                    removedBeforeAddedEntityIndexes.add(entityIndex);
+                }
+                break;
+
+            case EntityCommandBuffer.ADD_COMPONENT:
+                if (inWorld) {
+                    changedEntityIndexes.add(entityIndex);
+
+                    // Adding a type that the entity had at the last refresh replaces its component
+                    final IdSet refreshedComponentTypeIds = entity.refreshedComponentTypeIds;
+                    if (refreshedComponentTypeIds != null && refreshedComponentTypeIds.contains(componentTypeId)) {
+                        if (entity.replacedComponentTypeIds == null) entity.replacedComponentTypeIds = new IdSet();
+                        entity.replacedComponentTypeIds.add(componentTypeId);
+                    }
+                }
+                break;
+
+            case EntityCommandBuffer.REMOVE_COMPONENT:
+                if (inWorld) {
+                    changedEntityIndexes.add(entityIndex);
+                }
+                break;
+
+            default:
+                throw new IllegalStateException("Unknown entity command type " + type);
+        }
+    }
+
+    private void assignProcessingPhases() {
+        // Spread systems with the same processing interval evenly over the interval, so that they are not all processed on the same tick
+        final Map<Double, List<EntitySystem>> systemsByInterval = new LinkedHashMap<Double, List<EntitySystem>>();
+        for (EntitySystem entitySystem : entitySystems) {
+            final double interval = entitySystem.getProcessingIntervalSeconds();
+            if (interval > 0) {
+                List<EntitySystem> systems = systemsByInterval.get(interval);
+                if (systems == null) {
+                    systems = new ArrayList<EntitySystem>();
+                    systemsByInterval.put(interval, systems);
+                }
+                systems.add(entitySystem);
+            }
+        }
+
+        for (Map.Entry<Double, List<EntitySystem>> entry : systemsByInterval.entrySet()) {
+            final double interval = entry.getKey();
+            final List<EntitySystem> systems = entry.getValue();
+            for (int i = 0; i < systems.size(); i++) {
+                systems.get(i).setProcessingPhaseSeconds(interval * i / systems.size());
             }
         }
     }
 
+    private void buildChangeRouting() {
+        // Find the systems interested in each component type
+        final List<List<Integer>> positionsByComponentType = new ArrayList<List<Integer>>();
+        systemsNotifiedOfAllChanges.clear();
+        for (int position = 0; position < entitySystems.size(); position++) {
+            final IdSet handledComponentTypeIds = entitySystems.get(position).getHandledComponentTypeIds();
+            if (handledComponentTypeIds == null || handledComponentTypeIds.isEmpty()) {
+                systemsNotifiedOfAllChanges.add(position);
+            }
+            else {
+                for (int typeId = handledComponentTypeIds.nextId(0); typeId >= 0; typeId = handledComponentTypeIds.nextId(typeId + 1)) {
+                    while (positionsByComponentType.size() <= typeId) positionsByComponentType.add(new ArrayList<Integer>());
+                    positionsByComponentType.get(typeId).add(position);
+                }
+            }
+        }
+
+        systemPositionsByComponentType = new int[positionsByComponentType.size()][];
+        for (int typeId = 0; typeId < systemPositionsByComponentType.length; typeId++) {
+            final List<Integer> positions = positionsByComponentType.get(typeId);
+            systemPositionsByComponentType[typeId] = new int[positions.size()];
+            for (int i = 0; i < positions.size(); i++) {
+                systemPositionsByComponentType[typeId][i] = positions.get(i);
+            }
+        }
+    }
 
+    private EntitySystem[] getSystemsHandling(IdSet componentTypeIds) {
+        EntitySystem[] systems = systemsByComponentTypes.get(componentTypeIds);
+        if (systems == null) {
+            final List<EntitySystem> matchingSystems = new ArrayList<EntitySystem>();
+            for (EntitySystem entitySystem : entitySystems) {
+                final IdSet handledComponentTypeIds = entitySystem.getHandledComponentTypeIds();
+                if (handledComponentTypeIds == null || componentTypeIds.containsAll(handledComponentTypeIds)) {
+                    matchingSystems.add(entitySystem);
+                }
+            }
+            systems = matchingSystems.toArray(new EntitySystem[matchingSystems.size()]);
+            systemsByComponentTypes.put(new IdSet(componentTypeIds), systems);
+        }
+        return systems;
+    }
 }
@@ -2,10 +2,10 @@ package org.tradeworld.entity;
 
 import org.tradeworld.utils.ParameterChecker;
 
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * An entity that exists in a World.  An entity has zero or more components, which contain data for various aspects
@@ -14,20 +14,39 @@ import java.util.concurrent.atomic.AtomicLong;
 public final class Entity {
 
     private long entityId;
+    private int entityIndex;
     private World world;
-    private final ConcurrentMap<Class<? extends Component>, Component> components = new ConcurrentHashMap<Class<? extends Component>, Component>();
-    private AtomicLong handledBySystems = new AtomicLong(0);
-    private AtomicLong containedComponentTypes = new AtomicLong(0);
-    private final Object changeLock = new Object();
+
+    // Replaced with an updated copy when components are added or removed, so it can be read and changed without locking.
+    private final AtomicReference<ComponentTable> components = new AtomicReference<ComponentTable>(ComponentTable.EMPTY);
+
+    // Only modified by the world during the common refresh phase.
+    private final IdSet handledBySystems = new IdSet();
+
+    // Component types of the entity when the world last notified systems about it, maintained by the world.
+    IdSet refreshedComponentTypeIds = null;
+
+    // Component types whose components were replaced since the last refresh, maintained by the world.
+    IdSet replacedComponentTypeIds = null;
+
+    // Location of the entity in an ArchetypeWorld, maintained by the world.
+    EntityChunk chunk = null;
+    int chunkIndex = -1;
+
+    // Where the column component values of the entity are stored, see Column.  Maintained by the world.
+    int columnSlot;
 
     /**
      * Creates a new entity and adds the specified components to it.
+     * @param entityId id of the entity, see EntityIds.  Contains the dense index of the entity.
      * @param world world that this entity exists in.
      * @param components initial components to add.
      */
     protected Entity(long entityId, World world, Component ... components) {
         this.entityId = entityId;
+        this.entityIndex = EntityIds.getIndex(entityId);
         this.world = world;
+        columnSlot = entityIndex;
 
         // Add components
         for (Component component : components) {
@@ -37,109 +56,164 @@ public final class Entity {
 
     /**
      * Removes this entity from the game world on the next world process update.
+     * Throws an IllegalStateException if the entity has already been removed.
      */
     public void remove() {
-        world.removeEntity(this);
+        getLiveWorld().removeEntity(this);
     }
 
     /**
-     * @return the world that this entity is stored in.
+     * @return the world that this entity is stored in, or null if the entity has been removed.
      */
     public World getWorld() {
         return world;
     }
 
     /**
-     * @return id of this entity.
+     * @return id of this entity, zero if the entity has been removed.  See EntityIds.
      */
     public long getEntityId() {
         return entityId;
     }
 
     /**
-     * @return all components in this entity, as a map from component type id to component.
+     * @return the dense index of this entity.  Indexes of removed entities are reused for new entities.
+     */
+    public int getEntityIndex() {
+        return entityIndex;
+    }
+
+    /**
+     * @return a snapshot of the components in this entity, as a map from component base type to component.
+     *         Does not include components stored in ColumnStores.
      */
     public Map<Class<? extends Component>, Component> getComponents() {
-        return components;
+        final ComponentTable table = components.get();
+        final Map<Class<? extends Component>, Component> snapshot = new HashMap<Class<? extends Component>, Component>();
+        final IdSet componentTypeIds = table.getComponentTypeIds();
+        for (int typeId = componentTypeIds.nextId(0); typeId >= 0; typeId = componentTypeIds.nextId(typeId + 1)) {
+            final Component component = table.get(typeId);
+            if (component != null) snapshot.put(component.getBaseType(), component);
+        }
+        return Collections.unmodifiableMap(snapshot);
     }
 
     /**
      * @return the component with the specified type, or null if nor present in this entity.
+     *         Does not register the type with the IdRegistry if it is not yet known.
+     *         For column components a new view is returned on each call, when accessing many entities
+     *         reuse one view with ColumnStore.get(entity, view) instead.
      */
     public <T extends Component> T getComponent(Class<T> type) {
-        return (T) components.get(type);
+        final int componentTypeId = IdRegistry.findComponentTypeId(type);
+        if (componentTypeId < 0) return null;
+
+        final ComponentTable table = components.get();
+        final Component component = table.get(componentTypeId);
+        if (component == null && table.contains(componentTypeId)) {
+            // Column component
+            final ColumnStore<?> store = getColumnStore(type);
+            if (store != null) return type.cast(store.get(this));
+        }
+        return (T) component;
+    }
+
+    /**
+     * @return the component with the specified type id, or null if not present in this entity, or if it is stored in a ColumnStore.
+     */
+    public Component getComponent(int componentTypeId) {
+        return components.get().get(componentTypeId);
     }
 
     /**
      * Adds the specified component to this entity.  The component will replace any previous component with the same componentTypeId.
+     * Can be called from several threads at the same time without locking.
+     * Throws an IllegalStateException if the entity has been removed.
      */
     public void addComponent(Component component) {
         ParameterChecker.checkNotNull(component, "component");
+        if (component instanceof ColumnView) throw new IllegalArgumentException("Column components should be added with ColumnStore.add");
+        final World world = getLiveWorld();
 
-        synchronized (changeLock) {
-            // Add component
-            final Component oldValue = components.put(component.getBaseType(), component);
+        final int componentTypeId = component.getComponentTypeId();
 
-            // Ignore cases where we replace a component with itself
-            if (oldValue != component) {
-                // Update ids
-                containedComponentTypes.set(IdRegistry.setId(containedComponentTypes.get(), component.getComponentTypeId(), true));
+        // Ignore cases where we replace a component with itself
+        if (components.get().get(componentTypeId) == component) return;
 
-                // Notify previous component, if any
-                if (oldValue != null) oldValue.onRemoved();
+        // Notify new component, fails if it is already in some entity
+        component.setEntity(this);
 
-                // Notify new component
-                component.setEntity(this);
+        // Add component
+        ComponentTable oldTable;
+        do {
+            oldTable = components.get();
+        } while (!components.compareAndSet(oldTable, oldTable.with(componentTypeId, component)));
 
-                // Notify world
-                world.onEntityComponentsChanged(this);
-            }
+        // Notify previous component, if any
+        final Component oldValue = oldTable.get(componentTypeId);
+        if (oldValue != null) {
+            oldValue.onRemoved();
+            world.recycleComponent(oldValue);
         }
+
+        // Notify world
+        world.onEntityComponentAdded(this, componentTypeId);
     }
 
     /**
      * Removes the component of the specified type from this entity.
+     * Can be called from several threads at the same time without locking.
+     * Throws an IllegalStateException if the entity has been removed.
      */
     public <T extends Component> void removeComponent(final Class<T> type) {
-        synchronized (changeLock) {
-            // Remove component
-            final Component oldComponent = components.remove(type);
+        final World world = getLiveWorld();
+        final int componentTypeId = IdRegistry.findComponentTypeId(type);
+        if (componentTypeId < 0) return;
 
-            // Check if some component was removed
-            if (oldComponent != null) {
-                // Update ids
-                containedComponentTypes.set(IdRegistry.setId(containedComponentTypes.get(), oldComponent.getComponentTypeId(), false));
+        // Remove component
+        ComponentTable oldTable;
+        do {
+            oldTable = components.get();
+            if (!oldTable.contains(componentTypeId)) return;
+        } while (!components.compareAndSet(oldTable, oldTable.without(componentTypeId)));
 
-                // Notify removed component
-                oldComponent.onRemoved();
+        // Notify removed component, column components have no component object
+        final Component oldComponent = oldTable.get(componentTypeId);
+        if (oldComponent != null) oldComponent.onRemoved();
 
-                // Notify world
-                world.onEntityComponentsChanged(this);
+        // Notify world
+        world.onEntityComponentRemoved(this, componentTypeId);
 
-                // TODO: Recycle component?
-            }
-        }
+        if (oldComponent != null) world.recycleComponent(oldComponent);
     }
 
     /**
      * @return true if this entity contains a component with the specified type.
      */
     public <T extends Component> boolean containsComponent(Class<T> type) {
-        return components.containsKey(type);
+        final int componentTypeId = IdRegistry.findComponentTypeId(type);
+        return componentTypeId >= 0 && components.get().contains(componentTypeId);
     }
 
     /**
      * @return true if this entity contains a component with the specified type id.
      */
     public boolean containsComponent(int componentTypeId) {
-        return IdRegistry.containsId(containedComponentTypes.get(), componentTypeId);
+        return components.get().contains(componentTypeId);
+    }
+
+    /**
+     * @return ids of the types of the components in this entity.  Should not be modified.
+     */
+    public IdSet getComponentTypeIds() {
+        return components.get().getComponentTypeIds();
     }
 
     /**
      * @return true if this entity contains all components of the specified type ids.
      */
-    public boolean containsAllComponents(long componentTypeIds) {
-        return IdRegistry.containsAllIds(containedComponentTypes.get(), componentTypeIds);
+    public boolean containsAllComponents(IdSet componentTypeIds) {
+        return components.get().getComponentTypeIds().containsAll(componentTypeIds);
     }
 
     /**
@@ -147,7 +221,7 @@ public final class Entity {
      *         An entity can be handled by more than one system.
      */
     public boolean isHandledBySystem(int systemId) {
-        return IdRegistry.containsId(handledBySystems.get(), systemId);
+        return handledBySystems.contains(systemId);
     }
 
     /**
@@ -155,27 +229,63 @@ public final class Entity {
      * An entity can be handled by more than one system.
      */
     public void setHandledBySystem(int systemId, boolean handled) {
-        handledBySystems.set(IdRegistry.setId(handledBySystems.get(), systemId, handled));
+        handledBySystems.set(systemId, handled);
     }
 
 
     /**
      * Called when this entity was removed from the game world, during world processing startup phase.
-     * Prepares the entity for recycling.
+     * Recycles the components of the entity, after this the entity can not be used any more.
      */
     public void onRemoved() {
         // Notify components
-        for (Component component : components.values()) {
-            component.onRemoved();
-
-            // TODO: Recycle component?
+        final ComponentTable table = components.getAndSet(ComponentTable.EMPTY);
+        final IdSet componentTypeIds = table.getComponentTypeIds();
+        for (int typeId = componentTypeIds.nextId(0); typeId >= 0; typeId = componentTypeIds.nextId(typeId + 1)) {
+            final Component component = table.get(typeId);
+            if (component != null) {
+                component.onRemoved();
+                world.recycleComponent(component);
+            }
         }
 
         // Cleanup entity
-        components.clear();
-        handledBySystems.set(0);
-        containedComponentTypes.set(0);
+        handledBySystems.clear();
+        refreshedComponentTypeIds = null;
+        replacedComponentTypeIds = null;
         entityId = 0;
+        entityIndex = -1;
         world = null;
     }
+
+    /**
+     * Adds a column component with default values, if the entity does not already have it.
+     */
+    void addColumnComponent(ColumnStore<?> store) {
+        final World world = getLiveWorld();
+        final int componentTypeId = store.getComponentTypeId();
+        if (components.get().contains(componentTypeId)) return;
+
+        store.reset(columnSlot);
+
+        ComponentTable oldTable;
+        do {
+            oldTable = components.get();
+            if (oldTable.contains(componentTypeId)) return;
+        } while (!components.compareAndSet(oldTable, oldTable.with(componentTypeId, null)));
+
+        world.onEntityComponentAdded(this, componentTypeId);
+    }
+
+    private World getLiveWorld() {
+        final World world = this.world;
+        if (world == null) throw new IllegalStateException("The entity has been removed from its world, and can not be changed any more");
+        return world;
+    }
+
+    private ColumnStore<?> getColumnStore(Class<? extends Component> type) {
+        final World world = this.world;
+        if (world == null || !ColumnView.class.isAssignableFrom(type)) return null;
+        else return world.getColumnStore(type.asSubclass(ColumnView.class));
+    }
 }
@@ -0,0 +1,192 @@
+package org.tradeworld.entity;
+
+import java.lang.reflect.Array;
+import java.util.List;
+
+/**
+ * A fixed size block of entities that all have the same component types, with the components of each type stored
+ * in a dense array, so that systems can iterate them without looking up each component from its entity.
+ *
+ * The component arrays are updated by the ArchetypeWorld during the refresh at the start of world processing,
+ * changes to entities made while systems are processing are visible in the chunks from the next world process on.
+ *
+ * The values of column components are stored in primitive arrays owned by the chunk, one for each column of each
+ * ColumnStore, get them with getValues.  The entities read and write these arrays through their views, so unlike
+ * the component arrays they are always up to date.  The component arrays of column component types are empty.
+ */
+public final class EntityChunk {
+
+    private final Archetype archetype;
+    private final int chunkNumber;
+    private final Entity[] entities;
+    private final Component[][] columns;
+    private int size = 0;
+
+    /**
+     * @param chunkNumber number of the chunk that is unique among the chunks of the world, selects the column pages of the chunk.
+     */
+    EntityChunk(Archetype archetype, int capacity, int chunkNumber) {
+        this.archetype = archetype;
+        this.chunkNumber = chunkNumber;
+
+        entities = new Entity[capacity];
+
+        // Create component arrays with the actual component type, so that they can be returned as typed arrays
+        final int columnCount = archetype.getColumnCount();
+        columns = new Component[columnCount][];
+        for (int column = 0; column < columnCount; column++) {
+            columns[column] = (Component[]) Array.newInstance(archetype.getColumnType(column), capacity);
+        }
+    }
+
+    /**
+     * @return the archetype that this chunk belongs to.  All entities in the chunk have the component types of the archetype.
+     */
+    public Archetype getArchetype() {
+        return archetype;
+    }
+
+    /**
+     * @return number of entities in this chunk.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return max number of entities in this chunk.
+     */
+    public int getCapacity() {
+        return entities.length;
+    }
+
+    /**
+     * @return true if no more entities fit in this chunk.
+     */
+    public boolean isFull() {
+        return size >= entities.length;
+    }
+
+    /**
+     * @return the entity at the specified index, from 0 (inclusive) to size() (exclusive).
+     */
+    public Entity getEntity(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("No entity at index " + index + ", the chunk has " + size + " entities");
+        return entities[index];
+    }
+
+    /**
+     * @param componentType the component base type to get components for.  Must be one of the component types of the archetype.
+     * @return the array with components of the specified type, the component at index i belongs to the entity at index i.
+     *         Only indexes below size() are valid.  The array should not be modified.
+     */
+    public <T extends Component> T[] getComponents(Class<T> componentType) {
+        return (T[]) getComponents(IdRegistry.getComponentTypeId(componentType));
+    }
+
+    /**
+     * @param componentTypeId id of the component type to get components for.  Must be one of the component types of the archetype.
+     * @return the array with components of the specified type, the component at index i belongs to the entity at index i.
+     *         Only indexes below size() are valid.  The array should not be modified.
+     */
+    public Component[] getComponents(int componentTypeId) {
+        final int column = archetype.getColumn(componentTypeId);
+        if (column < 0) throw new IllegalArgumentException("The component type with id " + componentTypeId + " is not part of the archetype " + archetype);
+        return columns[column];
+    }
+
+    /**
+     * @param column a column of a ColumnStore in the world of this chunk.
+     * @return the values of the column in this chunk, the value at index i belongs to the entity at index i.
+     *         Only indexes below size() of entities that have the column component are valid.
+     *         Values may be changed, like with views of the component.
+     */
+    public float[] getValues(FloatColumn column) {
+        return column.getChunkValues(chunkNumber);
+    }
+
+    /**
+     * @param column a column of a ColumnStore in the world of this chunk.
+     * @return the values of the column in this chunk, the value at index i belongs to the entity at index i.
+     *         Only indexes below size() of entities that have the column component are valid.
+     *         Values may be changed, like with views of the component.
+     */
+    public long[] getValues(LongColumn column) {
+        return column.getChunkValues(chunkNumber);
+    }
+
+    int getChunkNumber() {
+        return chunkNumber;
+    }
+
+    /**
+     * Adds the entity to the end of this chunk, and moves its column component values to the chunk.
+     */
+    void add(Entity entity) {
+        if (isFull()) throw new IllegalStateException("The chunk is full");
+
+        final int index = size++;
+        entities[index] = entity;
+        entity.chunk = this;
+        entity.chunkIndex = index;
+        updateComponents(index);
+        moveColumnValues(entity, index);
+    }
+
+    /**
+     * Copies the current components of the entity at the specified index to the component arrays.
+     */
+    void updateComponents(int index) {
+        final Entity entity = entities[index];
+        for (int column = 0; column < columns.length; column++) {
+            columns[column][index] = entity.getComponent(archetype.getColumnTypeId(column));
+        }
+    }
+
+    /**
+     * Moves the entity and components at the specified index in the source chunk to the specified index in this chunk.
+     * The source entry is cleared.
+     */
+    void moveFrom(EntityChunk source, int sourceIndex, int targetIndex) {
+        final Entity entity = source.entities[sourceIndex];
+        entities[targetIndex] = entity;
+        entity.chunk = this;
+        entity.chunkIndex = targetIndex;
+        source.entities[sourceIndex] = null;
+        moveColumnValues(entity, targetIndex);
+
+        for (int column = 0; column < columns.length; column++) {
+            columns[column][targetIndex] = source.columns[column][sourceIndex];
+            source.columns[column][sourceIndex] = null;
+        }
+    }
+
+    /**
+     * Drops the last entry of this chunk.
+     */
+    void removeLast() {
+        size--;
+        entities[size] = null;
+        for (Component[] column : columns) {
+            column[size] = null;
+        }
+    }
+
+    /**
+     * Copies the values of all column stores from the current column slot of the entity to the specified index in this chunk.
+     * The values of all stores are copied, as the entity may have gained column components since it was placed.
+     */
+    private void moveColumnValues(Entity entity, int index) {
+        final int slot = Column.chunkSlot(chunkNumber, index);
+        final List<ColumnStore<?>> columnStores = archetype.getWorld().getColumnStores();
+        for (int i = 0; i < columnStores.size(); i++) {
+            columnStores.get(i).copy(entity.columnSlot, slot);
+        }
+        entity.columnSlot = slot;
+    }
+
+    @Override
+    public String toString() {
+        return "EntityChunk{" + archetype + ", size=" + size + "}";
+    }
+}
@@ -0,0 +1,112 @@
+package org.tradeworld.entity;
+
+import java.util.Arrays;
+
+/**
+ * Records structural changes to entities made by one thread, until the world plays them back at the start of world processing.
+ *
+ * Only the owning thread records commands, and only the world thread drains them.  Recording does not lock:
+ * the world swaps in an empty command list, and waits for a recording that may be in progress on the old list to finish
+ * before reading it.  Each command gets a sequence number from a counter shared by all buffers of the world,
+ * so the commands of all threads can be played back in the order they were issued.
+ */
+final class EntityCommandBuffer {
+
+    static final byte CREATE = 0;
+    static final byte DESTROY = 1;
+    static final byte ADD_COMPONENT = 2;
+    static final byte REMOVE_COMPONENT = 3;
+
+    private final Thread owner;
+    private volatile Commands activeCommands = new Commands();
+    private volatile boolean recording = false;
+
+    // Only accessed by the world thread
+    private Commands spareCommands = new Commands();
+
+    /**
+     * @param owner the thread that records commands to this buffer.
+     */
+    EntityCommandBuffer(Thread owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return true if the thread owning this buffer has not ended.  Once it has ended, no more commands are recorded to the buffer.
+     */
+    boolean isOwnerAlive() {
+        return owner.isAlive();
+    }
+
+    /**
+     * Records a command, should only be called by the thread owning this buffer.
+     */
+    void record(long sequence, byte type, Entity entity, int componentTypeId) {
+        recording = true;
+        activeCommands.add(sequence, type, entity, componentTypeId);
+        recording = false;
+    }
+
+    /**
+     * Takes the commands recorded so far, later commands are recorded to a new list.
+     * Call recycle with the returned commands when they have been played back.
+     * Should only be called by the world thread.
+     */
+    Commands drain() {
+        final Commands commands = activeCommands;
+        if (commands.size == 0) return commands;
+
+        // Commands from an earlier drain may not have been recycled yet
+        activeCommands = spareCommands != null ? spareCommands : new Commands();
+        spareCommands = null;
+
+        // Wait for a recording to the old list to finish
+        while (recording) {
+            Thread.yield();
+        }
+
+        return commands;
+    }
+
+    /**
+     * Returns commands from drain after they have been played back, so that they can be reused.
+     */
+    void recycle(Commands commands) {
+        if (commands != activeCommands) {
+            commands.clear();
+            spareCommands = commands;
+        }
+    }
+
+    /**
+     * List of commands, stored in parallel arrays.
+     */
+    static final class Commands {
+        int size = 0;
+        long[] sequences = new long[16];
+        byte[] types = new byte[16];
+        Entity[] entities = new Entity[16];
+        int[] componentTypeIds = new int[16];
+
+        private void add(long sequence, byte type, Entity entity, int componentTypeId) {
+            if (size >= sequences.length) {
+                final int capacity = sequences.length * 2;
+                sequences = Arrays.copyOf(sequences, capacity);
+                types = Arrays.copyOf(types, capacity);
+                entities = Arrays.copyOf(entities, capacity);
+                componentTypeIds = Arrays.copyOf(componentTypeIds, capacity);
+            }
+
+            sequences[size] = sequence;
+            types[size] = type;
+            entities[size] = entity;
+            componentTypeIds[size] = componentTypeId;
+            size++;
+        }
+
+        private void clear() {
+            Arrays.fill(entities, 0, size, null);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.tradeworld.entity;
+
+/**
+ * Entity ids are generational handles, they consist of the dense index of the entity and a generation
+ * that is incremented each time an index is reused.  An id for a removed entity will therefore never match
+ * a later entity that reuses the same index.
+ *
+ * The index is stored in the low 32 bits and the generation in the high 32 bits.  Generations start from one,
+ * so a valid entity id is never zero.
+ */
+public final class EntityIds {
+
+    /** Utility class, no constructor. */
+    private EntityIds() {}
+
+    /**
+     * @return the entity id for the specified index and generation.
+     */
+    public static long create(int index, int generation) {
+        return ((long) generation << 32) | (index & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the dense entity index part of the entity id.
+     */
+    public static int getIndex(long entityId) {
+        return (int) entityId;
+    }
+
+    /**
+     * @return the generation part of the entity id.
+     */
+    public static int getGeneration(long entityId) {
+        return (int) (entityId >>> 32);
+    }
+}
@@ -0,0 +1,167 @@
+package org.tradeworld.entity;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An unordered set of entities with constant time add, remove and contains.
+ *
+ * The entities are kept in a dense array that can be iterated by index, and the position of each entity in it
+ * is stored in a table indexed by the dense entity index.  Removing an entity moves the last entity into its place.
+ * removeAll removes many entities in one compacting pass instead.
+ *
+ * Not thread safe, but can be read from many threads while it is not modified.
+ */
+public final class EntitySet {
+
+    // Position + 1 of each entity by entity index, zero if not contained.
+    private static final int NOT_CONTAINED = 0;
+    private static final int MARKED_FOR_REMOVAL = -1;
+
+    private Entity[] entities;
+    private int[] positionsByEntityIndex = new int[0];
+    private int size = 0;
+
+    /**
+     * Creates a new empty EntitySet.
+     */
+    public EntitySet() {
+        this(16);
+    }
+
+    /**
+     * @param initialCapacity number of entities to allocate room for initially.
+     */
+    public EntitySet(int initialCapacity) {
+        entities = new Entity[Math.max(1, initialCapacity)];
+    }
+
+    /**
+     * @return number of entities in this set.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if there are no entities in this set.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the entity at the specified position, from 0 (inclusive) to size() (exclusive).
+     *         Positions of entities change when entities are removed.
+     */
+    public Entity get(int position) {
+        if (position < 0 || position >= size) throw new IndexOutOfBoundsException("No entity at position " + position + ", the set has " + size + " entities");
+        return entities[position];
+    }
+
+    /**
+     * @return true if the entity is in this set.
+     */
+    public boolean contains(Entity entity) {
+        final int entityIndex = entity.getEntityIndex();
+        return entityIndex >= 0 &&
+               entityIndex < positionsByEntityIndex.length &&
+               positionsByEntityIndex[entityIndex] > NOT_CONTAINED &&
+               entities[positionsByEntityIndex[entityIndex] - 1] == entity;
+    }
+
+    /**
+     * Adds the entity to this set.
+     * @return true if it was added, false if it was already contained.
+     */
+    public boolean add(Entity entity) {
+        if (contains(entity)) return false;
+
+        final int entityIndex = entity.getEntityIndex();
+        if (entityIndex < 0) throw new IllegalArgumentException("The entity " + entity + " has no entity index, it may have been removed from its world");
+
+        if (size >= entities.length) {
+            entities = Arrays.copyOf(entities, entities.length * 2);
+        }
+        if (entityIndex >= positionsByEntityIndex.length) {
+            positionsByEntityIndex = Arrays.copyOf(positionsByEntityIndex, Math.max(entityIndex + 1, positionsByEntityIndex.length * 2));
+        }
+
+        entities[size] = entity;
+        positionsByEntityIndex[entityIndex] = ++size;
+        return true;
+    }
+
+    /**
+     * Removes the entity from this set, the last entity in the set is moved to its position.
+     * @return true if it was removed, false if it was not contained.
+     */
+    public boolean remove(Entity entity) {
+        if (!contains(entity)) return false;
+
+        final int entityIndex = entity.getEntityIndex();
+        final int position = positionsByEntityIndex[entityIndex] - 1;
+        final int lastPosition = size - 1;
+        if (position != lastPosition) {
+            final Entity lastEntity = entities[lastPosition];
+            entities[position] = lastEntity;
+            positionsByEntityIndex[lastEntity.getEntityIndex()] = position + 1;
+        }
+
+        entities[lastPosition] = null;
+        positionsByEntityIndex[entityIndex] = NOT_CONTAINED;
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes all the specified entities that are in this set, in one pass over the set.
+     * The remaining entities keep their relative order.
+     * @return number of entities removed.
+     */
+    public int removeAll(Collection<Entity> entitiesToRemove) {
+        // Mark the contained entities
+        int removedCount = 0;
+        for (Entity entity : entitiesToRemove) {
+            if (contains(entity)) {
+                positionsByEntityIndex[entity.getEntityIndex()] = MARKED_FOR_REMOVAL;
+                removedCount++;
+            }
+        }
+        if (removedCount == 0) return 0;
+
+        // Compact the remaining entities
+        int target = 0;
+        for (int source = 0; source < size; source++) {
+            final Entity entity = entities[source];
+            final int entityIndex = entity.getEntityIndex();
+            if (positionsByEntityIndex[entityIndex] == MARKED_FOR_REMOVAL) {
+                positionsByEntityIndex[entityIndex] = NOT_CONTAINED;
+            }
+            else {
+                entities[target] = entity;
+                positionsByEntityIndex[entityIndex] = ++target;
+            }
+        }
+        Arrays.fill(entities, target, size, null);
+        size = target;
+
+        return removedCount;
+    }
+
+    /**
+     * Removes all entities from this set.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            positionsByEntityIndex[entities[i].getEntityIndex()] = NOT_CONTAINED;
+            entities[i] = null;
+        }
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "EntitySet{size=" + size + "}";
+    }
+}
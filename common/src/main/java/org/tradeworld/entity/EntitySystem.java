@@ -20,6 +20,32 @@ public interface EntitySystem {
      */
     int getSystemId();
 
+    /**
+     * @return true if the system has declared which component types it reads and writes when processing.
+     *         Systems that have not declared their component access are never processed at the same time as other systems.
+     */
+    boolean isComponentAccessDeclared();
+
+    /**
+     * @return ids of the component types that this system reads when processing, if isComponentAccessDeclared is true.
+     *         Should not be modified.
+     */
+    IdSet getReadComponentTypeIds();
+
+    /**
+     * @return ids of the component types that this system modifies, adds or removes when processing, if isComponentAccessDeclared is true.
+     *         Should not be modified.
+     */
+    IdSet getWrittenComponentTypeIds();
+
+    /**
+     * @return ids of the component types that an entity must have for this system to handle it, or null if the system
+     *         wants to be notified about all added entities and all changes.  The world only calls onEntityAdded for entities that
+     *         have all these components, and onEntityComponentsChanged when one of these component types was added or removed.
+     *         Should not be modified.
+     */
+    IdSet getHandledComponentTypeIds();
+
     /**
      * Called when the application starts up.
      */
@@ -32,10 +58,24 @@ public interface EntitySystem {
     void shutdown();
 
     /**
-     * Processes all entities registered with this system.
+     * @return approximate game time interval in seconds between each time that the system is processed.
+     *         Zero if the system is processed every time process() is called.
+     */
+    double getProcessingIntervalSeconds();
+
+    /**
+     * Sets the offset of the processing times of the system within its processing interval, so that systems with the same
+     * interval can be spread out over different ticks.  Called by the world during initialization.
+     * @param processingPhaseSeconds game time offset in seconds, from zero (inclusive) to the processing interval (exclusive).
+     */
+    void setProcessingPhaseSeconds(double processingPhaseSeconds);
+
+    /**
+     * Processes all entities registered with this system, if the system is due for processing.
      * Should only be called by World.
+     * @param worldTicker the game clock of the world.
      */
-    void process();
+    void process(Ticker worldTicker);
 
     /**
      * Should only be called by World.
@@ -51,4 +91,11 @@ public interface EntitySystem {
      * Should only be called by World.
      */
     void onEntityComponentsChanged(Entity entity);
+
+    /**
+     * Called for entities where a component of a type handled by this system was replaced with another component of the same type
+     * since the last refresh, without the component types of the entity changing.
+     * Should only be called by World.
+     */
+    void onEntityComponentsReplaced(Entity entity);
 }
@@ -0,0 +1,85 @@
+package org.tradeworld.entity;
+
+import java.util.Arrays;
+
+/**
+ * A column of float values, see Column.
+ */
+public final class FloatColumn extends Column {
+
+    private final float defaultValue;
+    private volatile float[][] pages = new float[0][];
+    private volatile float[][] chunkPages = new float[0][];
+
+    FloatColumn(float defaultValue) {
+        this.defaultValue = defaultValue;
+    }
+
+    /**
+     * @return value that the column has for newly added components.
+     */
+    public float getDefaultValue() {
+        return defaultValue;
+    }
+
+    /**
+     * @return the value at the specified column slot.
+     */
+    public float get(int slot) {
+        if (slot >= 0) return pages[slot >>> PAGE_SIZE_BITS][slot & PAGE_MASK];
+        else {
+            final int chunkSlot = ~slot;
+            return chunkPages[chunkSlot >>> PAGE_SIZE_BITS][chunkSlot & PAGE_MASK];
+        }
+    }
+
+    /**
+     * Sets the value at the specified column slot.
+     */
+    public void set(int slot, float value) {
+        if (slot >= 0) pages[slot >>> PAGE_SIZE_BITS][slot & PAGE_MASK] = value;
+        else {
+            final int chunkSlot = ~slot;
+            chunkPages[chunkSlot >>> PAGE_SIZE_BITS][chunkSlot & PAGE_MASK] = value;
+        }
+    }
+
+    /**
+     * @return the values of the chunk with the specified number.
+     */
+    float[] getChunkValues(int chunkNumber) {
+        return chunkPages[chunkNumber];
+    }
+
+    @Override
+    synchronized void ensureCapacity(int capacity) {
+        final int pageCount = pageCount(capacity);
+        if (pageCount > pages.length) {
+            final float[][] newPages = Arrays.copyOf(pages, pageCount);
+            for (int i = pages.length; i < pageCount; i++) {
+                newPages[i] = new float[PAGE_SIZE];
+            }
+            pages = newPages;
+        }
+    }
+
+    @Override
+    synchronized void ensureChunkPage(int chunkNumber, int capacity) {
+        if (chunkNumber >= chunkPages.length || chunkPages[chunkNumber] == null) {
+            // Replace the page table, so that the new page is published to other threads
+            final float[][] newChunkPages = Arrays.copyOf(chunkPages, Math.max(chunkPages.length, chunkNumber + 1));
+            newChunkPages[chunkNumber] = new float[capacity];
+            chunkPages = newChunkPages;
+        }
+    }
+
+    @Override
+    void reset(int slot) {
+        set(slot, defaultValue);
+    }
+
+    @Override
+    void copy(int fromSlot, int toSlot) {
+        set(toSlot, get(fromSlot));
+    }
+}
@@ -1,7 +1,9 @@
 package org.tradeworld.entity;
 
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -12,9 +14,8 @@ public final class IdRegistry {
     /** Utility class, no constructor. */
     private IdRegistry() {}
 
-    private static final int MAX_IDS = 64;
-
     private static ConcurrentMap<Class<? extends Component>, Integer> componentTypeIds = new ConcurrentHashMap<Class<? extends Component>, Integer>();
+    private static List<Class<? extends Component>> componentTypesById = new CopyOnWriteArrayList<Class<? extends Component>>();
     private static AtomicInteger nextFreeComponentTypeId = new AtomicInteger(0);
     private static final Object componentTypeIdLock = new Object();
 
@@ -26,57 +27,64 @@ public final class IdRegistry {
         Integer id = componentTypeIds.get(type);
         if (id == null) {
             synchronized (componentTypeIdLock) {
-                id = nextFreeComponentTypeId.getAndIncrement();
-                componentTypeIds.put(type, id);
+                // Check again, another thread may have registered the type while we waited for the lock
+                id = componentTypeIds.get(type);
+                if (id == null) {
+                    id = nextFreeComponentTypeId.getAndIncrement();
+                    componentTypesById.add(type);
+                    componentTypeIds.put(type, id);
+                }
             }
-
-            if (id >= MAX_IDS) throw new IllegalStateException("Too many different component types used, a maximum of " + MAX_IDS + " are supported");
         }
         return id;
     }
 
+    /**
+     * Looks up the id of a component type without registering it, so that queries for types that are never
+     * added to entities do not use up ids.
+     * @return the id of the specified component base type, or -1 if the type has not been registered.
+     */
+    public static int findComponentTypeId(Class<? extends Component> type) {
+        final Integer id = componentTypeIds.get(type);
+        if (id == null) return -1;
+        else return id;
+    }
+
+    /**
+     * @return the component base type with the specified id.
+     */
+    public static Class<? extends Component> getComponentType(int componentTypeId) {
+        if (componentTypeId < 0 || componentTypeId >= componentTypesById.size()) throw new IllegalArgumentException("No component type with the id " + componentTypeId + " registered");
+        return componentTypesById.get(componentTypeId);
+    }
+
     public static int getEntitySystemTypeId(Class<? extends EntitySystem> type) {
         Integer id = systemTypeIds.get(type);
         if (id == null) {
             synchronized (systemTypeIdLock) {
-                id = nextFreeSystemTypeId.getAndIncrement();
-                systemTypeIds.put(type, id);
+                // Check again, another thread may have registered the type while we waited for the lock
+                id = systemTypeIds.get(type);
+                if (id == null) {
+                    id = nextFreeSystemTypeId.getAndIncrement();
+                    systemTypeIds.put(type, id);
+                }
             }
-
-            if (id >= MAX_IDS) throw new IllegalStateException("Too many different entity system types used, a maximum of " + MAX_IDS + " are supported");
         }
         return id;
     }
 
-    public static boolean containsId(long ids, int id) {
-        return (ids & (1 << id)) != 0;
-    }
-
-    public static boolean containsAllIds(long ids, long idsToCheck) {
-        return (ids & idsToCheck) == idsToCheck;
-    }
-
-    public static long setId(long oldIds, int id, boolean value) {
-        if (value) {
-            return oldIds | (1 << id);
-        }
-        else {
-            return oldIds & (~(1 << id));
-        }
-    }
-
-    public static long getComponentTypeIds(Class<? extends Component>... componentTypes) {
-        long ids = 0;
+    public static IdSet getComponentTypeIds(Class<? extends Component>... componentTypes) {
+        IdSet ids = new IdSet();
         for (Class<? extends Component> componentType : componentTypes) {
-            ids = setId(ids, getComponentTypeId(componentType), true);
+            ids.add(getComponentTypeId(componentType));
         }
         return ids;
     }
 
-    public static long getSystemTypeIds(Class<? extends EntitySystem>... entitySystemTypes) {
-        long ids = 0;
+    public static IdSet getSystemTypeIds(Class<? extends EntitySystem>... entitySystemTypes) {
+        IdSet ids = new IdSet();
         for (Class<? extends EntitySystem> entitySystemType: entitySystemTypes) {
-            ids = setId(ids, getEntitySystemTypeId(entitySystemType), true);
+            ids.add(getEntitySystemTypeId(entitySystemType));
         }
         return ids;
     }
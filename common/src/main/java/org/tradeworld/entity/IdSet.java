@@ -0,0 +1,267 @@
+package org.tradeworld.entity;
+
+import java.util.Arrays;
+
+/**
+ * A set of small non-negative integer ids, such as component type ids or system ids, stored as bits.
+ *
+ * The first 64 ids are stored in a single long, so sets that only use those are as fast as a plain bitmask.
+ * Higher ids are stored in an additional array of words that is only allocated when needed.
+ *
+ * Not thread safe.
+ */
+public final class IdSet {
+
+    private static final int WORD_SIZE_BITS = 6;
+    private static final int WORD_SIZE = 1 << WORD_SIZE_BITS;
+
+    // Ids 0..63
+    private long firstWord = 0;
+
+    // Ids from 64 upwards, null if none have been set.
+    private long[] extraWords = null;
+
+    /**
+     * Creates a new empty IdSet.
+     */
+    public IdSet() {
+    }
+
+    /**
+     * Creates a new IdSet with the same ids as the specified set.
+     */
+    public IdSet(IdSet source) {
+        set(source);
+    }
+
+    /**
+     * @return true if the specified id is in this set.
+     */
+    public boolean contains(int id) {
+        if (id < 0) throw new IllegalArgumentException("Ids should not be negative, but got " + id);
+
+        if (id < WORD_SIZE) {
+            return (firstWord & (1L << id)) != 0;
+        }
+        else {
+            final int wordIndex = (id >>> WORD_SIZE_BITS) - 1;
+            return extraWords != null &&
+                   wordIndex < extraWords.length &&
+                   (extraWords[wordIndex] & (1L << id)) != 0;
+        }
+    }
+
+    /**
+     * Adds the specified id to this set.
+     */
+    public void add(int id) {
+        if (id < 0) throw new IllegalArgumentException("Ids should not be negative, but got " + id);
+
+        if (id < WORD_SIZE) {
+            firstWord |= 1L << id;
+        }
+        else {
+            final int wordIndex = (id >>> WORD_SIZE_BITS) - 1;
+            ensureExtraWords(wordIndex + 1);
+            extraWords[wordIndex] |= 1L << id;
+        }
+    }
+
+    /**
+     * Removes the specified id from this set, if present.
+     */
+    public void remove(int id) {
+        if (id < 0) throw new IllegalArgumentException("Ids should not be negative, but got " + id);
+
+        if (id < WORD_SIZE) {
+            firstWord &= ~(1L << id);
+        }
+        else if (extraWords != null) {
+            final int wordIndex = (id >>> WORD_SIZE_BITS) - 1;
+            if (wordIndex < extraWords.length) {
+                extraWords[wordIndex] &= ~(1L << id);
+            }
+        }
+    }
+
+    /**
+     * Adds or removes the specified id.
+     */
+    public void set(int id, boolean value) {
+        if (value) add(id);
+        else remove(id);
+    }
+
+    /**
+     * Sets the contents of this set to be the same as the specified set.
+     */
+    public void set(IdSet source) {
+        firstWord = source.firstWord;
+        if (source.extraWords == null) {
+            if (extraWords != null) Arrays.fill(extraWords, 0);
+        }
+        else {
+            ensureExtraWords(source.extraWords.length);
+            System.arraycopy(source.extraWords, 0, extraWords, 0, source.extraWords.length);
+            Arrays.fill(extraWords, source.extraWords.length, extraWords.length, 0);
+        }
+    }
+
+    /**
+     * Adds all ids in the specified set to this set.
+     */
+    public void addAll(IdSet other) {
+        firstWord |= other.firstWord;
+        if (other.extraWords != null) {
+            ensureExtraWords(other.extraWords.length);
+            for (int i = 0; i < other.extraWords.length; i++) {
+                extraWords[i] |= other.extraWords[i];
+            }
+        }
+    }
+
+    /**
+     * Removes all ids that are in the specified set from this set.
+     */
+    public void removeAll(IdSet other) {
+        firstWord &= ~other.firstWord;
+        if (extraWords != null && other.extraWords != null) {
+            final int words = Math.min(extraWords.length, other.extraWords.length);
+            for (int i = 0; i < words; i++) {
+                extraWords[i] &= ~other.extraWords[i];
+            }
+        }
+    }
+
+    /**
+     * Keeps the ids that are in exactly one of this set and the other set.
+     */
+    public void xor(IdSet other) {
+        firstWord ^= other.firstWord;
+        if (other.extraWords != null) {
+            ensureExtraWords(other.extraWords.length);
+            for (int i = 0; i < other.extraWords.length; i++) {
+                extraWords[i] ^= other.extraWords[i];
+            }
+        }
+    }
+
+    /**
+     * Removes all ids from this set.
+     */
+    public void clear() {
+        firstWord = 0;
+        if (extraWords != null) Arrays.fill(extraWords, 0);
+    }
+
+    /**
+     * @return true if there are no ids in this set.
+     */
+    public boolean isEmpty() {
+        if (firstWord != 0) return false;
+        if (extraWords != null) {
+            for (long word : extraWords) {
+                if (word != 0) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if all ids in the other set are also in this set.
+     */
+    public boolean containsAll(IdSet other) {
+        if ((firstWord & other.firstWord) != other.firstWord) return false;
+
+        final long[] otherWords = other.extraWords;
+        if (otherWords != null) {
+            for (int i = 0; i < otherWords.length; i++) {
+                final long word = extraWords != null && i < extraWords.length ? extraWords[i] : 0;
+                if ((word & otherWords[i]) != otherWords[i]) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if at least one id is in both this set and the other set.
+     */
+    public boolean intersects(IdSet other) {
+        if ((firstWord & other.firstWord) != 0) return true;
+
+        if (extraWords != null && other.extraWords != null) {
+            final int words = Math.min(extraWords.length, other.extraWords.length);
+            for (int i = 0; i < words; i++) {
+                if ((extraWords[i] & other.extraWords[i]) != 0) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Can be used to iterate the ids in the set:  for (int id = set.nextId(0); id >= 0; id = set.nextId(id + 1)) { ... }
+     * @return the first id that is equal to or larger than fromId and in this set, or -1 if there is no such id.
+     */
+    public int nextId(int fromId) {
+        if (fromId < WORD_SIZE) {
+            final long word = fromId < 0 ? firstWord : firstWord & (-1L << fromId);
+            if (word != 0) return Long.numberOfTrailingZeros(word);
+            fromId = WORD_SIZE;
+        }
+
+        if (extraWords != null) {
+            int wordIndex = (fromId >>> WORD_SIZE_BITS) - 1;
+            if (wordIndex < extraWords.length) {
+                long word = extraWords[wordIndex] & (-1L << fromId);
+                while (true) {
+                    if (word != 0) return ((wordIndex + 1) << WORD_SIZE_BITS) + Long.numberOfTrailingZeros(word);
+                    wordIndex++;
+                    if (wordIndex >= extraWords.length) break;
+                    word = extraWords[wordIndex];
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        IdSet other = (IdSet) o;
+        return containsAll(other) && other.containsAll(this);
+    }
+
+    @Override
+    public int hashCode() {
+        // Trailing zero words should not affect the hash
+        long hash = firstWord;
+        if (extraWords != null) {
+            for (int i = 0; i < extraWords.length; i++) {
+                hash ^= extraWords[i] * (i + 2);
+            }
+        }
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int id = nextId(0); id >= 0; id = nextId(id + 1)) {
+            if (sb.length() > 1) sb.append(", ");
+            sb.append(id);
+        }
+        return sb.append("}").toString();
+    }
+
+    private void ensureExtraWords(int wordCount) {
+        if (extraWords == null) {
+            extraWords = new long[wordCount];
+        }
+        else if (extraWords.length < wordCount) {
+            extraWords = Arrays.copyOf(extraWords, Math.max(wordCount, extraWords.length * 2));
+        }
+    }
+}
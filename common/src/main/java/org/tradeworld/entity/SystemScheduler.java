@@ -0,0 +1,113 @@
+package org.tradeworld.entity;
+
+import org.tradeworld.utils.ParameterChecker;
+import org.tradeworld.utils.Ticker;
+import org.tradeworld.utils.WorkerPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Processes entity systems in parallel when they do not access the same components.
+ *
+ * A system depends on every system added before it that it conflicts with, that is, where either one writes a component
+ * type that the other one reads or writes, or where either one has not declared its component access.
+ * The systems are grouped into stages based on these dependencies, so that each system is in a later stage than all
+ * the systems it depends on.  The systems within a stage are processed in parallel, and each stage is completed before the next one starts.
+ */
+public final class SystemScheduler {
+
+    private final List<List<EntitySystem>> stages;
+    private final WorkerPool workerPool;
+
+    private List<EntitySystem> currentStage = null;
+    private Ticker currentTicker = null;
+    private final WorkerPool.IndexedTask processTask = new WorkerPool.IndexedTask() {
+        @Override
+        public void run(int index) {
+            currentStage.get(index).process(currentTicker);
+        }
+    };
+
+    /**
+     * @param entitySystems systems to schedule, in the order they were added to the world.
+     * @param workerPool pool to use for processing systems in parallel.
+     */
+    public SystemScheduler(List<EntitySystem> entitySystems, WorkerPool workerPool) {
+        ParameterChecker.checkNotNull(entitySystems, "entitySystems");
+        ParameterChecker.checkNotNull(workerPool, "workerPool");
+
+        this.workerPool = workerPool;
+        stages = Collections.unmodifiableList(createStages(entitySystems));
+    }
+
+    /**
+     * @return the systems grouped into stages, in processing order.  Systems in the same stage are processed in parallel.
+     */
+    public List<List<EntitySystem>> getStages() {
+        return stages;
+    }
+
+    /**
+     * Processes all systems, one stage at a time.  Returns when all systems have been processed.
+     * Should only be called from one thread at a time.
+     * @param worldTicker the game clock of the world.
+     */
+    public void process(Ticker worldTicker) {
+        for (List<EntitySystem> stage : stages) {
+            if (stage.size() == 1) {
+                stage.get(0).process(worldTicker);
+            }
+            else {
+                currentStage = stage;
+                currentTicker = worldTicker;
+                workerPool.run(stage.size(), processTask);
+                currentStage = null;
+                currentTicker = null;
+            }
+        }
+    }
+
+    /**
+     * @return true if the two systems can not be processed at the same time.
+     */
+    public static boolean conflicts(EntitySystem a, EntitySystem b) {
+        if (!a.isComponentAccessDeclared() || !b.isComponentAccessDeclared()) return true;
+
+        final IdSet aWritten = a.getWrittenComponentTypeIds();
+        final IdSet bWritten = b.getWrittenComponentTypeIds();
+        return aWritten.intersects(bWritten) ||
+               aWritten.intersects(b.getReadComponentTypeIds()) ||
+               bWritten.intersects(a.getReadComponentTypeIds());
+    }
+
+    private static List<List<EntitySystem>> createStages(List<EntitySystem> entitySystems) {
+        final int systemCount = entitySystems.size();
+        final int[] stageOfSystem = new int[systemCount];
+        final List<List<EntitySystem>> stages = new ArrayList<List<EntitySystem>>();
+
+        for (int i = 0; i < systemCount; i++) {
+            final EntitySystem entitySystem = entitySystems.get(i);
+
+            // Place the system in the stage after the last stage of any earlier system that it depends on
+            int stage = 0;
+            for (int earlier = 0; earlier < i; earlier++) {
+                if (stageOfSystem[earlier] >= stage && conflicts(entitySystems.get(earlier), entitySystem)) {
+                    stage = stageOfSystem[earlier] + 1;
+                }
+            }
+            stageOfSystem[i] = stage;
+
+            if (stage == stages.size()) stages.add(new ArrayList<EntitySystem>());
+            stages.get(stage).add(entitySystem);
+        }
+
+        // Stages should not be modified after creation
+        for (int i = 0; i < stages.size(); i++) {
+            stages.set(i, Collections.unmodifiableList(stages.get(i)));
+        }
+
+        return stages;
+    }
+}
@@ -1,5 +1,6 @@
 package org.tradeworld.entity;
 
+import org.tradeworld.utils.BoundedPool;
 import org.tradeworld.utils.Ticker;
 
 /**
@@ -17,6 +18,41 @@ public interface World {
      */
     <T extends EntitySystem> T getSystem(Class<T> systemType);
 
+    /**
+     * Adds a store for a column component type.  Should be done before initialize completes, e.g. in registerSystems or when a system is initialized.
+     */
+    <T extends ColumnStore<?>> T addColumnStore(T columnStore);
+
+    /**
+     * @return the store for the specified column component type, or null if there is none.
+     */
+    <V extends ColumnView> ColumnStore<V> getColumnStore(Class<V> componentType);
+
+    /**
+     * Adds a pool for recycling components of the specified base type.  Components of the type that are removed from entities
+     * are then kept in the pool, and can be reused with obtainComponent.
+     * Removed components are only returned to the pool at the start of the next world processing, after the systems have
+     * been notified of the removal, so obtainComponent does not return components removed during the current tick.
+     * Only add pools for component types that are not referenced anywhere after they have been removed from their entity.
+     * @param componentType base type of the components to pool.
+     * @param maxSize max number of components to keep in the pool.
+     * @return the pool, can be used to get allocation statistics.
+     */
+    <T extends Component> BoundedPool<T> addComponentPool(Class<T> componentType, int maxSize);
+
+    /**
+     * @return a recycled component of the specified base type, or null if there is no pool for the type or the pool is empty,
+     *         in which case the caller should create a new component.  The caller should reset the state of the component.
+     */
+    <T extends Component> T obtainComponent(Class<T> componentType);
+
+    /**
+     * Called by entities for components that have been removed from them.  If there is a pool for the component type,
+     * the component is returned to it at the start of the next world processing.
+     * No need to call manually.
+     */
+    void recycleComponent(Component component);
+
     /**
      * Initializes all systems.
      */
@@ -43,6 +79,7 @@ public interface World {
     /**
      * Add and remove any recently added/removed entities, then call process for each EntitySystem, in the order they were added,
      * letting them process the entities they are interested in.
+     * Implementations may process systems that do not access the same components in parallel.
      * @param ticker contains time since last frame and since the beginning of the simulation.
      */
     void process(Ticker ticker);
@@ -62,14 +99,20 @@ public interface World {
 
     /**
      * @param entityId the id of the entity to get.
-     * @return the entity with the specified id, or null if none found.
+     * @return the entity with the specified id, or null if none found, or if the entity with the id has been removed.
      */
     Entity getEntity(long entityId);
 
     /**
-     * Notify the world when components are added or removed to an entity.  This is called automatically by an entity, no need to call manually.
+     * Notify the world when a component is added to an entity, or replaced.  This is called automatically by an entity, no need to call manually.
+     * Will notify EntitySystems about the change, so that they can decide if they should add or remove the entity.
+     */
+    void onEntityComponentAdded(Entity entity, int componentTypeId);
+
+    /**
+     * Notify the world when a component is removed from an entity.  This is called automatically by an entity, no need to call manually.
      * Will notify EntitySystems about the change, so that they can decide if they should add or remove the entity.
      */
-    void onEntityComponentsChanged(Entity entity);
+    void onEntityComponentRemoved(Entity entity, int componentTypeId);
 
 }
@@ -0,0 +1,64 @@
+package org.tradeworld.systems;
+
+import org.tradeworld.components.Crop;
+import org.tradeworld.components.EdibleView;
+import org.tradeworld.components.Named;
+import org.tradeworld.entity.ChunkedEntitySystem;
+import org.tradeworld.entity.ColumnStore;
+import org.tradeworld.entity.EntityChunk;
+import org.tradeworld.utils.Ticker;
+
+/**
+ * Turns crops edible when they have grown, like GrowSystem, but for an ArchetypeWorld.
+ *
+ * Iterates the crop arrays of the chunks in parallel, and writes the edible values directly to the column arrays of
+ * the chunks.  Chunks of crops that already are edible are skipped without looking at their crops.
+ */
+public class ChunkedGrowSystem extends ChunkedEntitySystem {
+
+    private EdibleView.Store edibleStore;
+
+    public ChunkedGrowSystem() {
+        super(null, 0, true, Crop.class, Named.class);
+        declareReadComponents(Crop.class, Named.class);
+        declareWrittenComponents(EdibleView.class);
+    }
+
+    @Override
+    protected void onInit() {
+        super.onInit();
+
+        // Use the world's edible store, or add one if the world has none
+        final ColumnStore<EdibleView> store = getWorld().getColumnStore(EdibleView.class);
+        if (store == null) edibleStore = getWorld().addColumnStore(new EdibleView.Store());
+        else if (store instanceof EdibleView.Store) edibleStore = (EdibleView.Store) store;
+        else throw new IllegalStateException("The edible store of the world should be an EdibleView.Store, but was " + store);
+    }
+
+    @Override
+    protected void processChunk(Ticker ticker, EntityChunk chunk) {
+        // All entities in the chunk have the same components, so if one is edible all of them have grown
+        if (chunk.getArchetype().getComponentTypeIds().contains(edibleStore.getComponentTypeId())) return;
+
+        final long currentTime = System.currentTimeMillis();
+        final Crop[] crops = chunk.getComponents(Crop.class);
+        final float[] energyJoules = chunk.getValues(edibleStore.getEnergyJouleColumn());
+        final float[] poisonDamages = chunk.getValues(edibleStore.getPoisonDamageColumn());
+        final float[] heals = chunk.getValues(edibleStore.getHealColumn());
+
+        final int size = chunk.size();
+        for (int i = 0; i < size; i++) {
+            if (currentTime >= crops[i].getGrowEndTime()) {
+                // It just matured, the entity moves to the chunks of edible crops on the next refresh
+                edibleStore.addDefaults(chunk.getEntity(i));
+                energyJoules[i] = 100;
+                poisonDamages[i] = 1;
+                heals[i] = 0;
+
+                if (log.isDebugEnabled()) {
+                    log.debug("{} grew up!", chunk.getComponents(Named.class)[i].name);
+                }
+            }
+        }
+    }
+}
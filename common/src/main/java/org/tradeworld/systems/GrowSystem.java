@@ -1,35 +1,121 @@
 package org.tradeworld.systems;
 
 import org.tradeworld.components.Crop;
-import org.tradeworld.components.Edible;
+import org.tradeworld.components.EdibleView;
 import org.tradeworld.components.Named;
 import org.tradeworld.entity.BaseEntitySystem;
+import org.tradeworld.entity.ColumnStore;
 import org.tradeworld.entity.Entity;
+import org.tradeworld.systems.farm.TimingWheel;
 import org.tradeworld.utils.Ticker;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
+ * Turns crops edible when they have grown, by adding an EdibleView to them.
  *
+ * Crops are scheduled in a timing wheel at their grow end time when they are added, so each process pass only
+ * touches the crops that matured since the last pass, instead of checking every planted crop.
+ * Crops are unscheduled when their entity is removed, and rescheduled when the crop is replaced.
  */
 public class GrowSystem extends BaseEntitySystem {
 
+    /**
+     * Accuracy of the crop maturation times.
+     */
+    public static final long MATURATION_RESOLUTION_MILLISECONDS = 100;
+
+    private ColumnStore<EdibleView> edibleStore;
+    private EdibleView edibleView;
+    private TimingWheel<Entity> maturationWheel;
+    private final List<Entity> maturedEntities = new ArrayList<Entity>();
+
+    // The scheduled maturation of each handled entity that has not yet matured, by entity index
+    private final List<TimingWheel.Entry<Entity>> scheduledMaturations = new ArrayList<TimingWheel.Entry<Entity>>();
+
     public GrowSystem() {
-        super(null, Crop.class, Named.class);
+        super(null, 0, Crop.class, Named.class);
+        declareReadComponents(Crop.class, Named.class);
+        declareWrittenComponents(EdibleView.class);
+    }
+
+    @Override
+    protected void onInit() {
+        // Use the world's edible store, or add one if the world has none
+        edibleStore = getWorld().getColumnStore(EdibleView.class);
+        if (edibleStore == null) edibleStore = getWorld().addColumnStore(new EdibleView.Store());
+        edibleView = edibleStore.view();
+
+        // Crop grow times are wall clock times
+        maturationWheel = new TimingWheel<Entity>(MATURATION_RESOLUTION_MILLISECONDS, System.currentTimeMillis());
+    }
+
+    @Override
+    protected void handleAddedEntity(Entity entity) {
+        scheduleMaturation(entity);
+    }
+
+    @Override
+    protected void handleRemovedEntity(Entity entity) {
+        unscheduleMaturation(entity);
+    }
+
+    @Override
+    protected void handleReplacedComponents(Entity entity) {
+        // The crop may have been replaced with one that matures at another time
+        unscheduleMaturation(entity);
+        scheduleMaturation(entity);
+    }
+
+    @Override
+    protected void doProcess(Ticker systemTicker) {
+        maturationWheel.advanceTo(System.currentTimeMillis(), maturedEntities);
+
+        for (int i = 0; i < maturedEntities.size(); i++) {
+            processEntity(systemTicker, maturedEntities.get(i));
+        }
+        maturedEntities.clear();
     }
 
     @Override
     protected void processEntity(Ticker ticker, Entity entity) {
-        Crop crop = entity.getComponent(Crop.class);
-        String name = entity.getComponent(Named.class).name;
+        // Only handled entities are scheduled, and each of them at most once
+        scheduledMaturations.set(entity.getEntityIndex(), null);
 
+        Crop crop = entity.getComponent(Crop.class);
         if (!crop.isReady()) {
-            System.out.println(name + " is growing, already " + (100*crop.getGrowProgress()) + "%!");
+            // The grow time of the crop was changed
+            scheduleMaturation(entity);
         }
+        else if (!edibleStore.contains(entity)) {
+            // It just matured
+            edibleStore.add(entity, edibleView).set(100, 1, 0);
+            if (log.isDebugEnabled()) {
+                log.debug("{} grew up!", entity.getComponent(Named.class).name);
+
+                // The edible view is reused, so format it now
+                log.debug("It's nutrient info is: {}", edibleView.toString());
+            }
+        }
+    }
+
+    private void scheduleMaturation(Entity entity) {
+        // Already grown crops are scheduled in the past, and are handled on the next process pass
+        final TimingWheel.Entry<Entity> maturation = maturationWheel.schedule(entity.getComponent(Crop.class).getGrowEndTime(), entity);
+
+        final int entityIndex = entity.getEntityIndex();
+        while (scheduledMaturations.size() <= entityIndex) {
+            scheduledMaturations.add(null);
+        }
+        scheduledMaturations.set(entityIndex, maturation);
+    }
 
-        // Check if it just matured
-        if (crop.isReady() && !entity.containsComponent(Edible.class)) {
-            entity.addComponent(new Edible(100, 1, 0));
-            System.out.println(name + " grew up!");
-            System.out.println("It's nutrient info is: " + entity.getComponent(Edible.class));
+    private void unscheduleMaturation(Entity entity) {
+        final int entityIndex = entity.getEntityIndex();
+        if (entityIndex < scheduledMaturations.size()) {
+            final TimingWheel.Entry<Entity> maturation = scheduledMaturations.set(entityIndex, null);
+            if (maturation != null) maturationWheel.cancel(maturation);
         }
     }
 }
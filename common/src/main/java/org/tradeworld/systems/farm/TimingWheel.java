@@ -0,0 +1,308 @@
+package org.tradeworld.systems.farm;
+
+import org.tradeworld.utils.ParameterChecker;
+
+import java.util.Collection;
+
+/**
+ * Hierarchical timing wheel that keeps values scheduled at some time, and hands out the ones whose time has come
+ * when it is advanced.  Scheduling is O(1), and advancing costs O(expired values), independent of the number of values
+ * waiting, apart from values being moved down one level about every 256^level ticks.  Ticks with nothing to do are skipped.
+ *
+ * Time is divided into ticks of resolutionMilliseconds.  Values are never handed out before their scheduled time,
+ * but may be handed out up to one tick late.
+ *
+ * Scheduled values can be cancelled in O(1) through the Entry returned by schedule.  A cancelled entry no longer references
+ * its value, and is dropped when the wheel reaches its time.
+ *
+ * Not thread safe.
+ */
+public final class TimingWheel<T> {
+
+    private static final int SLOT_BITS = 8;
+    private static final int SLOT_COUNT = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+    private static final int LEVEL_COUNT = 4;
+
+    private final long resolutionMilliseconds;
+
+    // Level 0 has slots for single ticks, each level above has slots for a full revolution of the level below
+    private final Entry<T>[][] slots = new Entry[LEVEL_COUNT][SLOT_COUNT];
+
+    // Values too far in the future for the wheel, re-placed each time the top level has made a full revolution
+    private Entry<T> overflow = null;
+
+    // Number of values in each level, with the overflow last
+    private final int[] levelSizes = new int[LEVEL_COUNT + 1];
+
+    // Values due at or before the current tick
+    private Entry<T> due = null;
+
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * @param resolutionMilliseconds length of one tick of the wheel.
+     * @param startTimeMilliseconds time that the wheel starts at.
+     */
+    public TimingWheel(long resolutionMilliseconds, long startTimeMilliseconds) {
+        ParameterChecker.check(resolutionMilliseconds > 0, "resolutionMilliseconds", "should be positive");
+        this.resolutionMilliseconds = resolutionMilliseconds;
+        currentTick = startTimeMilliseconds / resolutionMilliseconds;
+    }
+
+    /**
+     * @return length of one tick of the wheel.
+     */
+    public long getResolutionMilliseconds() {
+        return resolutionMilliseconds;
+    }
+
+    /**
+     * @return the time that the wheel has been advanced to, rounded down to the start of the current tick.
+     */
+    public long getCurrentTimeMilliseconds() {
+        return currentTick * resolutionMilliseconds;
+    }
+
+    /**
+     * @return number of scheduled values that have not yet been handed out or cancelled.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if there are no scheduled values.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Schedules the value to be handed out when the wheel is advanced to the specified time.
+     * If the time has already passed, the value is handed out on the next advance.
+     * The same value can be scheduled several times.
+     * @return the entry for the scheduled value, can be used to cancel it.
+     */
+    public Entry<T> schedule(long timeMilliseconds, T value) {
+        // Round up, so that the value is never handed out before its time
+        final long tick = timeMilliseconds / resolutionMilliseconds + (timeMilliseconds % resolutionMilliseconds > 0 ? 1 : 0);
+        final Entry<T> entry = new Entry<T>(tick, value);
+        place(entry);
+        size++;
+        return entry;
+    }
+
+    /**
+     * Cancels a scheduled value, so that it is not handed out.
+     * @param entry entry returned by schedule of this wheel.
+     * @return true if the value was cancelled, false if it had already been handed out or cancelled.
+     */
+    public boolean cancel(Entry<T> entry) {
+        ParameterChecker.checkNotNull(entry, "entry");
+        if (entry.done) return false;
+
+        entry.done = true;
+        entry.value = null;
+        size--;
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the specified time, and hands out the values scheduled at or before it.
+     * @param timeMilliseconds time to advance to.  Times before the current time of the wheel only hand out values already due.
+     * @param expiredValuesOut collection to add the values whose time has come to.
+     * @return number of values handed out.
+     */
+    public int advanceTo(long timeMilliseconds, Collection<? super T> expiredValuesOut) {
+        final long targetTick = timeMilliseconds / resolutionMilliseconds;
+
+        int count = takeDue(expiredValuesOut);
+
+        while (currentTick < targetTick) {
+            // Skip to the next tick that cascades the lowest level with values, as nothing is handed out before that
+            int lowestLevel = 0;
+            while (lowestLevel <= LEVEL_COUNT && levelSizes[lowestLevel] == 0) {
+                lowestLevel++;
+            }
+            if (lowestLevel > LEVEL_COUNT) {
+                // Nothing to hand out
+                currentTick = targetTick;
+            }
+            else {
+                final int shift = SLOT_BITS * lowestLevel;
+                final long nextTick = lowestLevel == 0 ? currentTick + 1 : ((currentTick >>> shift) + 1) << shift;
+                if (nextTick > targetTick) {
+                    currentTick = targetTick;
+                    break;
+                }
+                currentTick = nextTick;
+                cascade();
+
+                // Hand out the values in the level 0 slot of the tick
+                final int slot = (int) (currentTick & SLOT_MASK);
+                Entry<T> entry = slots[0][slot];
+                slots[0][slot] = null;
+                while (entry != null) {
+                    final Entry<T> next = entry.next;
+                    levelSizes[0]--;
+                    if (handOut(entry, expiredValuesOut)) count++;
+                    entry = next;
+                }
+
+                count += takeDue(expiredValuesOut);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Removes all scheduled values.
+     */
+    public void clear() {
+        // Mark the entries as done, so that cancelling them later does not change the size
+        for (Entry<T>[] level : slots) {
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                markDone(level[i]);
+                level[i] = null;
+            }
+        }
+        markDone(overflow);
+        markDone(due);
+        for (int i = 0; i < levelSizes.length; i++) {
+            levelSizes[i] = 0;
+        }
+        overflow = null;
+        due = null;
+        size = 0;
+    }
+
+    /**
+     * Moves the values in the slots of the higher levels that start at the current tick down to lower levels.
+     */
+    private void cascade() {
+        // Find the highest level whose current slot starts at this tick
+        int topLevel = 0;
+        while (topLevel < LEVEL_COUNT - 1 && ((currentTick >>> (SLOT_BITS * (topLevel + 1))) << (SLOT_BITS * (topLevel + 1))) == currentTick) {
+            topLevel++;
+        }
+        if (topLevel == LEVEL_COUNT - 1 && ((currentTick >>> (SLOT_BITS * LEVEL_COUNT)) << (SLOT_BITS * LEVEL_COUNT)) == currentTick) {
+            Entry<T> entry = overflow;
+            overflow = null;
+            levelSizes[LEVEL_COUNT] = 0;
+            replace(entry);
+        }
+
+        // Cascade from the top down, so that values can fall several levels
+        for (int level = topLevel; level > 0; level--) {
+            final int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+            final Entry<T> entry = slots[level][slot];
+            slots[level][slot] = null;
+            levelSizes[level] -= countEntries(entry);
+            replace(entry);
+        }
+    }
+
+    private void replace(Entry<T> entry) {
+        while (entry != null) {
+            final Entry<T> next = entry.next;
+            place(entry);
+            entry = next;
+        }
+    }
+
+    private void place(Entry<T> entry) {
+        final long tick = entry.tick;
+        if (tick <= currentTick) {
+            entry.next = due;
+            due = entry;
+            return;
+        }
+
+        // The level is given by the highest slot group where the tick differs from the current tick
+        final long difference = tick ^ currentTick;
+        int level = 0;
+        while (level < LEVEL_COUNT && (difference >>> (SLOT_BITS * (level + 1))) != 0) {
+            level++;
+        }
+
+        if (level == LEVEL_COUNT) {
+            entry.next = overflow;
+            overflow = entry;
+        }
+        else {
+            final int slot = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+            entry.next = slots[level][slot];
+            slots[level][slot] = entry;
+        }
+        levelSizes[level]++;
+    }
+
+    private static int countEntries(Entry<?> entry) {
+        int count = 0;
+        while (entry != null) {
+            count++;
+            entry = entry.next;
+        }
+        return count;
+    }
+
+    private int takeDue(Collection<? super T> expiredValuesOut) {
+        int count = 0;
+        Entry<T> entry = due;
+        due = null;
+        while (entry != null) {
+            if (handOut(entry, expiredValuesOut)) count++;
+            entry = entry.next;
+        }
+        return count;
+    }
+
+    private boolean handOut(Entry<T> entry, Collection<? super T> expiredValuesOut) {
+        // Cancelled entries are skipped
+        if (entry.done) return false;
+
+        entry.done = true;
+        expiredValuesOut.add(entry.value);
+        size--;
+        return true;
+    }
+
+    private static void markDone(Entry<?> entry) {
+        while (entry != null) {
+            entry.done = true;
+            entry = entry.next;
+        }
+    }
+
+    /**
+     * A value scheduled in a wheel.
+     */
+    public static final class Entry<T> {
+        private final long tick;
+        private T value;
+        private Entry<T> next;
+        private boolean done = false;
+
+        private Entry(long tick, T value) {
+            this.tick = tick;
+            this.value = value;
+        }
+
+        /**
+         * @return the scheduled value, or null if it has been cancelled.
+         */
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * @return true if the value has been handed out or cancelled.
+         */
+        public boolean isDone() {
+            return done;
+        }
+    }
+}
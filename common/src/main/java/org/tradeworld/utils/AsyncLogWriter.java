@@ -0,0 +1,281 @@
+package org.tradeworld.utils;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log messages from a background thread, so that logging threads never wait for the output.
+ *
+ * Logging threads claim a preallocated slot in a ring buffer and store the message template and arguments in it,
+ * the message is formatted and written by the writer thread.  If the buffer is full the message is dropped and counted,
+ * the writer reports the number of dropped messages.
+ */
+public final class AsyncLogWriter {
+
+    /**
+     * Default number of messages that can wait for writing.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final long IDLE_WAIT_NANOSECONDS = 1000000;
+
+    private static final AsyncLogWriter SHARED = createShared();
+
+    private final Slot[] slots;
+    private final int mask;
+    private final PrintStream out;
+
+    // Position of the next slot to claim, shared by the logging threads
+    private final AtomicLong claimPosition = new AtomicLong(0);
+
+    // Position of the next slot to write, only changed by the writer thread
+    private volatile long writePosition = 0;
+
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private long reportedDroppedCount = 0;
+
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    // Only used by the writer thread
+    private final StringBuilder line = new StringBuilder();
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+    private final Date date = new Date();
+
+    /**
+     * @return a writer shared by the whole application, writing to standard out.
+     */
+    public static AsyncLogWriter getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Creates a writer and starts its writer thread.
+     * @param capacity number of messages that can wait for writing, rounded up to a power of two.
+     * @param out stream to write the messages to.
+     * @param threadName name of the writer thread.
+     */
+    public AsyncLogWriter(int capacity, PrintStream out, String threadName) {
+        ParameterChecker.checkPositiveNonZeroInteger(capacity, "capacity");
+        ParameterChecker.checkNotNull(out, "out");
+        ParameterChecker.checkNonEmptyString(threadName, "threadName");
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(i);
+        }
+        mask = size - 1;
+        this.out = out;
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, threadName);
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues a message for writing.  Does not block.
+     * The arguments are converted to strings by the writer thread, so they should not be changed after logging.
+     *
+     * @param level level of the message.
+     * @param source name of the logging class or subsystem.
+     * @param message message, where each {} is replaced with the next argument.
+     * @param a first argument, or null.
+     * @param b second argument, or null.
+     * @param c third argument, or null.
+     * @param throwable exception to write the stack trace of, or null.
+     * @return true if the message was queued, false if the buffer was full and the message was dropped.
+     */
+    public boolean write(LogLevel level, String source, String message, Object a, Object b, Object c, Throwable throwable) {
+        final long timeMilliseconds = System.currentTimeMillis();
+
+        // Claim a free slot
+        long position;
+        Slot slot;
+        while (true) {
+            position = claimPosition.get();
+            slot = slots[(int) (position & mask)];
+            final long slotSequence = slot.sequence;
+            if (slotSequence == position) {
+                if (claimPosition.compareAndSet(position, position + 1)) break;
+            }
+            else if (slotSequence < position) {
+                // The writer has not yet written the message from the previous round in this slot
+                droppedCount.incrementAndGet();
+                return false;
+            }
+        }
+
+        slot.level = level;
+        slot.timeMilliseconds = timeMilliseconds;
+        slot.threadName = Thread.currentThread().getName();
+        slot.source = source;
+        slot.message = message;
+        slot.a = a;
+        slot.b = b;
+        slot.c = c;
+        slot.throwable = throwable;
+
+        // Publish to the writer
+        slot.sequence = position + 1;
+        return true;
+    }
+
+    /**
+     * @return number of messages dropped because the buffer was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Waits until the messages queued before the call have been written, or the timeout passes.
+     * @return true if the messages were written.
+     */
+    public boolean flush(long timeoutMilliseconds) {
+        final long target = claimPosition.get();
+        final long deadline = System.currentTimeMillis() + timeoutMilliseconds;
+        while (writePosition < target) {
+            if (!writerThread.isAlive() || System.currentTimeMillis() >= deadline) return false;
+            LockSupport.parkNanos(IDLE_WAIT_NANOSECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the queued messages and stops the writer thread.  Messages logged after this are not written.
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            final boolean wasRunning = running;
+
+            // Write all available messages
+            boolean wrote = false;
+            Slot slot = slots[(int) (writePosition & mask)];
+            while (slot.sequence == writePosition + 1) {
+                try {
+                    writeMessage(slot);
+                } catch (RuntimeException e) {
+                    // Keep the writer running even if formatting an argument fails
+                    out.println("Could not write log message from " + slot.source + ": " + e);
+                }
+                slot.clear();
+
+                // Hand the slot back to the logging threads for the next round
+                slot.sequence = writePosition + slots.length;
+                writePosition++;
+
+                wrote = true;
+                slot = slots[(int) (writePosition & mask)];
+            }
+
+            final long dropped = droppedCount.get();
+            if (dropped != reportedDroppedCount) {
+                out.println("Log buffer was full, dropped " + (dropped - reportedDroppedCount) + " log messages");
+                reportedDroppedCount = dropped;
+                wrote = true;
+            }
+
+            if (wrote) out.flush();
+            else if (!wasRunning) return;
+            else LockSupport.parkNanos(IDLE_WAIT_NANOSECONDS);
+        }
+    }
+
+    private void writeMessage(Slot slot) {
+        line.setLength(0);
+        date.setTime(slot.timeMilliseconds);
+        line.append(timeFormat.format(date)).append(' ');
+        line.append(slot.level).append(' ');
+        line.append('[').append(slot.threadName).append("] ");
+        line.append(slot.source).append(": ");
+        appendMessage(slot.message, slot.a, slot.b, slot.c);
+        out.println(line);
+
+        if (slot.throwable != null) slot.throwable.printStackTrace(out);
+    }
+
+    private void appendMessage(String message, Object a, Object b, Object c) {
+        if (message == null) {
+            line.append("null");
+            return;
+        }
+
+        int argument = 0;
+        int start = 0;
+        int placeholder = message.indexOf("{}");
+        while (placeholder >= 0 && argument < 3) {
+            line.append(message, start, placeholder);
+            line.append(argument == 0 ? a : argument == 1 ? b : c);
+            argument++;
+            start = placeholder + 2;
+            placeholder = message.indexOf("{}", start);
+        }
+        line.append(message, start, message.length());
+    }
+
+    private static AsyncLogWriter createShared() {
+        final AsyncLogWriter writer = new AsyncLogWriter(DEFAULT_CAPACITY, System.out, "LogWriter");
+
+        // Write pending messages on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writer.flush(1000);
+            }
+        }));
+
+        return writer;
+    }
+
+    /**
+     * Preallocated message storage in the ring buffer.
+     */
+    private static final class Slot {
+        // Equals the position the slot is free for, or the position + 1 when a message at that position is published
+        private volatile long sequence;
+
+        private LogLevel level;
+        private long timeMilliseconds;
+        private String threadName;
+        private String source;
+        private String message;
+        private Object a;
+        private Object b;
+        private Object c;
+        private Throwable throwable;
+
+        private Slot(long sequence) {
+            this.sequence = sequence;
+        }
+
+        private void clear() {
+            threadName = null;
+            source = null;
+            message = null;
+            a = null;
+            b = null;
+            c = null;
+            throwable = null;
+        }
+    }
+}
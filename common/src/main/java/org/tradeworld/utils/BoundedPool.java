@@ -0,0 +1,124 @@
+package org.tradeworld.utils;
+
+import java.util.ArrayDeque;
+
+/**
+ * A thread safe pool of reusable objects, that keeps at most maxSize objects.
+ * Objects released when the pool is full are dropped and left to the garbage collector.
+ *
+ * Keeps count of how often obtain could reuse an object, and how often the caller had to allocate a new one.
+ */
+public final class BoundedPool<T> {
+
+    private final ArrayDeque<T> objects = new ArrayDeque<T>();
+    private int maxSize;
+
+    private long reuseCount = 0;
+    private long allocationCount = 0;
+    private long releaseCount = 0;
+    private long discardCount = 0;
+
+    /**
+     * @param maxSize max number of objects to keep in the pool.  Zero to keep none.
+     */
+    public BoundedPool(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * @return a previously released object, or null if the pool is empty, in which case the caller should allocate a new object.
+     */
+    public synchronized T obtain() {
+        final T object = objects.pollLast();
+        if (object != null) reuseCount++;
+        else allocationCount++;
+        return object;
+    }
+
+    /**
+     * Returns an object to the pool.  The object should not be used by the caller after this.
+     * @return true if the object was stored, false if the pool was full and the object was dropped.
+     */
+    public synchronized boolean release(T object) {
+        ParameterChecker.checkNotNull(object, "object");
+
+        releaseCount++;
+        if (objects.size() < maxSize) {
+            objects.addLast(object);
+            return true;
+        }
+        else {
+            discardCount++;
+            return false;
+        }
+    }
+
+    /**
+     * @return number of objects currently in the pool.
+     */
+    public synchronized int getSize() {
+        return objects.size();
+    }
+
+    /**
+     * @return max number of objects kept in the pool.
+     */
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize max number of objects to keep in the pool.  Zero to keep none.  Extra pooled objects are dropped.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        ParameterChecker.checkNonNegativeInteger(maxSize, "maxSize");
+
+        this.maxSize = maxSize;
+        while (objects.size() > maxSize) {
+            objects.pollFirst();
+        }
+    }
+
+    /**
+     * Drops all pooled objects.
+     */
+    public synchronized void clear() {
+        objects.clear();
+    }
+
+    /**
+     * @return number of times obtain returned a pooled object.
+     */
+    public synchronized long getReuseCount() {
+        return reuseCount;
+    }
+
+    /**
+     * @return number of times obtain found the pool empty, so that the caller had to allocate a new object.
+     */
+    public synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+
+    /**
+     * @return number of times an object was released to the pool.
+     */
+    public synchronized long getReleaseCount() {
+        return releaseCount;
+    }
+
+    /**
+     * @return number of released objects that were dropped because the pool was full.
+     */
+    public synchronized long getDiscardCount() {
+        return discardCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BoundedPool{size=" + objects.size() + "/" + maxSize +
+               ", reused=" + reuseCount +
+               ", allocated=" + allocationCount +
+               ", discarded=" + discardCount + "}";
+    }
+}
@@ -0,0 +1,206 @@
+package org.tradeworld.utils;
+
+/**
+ * Keeps track of when the steps of a fixed timestep simulation loop are due, based on System.nanoTime.
+ *
+ * Steps are scheduled at fixed points in time, so the step rate does not drift when processing takes time.
+ * If processing falls behind, up to maxCatchUpSteps extra steps are run back to back to catch up,
+ * any steps beyond that are dropped so that the loop does not fall further and further behind under heavy load.
+ *
+ * The step methods should only be called from the simulation thread, the statistics and interpolation alpha can be read from any thread.
+ */
+public final class FixedStepTimer {
+
+    private static final long NANOSECONDS_PER_MILLISECOND = 1000000L;
+
+    private final Clock clock;
+    private final long stepNanoseconds;
+    private volatile int maxCatchUpSteps;
+
+    private volatile long nextStepTime;
+    private long stepStartTime;
+
+    private volatile long stepCount = 0;
+    private volatile long catchUpStepCount = 0;
+    private volatile long droppedStepCount = 0;
+    private volatile long overrunCount = 0;
+    private volatile long totalProcessingNanoseconds = 0;
+    private volatile long maxProcessingNanoseconds = 0;
+
+    /**
+     * @param stepMilliseconds length of one simulation step.
+     * @param maxCatchUpSteps max number of steps to run back to back when processing has fallen behind.
+     */
+    public FixedStepTimer(long stepMilliseconds, int maxCatchUpSteps) {
+        this(stepMilliseconds, maxCatchUpSteps, Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock source of the current time, and used to wait for steps.
+     */
+    FixedStepTimer(long stepMilliseconds, int maxCatchUpSteps, Clock clock) {
+        ParameterChecker.checkPositiveNonZeroNormalNumber(stepMilliseconds, "stepMilliseconds");
+        ParameterChecker.checkNotNull(clock, "clock");
+
+        this.clock = clock;
+        stepNanoseconds = stepMilliseconds * NANOSECONDS_PER_MILLISECOND;
+        setMaxCatchUpSteps(maxCatchUpSteps);
+        reset();
+    }
+
+    /**
+     * Starts counting steps from now, and clears statistics.
+     */
+    public void reset() {
+        nextStepTime = clock.nanoTime();
+        stepCount = 0;
+        catchUpStepCount = 0;
+        droppedStepCount = 0;
+        overrunCount = 0;
+        totalProcessingNanoseconds = 0;
+        maxProcessingNanoseconds = 0;
+    }
+
+    /**
+     * @return length of one simulation step in milliseconds.
+     */
+    public long getStepMilliseconds() {
+        return stepNanoseconds / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    /**
+     * @return max number of steps that are run back to back when processing has fallen behind.
+     */
+    public int getMaxCatchUpSteps() {
+        return maxCatchUpSteps;
+    }
+
+    /**
+     * @param maxCatchUpSteps max number of steps to run back to back when processing has fallen behind.
+     *                        Zero to never catch up, but drop all missed steps.
+     */
+    public void setMaxCatchUpSteps(int maxCatchUpSteps) {
+        ParameterChecker.checkNonNegativeInteger(maxCatchUpSteps, "maxCatchUpSteps");
+        this.maxCatchUpSteps = maxCatchUpSteps;
+    }
+
+    /**
+     * Waits until the next step is due.
+     * @return number of steps that should be run now, one normally, more if processing has fallen behind.
+     *         Call stepStarted and stepEnded around each of them.
+     */
+    public int awaitSteps() {
+        // Sleep until the next step is due
+        long now = clock.nanoTime();
+        long timeLeft = nextStepTime - now;
+        while (timeLeft > 0) {
+            clock.sleep(timeLeft);
+            now = clock.nanoTime();
+            timeLeft = nextStepTime - now;
+        }
+
+        // Determine how many steps are due, dropping the ones we can not catch up with
+        long dueSteps = 1 + (now - nextStepTime) / stepNanoseconds;
+        final long maxSteps = 1 + maxCatchUpSteps;
+        if (dueSteps > maxSteps) {
+            droppedStepCount += dueSteps - maxSteps;
+            nextStepTime += (dueSteps - maxSteps) * stepNanoseconds;
+            dueSteps = maxSteps;
+        }
+        catchUpStepCount += dueSteps - 1;
+
+        return (int) dueSteps;
+    }
+
+    /**
+     * Call before running a step.  Schedules the next step.
+     */
+    public void stepStarted() {
+        stepStartTime = clock.nanoTime();
+        nextStepTime += stepNanoseconds;
+    }
+
+    /**
+     * Call after running a step.  Updates statistics.
+     */
+    public void stepEnded() {
+        final long processingTime = clock.nanoTime() - stepStartTime;
+
+        stepCount++;
+        totalProcessingNanoseconds += processingTime;
+        if (processingTime > maxProcessingNanoseconds) maxProcessingNanoseconds = processingTime;
+        if (processingTime > stepNanoseconds) overrunCount++;
+    }
+
+    /**
+     * @return how far the current time is from the last simulated step towards the next one, in the range 0..1.
+     *         Can be used by clients to interpolate rendered positions between the last two simulation states.
+     */
+    public double getInterpolationAlpha() {
+        final double alpha = 1.0 - (double) (nextStepTime - clock.nanoTime()) / stepNanoseconds;
+        return MathTools.clampToZeroToOne(alpha);
+    }
+
+    /**
+     * @return number of steps run since the timer was reset.
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * @return number of steps that were run late, back to back with the previous one, to catch up after processing fell behind.
+     */
+    public long getCatchUpStepCount() {
+        return catchUpStepCount;
+    }
+
+    /**
+     * @return number of steps that were skipped because processing fell too far behind.
+     */
+    public long getDroppedStepCount() {
+        return droppedStepCount;
+    }
+
+    /**
+     * @return number of steps whose processing took longer than the step length.
+     */
+    public long getOverrunCount() {
+        return overrunCount;
+    }
+
+    /**
+     * @return the longest time that processing a step has taken, in seconds.
+     */
+    public double getMaxProcessingSeconds() {
+        return maxProcessingNanoseconds / 1000000000.0;
+    }
+
+    /**
+     * @return average time that processing a step has taken, in seconds.
+     */
+    public double getAverageProcessingSeconds() {
+        final long steps = stepCount;
+        if (steps == 0) return 0;
+        else return totalProcessingNanoseconds / 1000000000.0 / steps;
+    }
+
+    /**
+     * Source of time for the timer, replaced in tests.
+     */
+    static class Clock {
+        static final Clock SYSTEM = new Clock();
+
+        long nanoTime() {
+            return System.nanoTime();
+        }
+
+        void sleep(long nanoseconds) {
+            try {
+                Thread.sleep(nanoseconds / NANOSECONDS_PER_MILLISECOND, (int) (nanoseconds % NANOSECONDS_PER_MILLISECOND));
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.tradeworld.utils;
+
+/**
+ * Logs messages for a class or subsystem through an AsyncLogWriter.
+ *
+ * Messages are templates where each {} is replaced with the next argument.  The message is only formatted by the
+ * writer thread, so logging does not concatenate strings, and a disabled level only costs a level comparison.
+ * Check isDebugEnabled() etc. before computing arguments that are expensive to create.
+ */
+public final class Log {
+
+    private static volatile LogLevel minimumLevel = LogLevel.INFO;
+
+    private final String source;
+    private final AsyncLogWriter writer;
+
+    /**
+     * @return a log for the specified class, writing to the shared log writer.
+     */
+    public static Log get(Class<?> source) {
+        return new Log(source.getSimpleName(), AsyncLogWriter.getShared());
+    }
+
+    /**
+     * @param source name of the class or subsystem that logs the messages.
+     * @param writer writer to write the messages with.
+     */
+    public Log(String source, AsyncLogWriter writer) {
+        ParameterChecker.checkNonEmptyString(source, "source");
+        ParameterChecker.checkNotNull(writer, "writer");
+
+        this.source = source;
+        this.writer = writer;
+    }
+
+    /**
+     * @return the least important level of messages that are logged.
+     */
+    public static LogLevel getMinimumLevel() {
+        return minimumLevel;
+    }
+
+    /**
+     * @param minimumLevel the least important level of messages that are logged, applies to all logs.
+     *                     Use LogLevel.OFF to turn off logging.
+     */
+    public static void setMinimumLevel(LogLevel minimumLevel) {
+        ParameterChecker.checkNotNull(minimumLevel, "minimumLevel");
+        Log.minimumLevel = minimumLevel;
+    }
+
+    /**
+     * @return name of the class or subsystem that logs the messages.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public boolean isEnabled(LogLevel level) {
+        return level.compareTo(minimumLevel) >= 0;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(LogLevel.DEBUG);
+    }
+
+    public boolean isInfoEnabled() {
+        return isEnabled(LogLevel.INFO);
+    }
+
+    public void debug(String message) {
+        if (isEnabled(LogLevel.DEBUG)) writer.write(LogLevel.DEBUG, source, message, null, null, null, null);
+    }
+
+    public void debug(String message, Object a) {
+        if (isEnabled(LogLevel.DEBUG)) writer.write(LogLevel.DEBUG, source, message, a, null, null, null);
+    }
+
+    public void debug(String message, Object a, Object b) {
+        if (isEnabled(LogLevel.DEBUG)) writer.write(LogLevel.DEBUG, source, message, a, b, null, null);
+    }
+
+    public void debug(String message, Object a, Object b, Object c) {
+        if (isEnabled(LogLevel.DEBUG)) writer.write(LogLevel.DEBUG, source, message, a, b, c, null);
+    }
+
+    public void info(String message) {
+        if (isEnabled(LogLevel.INFO)) writer.write(LogLevel.INFO, source, message, null, null, null, null);
+    }
+
+    public void info(String message, Object a) {
+        if (isEnabled(LogLevel.INFO)) writer.write(LogLevel.INFO, source, message, a, null, null, null);
+    }
+
+    public void info(String message, Object a, Object b) {
+        if (isEnabled(LogLevel.INFO)) writer.write(LogLevel.INFO, source, message, a, b, null, null);
+    }
+
+    public void info(String message, Object a, Object b, Object c) {
+        if (isEnabled(LogLevel.INFO)) writer.write(LogLevel.INFO, source, message, a, b, c, null);
+    }
+
+    public void warning(String message) {
+        if (isEnabled(LogLevel.WARNING)) writer.write(LogLevel.WARNING, source, message, null, null, null, null);
+    }
+
+    public void warning(String message, Object a) {
+        if (isEnabled(LogLevel.WARNING)) writer.write(LogLevel.WARNING, source, message, a, null, null, null);
+    }
+
+    public void warning(String message, Object a, Object b) {
+        if (isEnabled(LogLevel.WARNING)) writer.write(LogLevel.WARNING, source, message, a, b, null, null);
+    }
+
+    public void warning(String message, Throwable throwable) {
+        if (isEnabled(LogLevel.WARNING)) writer.write(LogLevel.WARNING, source, message, null, null, null, throwable);
+    }
+
+    public void error(String message) {
+        if (isEnabled(LogLevel.ERROR)) writer.write(LogLevel.ERROR, source, message, null, null, null, null);
+    }
+
+    public void error(String message, Object a) {
+        if (isEnabled(LogLevel.ERROR)) writer.write(LogLevel.ERROR, source, message, a, null, null, null);
+    }
+
+    public void error(String message, Object a, Object b) {
+        if (isEnabled(LogLevel.ERROR)) writer.write(LogLevel.ERROR, source, message, a, b, null, null);
+    }
+
+    public void error(String message, Throwable throwable) {
+        if (isEnabled(LogLevel.ERROR)) writer.write(LogLevel.ERROR, source, message, null, null, null, throwable);
+    }
+}
@@ -0,0 +1,16 @@
+package org.tradeworld.utils;
+
+/**
+ * Importance of a log message, from least to most important.
+ */
+public enum LogLevel {
+    DEBUG,
+    INFO,
+    WARNING,
+    ERROR,
+
+    /**
+     * Used as the minimum level to turn off logging.
+     */
+    OFF
+}
@@ -31,15 +31,28 @@ public class Ticker {
      */
     public void tick() {
         long time = System.currentTimeMillis();
+        tick(time - lastFrameTimeStamp, time);
+    }
+
+    /**
+     * Call this every step of a fixed timestep simulation.
+     * Advances the ticker by exactly the specified duration, regardless of how much real time has passed.
+     * @param tickDurationMs length of the step.
+     */
+    public void tick(long tickDurationMs) {
+        tick(tickDurationMs, System.currentTimeMillis());
+    }
+
+    private void tick(long tickDurationMs, long time) {
         tickCount++;
-        lastTickDurationMs = Math.max(0, time - lastFrameTimeStamp);
+        lastTickDurationMs = Math.max(0, tickDurationMs);
         millisecondsSinceStart += lastTickDurationMs;
         lastTickDurationSeconds = lastTickDurationMs * 0.001;
         lastFrameTimeStamp = time;
     }
 
     public double getSecondsSinceLastTick() {
-        return 1000.0 * (System.currentTimeMillis() - lastFrameTimeStamp);
+        return 0.001 * (System.currentTimeMillis() - lastFrameTimeStamp);
     }
 
     public double getLastTickDurationSeconds() {
@@ -52,7 +65,7 @@ public class Ticker {
 
     public double getLastTicksPerSecond() {
         if (lastTickDurationMs == 0) return 0;
-        else return 1.0 / (lastTickDurationMs * 1000);
+        else return 1000.0 / lastTickDurationMs;
     }
 
     public long getMillisecondsSinceStart() {
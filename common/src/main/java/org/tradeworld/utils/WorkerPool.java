@@ -0,0 +1,179 @@
+package org.tradeworld.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of worker threads used to split up processing work between the available processors.
+ *
+ * The thread that starts a batch of tasks takes part in running them, and only waits for tasks that some other
+ * thread has already started.  So batches can be started from inside other batches without risk of deadlocking the pool.
+ */
+public final class WorkerPool {
+
+    private static final WorkerPool SHARED = new WorkerPool(Runtime.getRuntime().availableProcessors(), "SharedWorker");
+
+    private final ExecutorService executor;
+    private final int threadCount;
+
+    /**
+     * @return a pool shared by the whole application, with one thread per available processor.
+     */
+    public static WorkerPool getShared() {
+        return SHARED;
+    }
+
+    /**
+     * @param threadCount number of worker threads to use.
+     * @param threadName name prefix for the worker threads.
+     */
+    public WorkerPool(int threadCount, final String threadName) {
+        ParameterChecker.checkPositiveNonZeroInteger(threadCount, "threadCount");
+        ParameterChecker.checkNonEmptyString(threadName, "threadName");
+
+        this.threadCount = threadCount;
+        executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger nextThreadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName + "-" + nextThreadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return number of worker threads in this pool.
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Runs the task once for each index from 0 (inclusive) to taskCount (exclusive), using the worker threads and the calling thread.
+     * Returns when all the tasks have completed.
+     * If any task throws an exception, the rest of the tasks are still run, and then the exception of the task with the lowest index is re-thrown.
+     *
+     * @param taskCount number of times to run the task.
+     * @param task the task to run.
+     */
+    public void run(int taskCount, IndexedTask task) {
+        ParameterChecker.checkNotNull(task, "task");
+        if (taskCount <= 0) return;
+
+        if (taskCount == 1) {
+            // Not worth handing over to other threads
+            task.run(0);
+        }
+        else {
+            final Batch batch = new Batch(taskCount, task);
+
+            // Get help from worker threads
+            final int helperCount = Math.min(taskCount - 1, threadCount);
+            for (int i = 0; i < helperCount; i++) {
+                try {
+                    executor.execute(batch);
+                } catch (RejectedExecutionException e) {
+                    // Pool is shut down, the calling thread will do the remaining work.
+                    break;
+                }
+            }
+
+            // Work on the batch in this thread as well, then wait for any tasks still run by other threads
+            batch.run();
+            batch.awaitCompletion();
+        }
+    }
+
+    /**
+     * Stops the worker threads after any currently queued work is done.
+     * Batches started after shutdown are run in the calling thread.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * A task that is run once for each index in a batch.
+     */
+    public interface IndexedTask {
+
+        /**
+         * @param index index of the task in the batch.
+         */
+        void run(int index);
+    }
+
+    /**
+     * Keeps track of which tasks have been claimed and completed in a batch.
+     */
+    private static final class Batch implements Runnable {
+        private final int taskCount;
+        private final IndexedTask task;
+        private final AtomicInteger nextIndex = new AtomicInteger(0);
+        private final CountDownLatch completed;
+
+        private int errorIndex = Integer.MAX_VALUE;
+        private Throwable error = null;
+
+        private Batch(int taskCount, IndexedTask task) {
+            this.taskCount = taskCount;
+            this.task = task;
+            completed = new CountDownLatch(taskCount);
+        }
+
+        @Override
+        public void run() {
+            int index = nextIndex.getAndIncrement();
+            while (index < taskCount) {
+                try {
+                    task.run(index);
+                } catch (Throwable e) {
+                    recordError(index, e);
+                } finally {
+                    completed.countDown();
+                }
+
+                index = nextIndex.getAndIncrement();
+            }
+        }
+
+        private synchronized void recordError(int index, Throwable e) {
+            // Keep the error from the first task, so that the reported error does not depend on thread timing
+            if (index < errorIndex) {
+                errorIndex = index;
+                error = e;
+            }
+        }
+
+        private void awaitCompletion() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    completed.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // Tasks already started must complete before we return
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+
+            final Throwable e;
+            final int index;
+            synchronized (this) {
+                e = error;
+                index = errorIndex;
+            }
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            else if (e instanceof Error) throw (Error) e;
+            else if (e != null) throw new IllegalStateException("Exception when running task " + index + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -3,33 +3,68 @@ package org.tradeworld.utils.rstar;
 import org.tradeworld.utils.bbox.BoundingBox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Simple spatial index that just iterates all objects when queried.
+ *
+ * The bounds of the objects are stored when they are added or updated, so that searches see the same positions as the
+ * other indexes, also when updates are deferred.
  */
 public final class BruteForceSpatialIndex<T extends Bounded> extends SpatialIndexBase<T> {
 
     private final List<T> objects = new ArrayList<T>();
+    private double[] minX = new double[16];
+    private double[] minY = new double[16];
+    private double[] maxX = new double[16];
+    private double[] maxY = new double[16];
 
     @Override
     protected void rawAdd(T object) {
+        final int index = objects.size();
+        if (index == minX.length) {
+            final int capacity = index * 2;
+            minX = Arrays.copyOf(minX, capacity);
+            minY = Arrays.copyOf(minY, capacity);
+            maxX = Arrays.copyOf(maxX, capacity);
+            maxY = Arrays.copyOf(maxY, capacity);
+        }
+
         objects.add(object);
+        storeBounds(index, object);
     }
 
     @Override
     protected boolean rawRemove(T object) {
-        return objects.remove(object);
+        final int index = objects.indexOf(object);
+        if (index < 0) return false;
+
+        // Keep the order of the remaining objects
+        objects.remove(index);
+        final int moved = objects.size() - index;
+        System.arraycopy(minX, index + 1, minX, index, moved);
+        System.arraycopy(minY, index + 1, minY, index, moved);
+        System.arraycopy(maxX, index + 1, maxX, index, moved);
+        System.arraycopy(maxY, index + 1, maxY, index, moved);
+        return true;
+    }
+
+    @Override
+    protected void rawUpdate(T object) {
+        final int index = objects.indexOf(object);
+        if (index >= 0) storeBounds(index, object);
     }
 
     @Override
     protected int rawGetContained(BoundingBox area, Collection<T> resultOut) {
+        if (area.isEmpty()) return 0;
+
         int count = 0;
-        for (T object : objects) {
-            if (area.contains(object.getBounds())) {
-                resultOut.add(object);
+        for (int i = 0; i < objects.size(); i++) {
+            if (contains(area, i)) {
+                resultOut.add(objects.get(i));
                 count++;
             }
         }
@@ -39,10 +74,67 @@ public final class BruteForceSpatialIndex<T extends Bounded> extends SpatialInde
 
     @Override
     protected int rawGetIntersecting(BoundingBox area, Collection<T> resultOut) {
+        if (area.isEmpty()) return 0;
+
+        int count = 0;
+        for (int i = 0; i < objects.size(); i++) {
+            if (intersects(area, i)) {
+                resultOut.add(objects.get(i));
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    protected int rawVisitContained(BoundingBox area, SpatialVisitor<? super T> visitor) {
+        if (area.isEmpty()) return 0;
+
+        int count = 0;
+        for (int i = 0; i < objects.size(); i++) {
+            if (contains(area, i)) {
+                count++;
+                if (!visitor.visit(objects.get(i))) break;
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    protected int rawVisitIntersecting(BoundingBox area, SpatialVisitor<? super T> visitor) {
+        if (area.isEmpty()) return 0;
+
         int count = 0;
-        for (T object : objects) {
-            if (area.intersects(object.getBounds())) {
-                resultOut.add(object);
+        for (int i = 0; i < objects.size(); i++) {
+            if (intersects(area, i)) {
+                count++;
+                if (!visitor.visit(objects.get(i))) break;
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    protected int rawGetNearest(double x, double y, int count, double maxSquaredDistance, List<T> resultOut) {
+        // Sort the objects within the max distance by distance
+        final NearestCandidates<T> candidates = new NearestCandidates<T>();
+        for (int i = 0; i < objects.size(); i++) {
+            final double squaredDistance = squaredDistanceTo(i, x, y);
+            if (squaredDistance <= maxSquaredDistance) candidates.add(objects.get(i), squaredDistance);
+        }
+
+        return candidates.addNearest(count, resultOut);
+    }
+
+    @Override
+    protected int rawGetWithinRadius(double x, double y, double squaredRadius, Collection<T> resultOut) {
+        int count = 0;
+        for (int i = 0; i < objects.size(); i++) {
+            if (squaredDistanceTo(i, x, y) <= squaredRadius) {
+                resultOut.add(objects.get(i));
                 count++;
             }
         }
@@ -54,4 +146,26 @@ public final class BruteForceSpatialIndex<T extends Bounded> extends SpatialInde
     protected boolean rawContains(T object) {
         return objects.contains(object);
     }
+
+    private void storeBounds(int index, T object) {
+        final BoundingBox bounds = object.getBounds();
+        minX[index] = bounds.getMinX();
+        minY[index] = bounds.getMinY();
+        maxX[index] = bounds.getMaxX();
+        maxY[index] = bounds.getMaxY();
+    }
+
+    private boolean contains(BoundingBox area, int index) {
+        return minX[index] >= area.getMinX() && minY[index] >= area.getMinY() &&
+               maxX[index] <= area.getMaxX() && maxY[index] <= area.getMaxY();
+    }
+
+    private boolean intersects(BoundingBox area, int index) {
+        return minX[index] <= area.getMaxX() && maxX[index] >= area.getMinX() &&
+               minY[index] <= area.getMaxY() && maxY[index] >= area.getMinY();
+    }
+
+    private double squaredDistanceTo(int index, double x, double y) {
+        return squaredDistanceToBox(x, y, minX[index], minY[index], maxX[index], maxY[index]);
+    }
 }
@@ -0,0 +1,411 @@
+package org.tradeworld.utils.rstar;
+
+import org.tradeworld.utils.ParameterChecker;
+import org.tradeworld.utils.bbox.BoundingBox;
+
+import java.util.*;
+
+/**
+ * Spatial index that stores objects in a loose uniform grid of square cells.  The cells are kept in a hash table,
+ * so the grid has no fixed size, and only cells with objects in them use memory.
+ *
+ * Each object is stored in the cell that contains the center of its bounds.  Objects at most half a cell in size are
+ * stored in the cells, searches check the cells within half a cell of the searched area to find the objects that extend
+ * outside their cell.  Larger objects are kept in a separate list that is checked in every search.
+ *
+ * Moving an object that stays in its cell only updates the bounds stored for it.  Works best for objects of similar size,
+ * with a cell size of about two times the object size, or the size of typical search areas if that is larger.
+ */
+public final class GridSpatialIndex<T extends Bounded> extends SpatialIndexBase<T> {
+
+    /**
+     * Default width and height of a cell.
+     */
+    public static final double DEFAULT_CELL_SIZE = 10;
+
+    private static final int CONTAINED = 0;
+    private static final int INTERSECTING = 1;
+    private static final int WITHIN_RADIUS = 2;
+
+    private final double cellSize;
+    private final double maxCellObjectSize;
+
+    private final CellTable<T> cells = new CellTable<T>();
+
+    // Objects larger than maxCellObjectSize
+    private final Cell<T> largeObjects = new Cell<T>(0, 0);
+
+    // Cell that each object is in
+    private final Map<T, Cell<T>> objectCells = new IdentityHashMap<T, Cell<T>>();
+
+    /**
+     * Creates an index with the default cell size.
+     */
+    public GridSpatialIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * @param cellSize width and height of a cell.
+     */
+    public GridSpatialIndex(double cellSize) {
+        ParameterChecker.checkPositiveNonZeroNormalNumber(cellSize, "cellSize");
+
+        this.cellSize = cellSize;
+        maxCellObjectSize = cellSize * 0.5;
+    }
+
+    /**
+     * @return width and height of a cell.
+     */
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    @Override
+    protected void rawAdd(T object) {
+        final BoundingBox bounds = object.getBounds();
+        add(object, bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY());
+    }
+
+    @Override
+    protected boolean rawRemove(T object) {
+        final Cell<T> cell = objectCells.remove(object);
+        if (cell == null) return false;
+
+        removeFromCell(cell, object);
+        return true;
+    }
+
+    @Override
+    protected void rawUpdate(T object) {
+        final Cell<T> cell = objectCells.get(object);
+        if (cell == null) return;
+
+        final BoundingBox bounds = object.getBounds();
+        final double x1 = bounds.getMinX();
+        final double y1 = bounds.getMinY();
+        final double x2 = bounds.getMaxX();
+        final double y2 = bounds.getMaxY();
+
+        // Update in place if the object stays in the same cell
+        final boolean large = isLarge(x1, y1, x2, y2);
+        final boolean sameCell = cell == largeObjects ?
+                                 large :
+                                 !large && cell.x == toCell(0.5 * (x1 + x2)) && cell.y == toCell(0.5 * (y1 + y2));
+        if (sameCell) {
+            cell.set(cell.indexOf(object), object, x1, y1, x2, y2);
+        }
+        else {
+            removeFromCell(cell, object);
+            add(object, x1, y1, x2, y2);
+        }
+    }
+
+    @Override
+    protected boolean rawContains(T object) {
+        return objectCells.containsKey(object);
+    }
+
+    @Override
+    protected int rawGetContained(BoundingBox area, Collection<T> resultOut) {
+        if (area.isEmpty()) return 0;
+        return search(area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY(), CONTAINED, 0, 0, 0, null, resultOut);
+    }
+
+    @Override
+    protected int rawGetIntersecting(BoundingBox area, Collection<T> resultOut) {
+        if (area.isEmpty()) return 0;
+        return search(area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY(), INTERSECTING, 0, 0, 0, null, resultOut);
+    }
+
+    @Override
+    protected int rawVisitContained(BoundingBox area, SpatialVisitor<? super T> visitor) {
+        if (area.isEmpty()) return 0;
+        return search(area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY(), CONTAINED, 0, 0, 0, visitor, null);
+    }
+
+    @Override
+    protected int rawVisitIntersecting(BoundingBox area, SpatialVisitor<? super T> visitor) {
+        if (area.isEmpty()) return 0;
+        return search(area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY(), INTERSECTING, 0, 0, 0, visitor, null);
+    }
+
+    @Override
+    protected int rawGetWithinRadius(double x, double y, double squaredRadius, Collection<T> resultOut) {
+        final double radius = Math.sqrt(squaredRadius);
+        return search(x - radius, y - radius, x + radius, y + radius, WITHIN_RADIUS, x, y, squaredRadius, null, resultOut);
+    }
+
+    @Override
+    protected int rawGetNearest(double x, double y, int count, double maxSquaredDistance, List<T> resultOut) {
+        // Search ever larger circles, until there are enough objects in one.  They include the nearest ones.
+        final List<T> found = new ArrayList<T>();
+        double radius = cellSize;
+        while (true) {
+            final double squaredRadius = Math.min(radius * radius, maxSquaredDistance);
+            found.clear();
+            rawGetWithinRadius(x, y, squaredRadius, found);
+            if (found.size() >= count ||
+                found.size() == objectCells.size() ||
+                squaredRadius >= maxSquaredDistance) break;
+            radius *= 2;
+        }
+
+        // Sort by the stored bounds, which the radius search used, as the current bounds may have changed since
+        final NearestCandidates<T> candidates = new NearestCandidates<T>();
+        for (T object : found) {
+            final Cell<T> cell = objectCells.get(object);
+            final int i = cell.indexOf(object);
+            candidates.add(object, squaredDistanceToBox(x, y, cell.minX[i], cell.minY[i], cell.maxX[i], cell.maxY[i]));
+        }
+
+        return candidates.addNearest(count, resultOut);
+    }
+
+    /**
+     * Finds the objects matching the search, and passes them to the visitor, or if there is no visitor,
+     * adds them to the result collection.  Radius searches use the circle at x, y, and the area as the bounds of the circle.
+     * Checks the large objects first, and then the cells overlapping the area, or all cells if there are fewer of them.
+     */
+    private int search(double x1, double y1, double x2, double y2, int searchType, double x, double y, double squaredRadius,
+                       SpatialVisitor<? super T> visitor, Collection<T> resultOut) {
+        // Objects in cells extend at most a quarter of a cell outside them, check half a cell around the area to be safe from rounding
+        final long cellX1 = toCell(x1 - maxCellObjectSize);
+        final long cellY1 = toCell(y1 - maxCellObjectSize);
+        final long cellX2 = toCell(x2 + maxCellObjectSize);
+        final long cellY2 = toCell(y2 + maxCellObjectSize);
+        final boolean scanAllCells = (double) (cellX2 - cellX1 + 1) * (cellY2 - cellY1 + 1) > cells.size;
+
+        final Cell<T>[] table = cells.table;
+        int tableIndex = 0;
+        long cellX = cellX1;
+        long cellY = cellY1;
+
+        int numResults = 0;
+        Cell<T> cell = largeObjects;
+        while (cell != null) {
+            final double[] minX = cell.minX;
+            final double[] minY = cell.minY;
+            final double[] maxX = cell.maxX;
+            final double[] maxY = cell.maxY;
+            for (int i = 0; i < cell.size; i++) {
+                final boolean found;
+                if (searchType == CONTAINED) {
+                    found = minX[i] >= x1 && minY[i] >= y1 && maxX[i] <= x2 && maxY[i] <= y2;
+                }
+                else if (searchType == INTERSECTING) {
+                    found = minX[i] <= x2 && maxX[i] >= x1 && minY[i] <= y2 && maxY[i] >= y1;
+                }
+                else {
+                    found = squaredDistanceToBox(x, y, minX[i], minY[i], maxX[i], maxY[i]) <= squaredRadius;
+                }
+
+                if (found) {
+                    numResults++;
+                    if (visitor == null) {
+                        resultOut.add(cell.getObject(i));
+                    }
+                    else if (!visitor.visit(cell.getObject(i))) {
+                        // Stopped by the visitor
+                        return numResults;
+                    }
+                }
+            }
+
+            // Move to the next cell with objects
+            cell = null;
+            if (scanAllCells) {
+                while (cell == null && tableIndex < table.length) {
+                    cell = table[tableIndex++];
+                }
+            }
+            else {
+                while (cell == null && cellY <= cellY2) {
+                    cell = cells.get((int) cellX, (int) cellY);
+                    if (cellX < cellX2) {
+                        cellX++;
+                    }
+                    else {
+                        cellX = cellX1;
+                        cellY++;
+                    }
+                }
+            }
+        }
+
+        return numResults;
+    }
+
+    private void add(T object, double x1, double y1, double x2, double y2) {
+        final Cell<T> cell;
+        if (isLarge(x1, y1, x2, y2)) {
+            cell = largeObjects;
+        }
+        else {
+            cell = cells.getOrCreate(toCell(0.5 * (x1 + x2)), toCell(0.5 * (y1 + y2)));
+        }
+
+        cell.add(object, x1, y1, x2, y2);
+        objectCells.put(object, cell);
+    }
+
+    private void removeFromCell(Cell<T> cell, T object) {
+        cell.removeAt(cell.indexOf(object));
+
+        // Forget empty cells, so that searches do not need to check them
+        if (cell.size == 0 && cell != largeObjects) cells.remove(cell);
+    }
+
+    private boolean isLarge(double x1, double y1, double x2, double y2) {
+        return x2 - x1 > maxCellObjectSize || y2 - y1 > maxCellObjectSize;
+    }
+
+    /**
+     * @return the coordinate of the cell containing the coordinate.  Coordinates far away are clamped to the outermost cells.
+     */
+    private int toCell(double coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    /**
+     * A grid cell, with the objects in it and their bounds.
+     */
+    private static final class Cell<T> {
+        private final int x;
+        private final int y;
+
+        private int size = 0;
+        private Object[] objects = new Object[4];
+        private double[] minX = new double[4];
+        private double[] minY = new double[4];
+        private double[] maxX = new double[4];
+        private double[] maxY = new double[4];
+
+        private Cell(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        private T getObject(int index) {
+            return (T) objects[index];
+        }
+
+        private int indexOf(Object object) {
+            for (int i = 0; i < size; i++) {
+                if (objects[i] == object) return i;
+            }
+            return -1;
+        }
+
+        private void add(Object object, double x1, double y1, double x2, double y2) {
+            if (size == objects.length) {
+                final int capacity = size * 2;
+                objects = Arrays.copyOf(objects, capacity);
+                minX = Arrays.copyOf(minX, capacity);
+                minY = Arrays.copyOf(minY, capacity);
+                maxX = Arrays.copyOf(maxX, capacity);
+                maxY = Arrays.copyOf(maxY, capacity);
+            }
+            set(size++, object, x1, y1, x2, y2);
+        }
+
+        private void set(int index, Object object, double x1, double y1, double x2, double y2) {
+            objects[index] = object;
+            minX[index] = x1;
+            minY[index] = y1;
+            maxX[index] = x2;
+            maxY[index] = y2;
+        }
+
+        /**
+         * Removes the object at the index, replacing it with the last object.
+         */
+        private void removeAt(int index) {
+            final int last = --size;
+            if (index != last) {
+                set(index, objects[last], minX[last], minY[last], maxX[last], maxY[last]);
+            }
+            objects[last] = null;
+        }
+    }
+
+    /**
+     * Hash table of the cells with objects, by cell coordinates.  Uses open addressing with linear probing.
+     */
+    private static final class CellTable<T> {
+        private Cell<T>[] table = new Cell[64];
+        private int size = 0;
+
+        private Cell<T> get(int x, int y) {
+            final int mask = table.length - 1;
+            int index = hash(x, y) & mask;
+            Cell<T> cell = table[index];
+            while (cell != null) {
+                if (cell.x == x && cell.y == y) return cell;
+                index = (index + 1) & mask;
+                cell = table[index];
+            }
+            return null;
+        }
+
+        private Cell<T> getOrCreate(int x, int y) {
+            Cell<T> cell = get(x, y);
+            if (cell == null) {
+                // Keep the table at most half full
+                if (2 * (size + 1) > table.length) resize(table.length * 2);
+
+                cell = new Cell<T>(x, y);
+                insert(cell);
+                size++;
+            }
+            return cell;
+        }
+
+        private void remove(Cell<T> cell) {
+            final int mask = table.length - 1;
+            int index = hash(cell.x, cell.y) & mask;
+            while (table[index] != cell) {
+                index = (index + 1) & mask;
+            }
+            table[index] = null;
+            size--;
+
+            // Move back following cells that can not be found past the emptied slot anymore
+            int next = (index + 1) & mask;
+            while (table[next] != null) {
+                final Cell<T> movedCell = table[next];
+                final int home = hash(movedCell.x, movedCell.y) & mask;
+                final boolean homeBetween = index <= next ? index < home && home <= next : index < home || home <= next;
+                if (!homeBetween) {
+                    table[index] = movedCell;
+                    table[next] = null;
+                    index = next;
+                }
+                next = (next + 1) & mask;
+            }
+        }
+
+        private void insert(Cell<T> cell) {
+            final int mask = table.length - 1;
+            int index = hash(cell.x, cell.y) & mask;
+            while (table[index] != null) {
+                index = (index + 1) & mask;
+            }
+            table[index] = cell;
+        }
+
+        private void resize(int capacity) {
+            final Cell<T>[] oldTable = table;
+            table = new Cell[capacity];
+            for (Cell<T> cell : oldTable) {
+                if (cell != null) insert(cell);
+            }
+        }
+
+        private static int hash(int x, int y) {
+            final int hash = x * 0x9E3779B1 + y * 0x85EBCA6B;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -1,506 +1,1102 @@
 package org.tradeworld.utils.rstar;
 
+import org.tradeworld.utils.ParameterChecker;
 import org.tradeworld.utils.bbox.BoundingBox;
-import org.tradeworld.utils.bbox.MutableBoundingBox;
 
 import java.util.*;
 
 /**
  * R*-Tree based spatial index.
+ *
+ * Each node stores the bounds of its children in parallel minX / minY / maxX / maxY arrays, so that searching a node
+ * scans contiguous memory instead of following a bounding box object per child.  Leaf nodes store the bounds that the
+ * objects had when they were added or last moved.
+ *
+ * The leaf node of each object is kept in an identity map, so that removing an object or checking if it is contained
+ * does not need to search the tree.  Moved objects are updated in place in their leaf, if their new bounds are still
+ * inside the bounds of the parent of the leaf.
+ *
+ * In copy on write mode the nodes that readers can see are never modified.  A modification copies the nodes it changes,
+ * along with the path from them to the root, and the new root is published to readers when the modification is done.
+ * Searches then need no locking, and see the tree as it was after the last finished modification.
+ * Modifications get slower and produce more garbage, so use it when many threads search while the index changes.
  */
 public class RStarSpatialIndex<T extends Bounded> extends SpatialIndexBase<T> {
 
-    // TODO: Implement test, comparing this to brute force implementation
     // TODO: Include graphical visualization in test.
 
-    // TODO: Make maxFill and other parameters parametrizable
-    private static final int maxFill = 1000;
-    private static final int minFill = (int) (maxFill * 0.4);
+    /**
+     * Default max number of children in a node.
+     */
+    public static final int DEFAULT_MAX_NODE_SIZE = 32;
+
+    /**
+     * Smallest allowed max number of children in a node.
+     */
+    public static final int MIN_MAX_NODE_SIZE = 4;
+
+    private static final double MIN_FILL_FRACTION = 0.4;
     private static final double RE_INSERTION_FRACTION = 0.3;
 
-    private Node<T> rootNode = new Node<T>();
+    // When at least this fraction of the objects are updated at once, the tree is rebuilt with bulk loading instead
+    private static final double REBUILD_FRACTION = 0.125;
 
-    private static final Comparator<Node> NODE_X_COMPARATOR = new Comparator<Node>() {
-        @Override
-        public int compare(Node o1, Node o2) {
-            double o1Min = o1.getBounds().getMinX();
-            double o2Min = o2.getBounds().getMinX();
+    private final int maxNodeSize;
+    private final int minNodeSize;
 
-            // Sort primarily by min coordinate
-            if (o1Min < o2Min) return -1;
-            else if (o1Min > o2Min) return 1;
-            else {
-                double o1Max = o1.getBounds().getMaxX();
-                double o2Max = o2.getBounds().getMaxX();
+    private final boolean copyOnWrite;
 
-                // Secondary by max coordinate
-                if (o1Max < o2Max) return -1;
-                else if (o1Max > o2Max) return 1;
-                else return 0;
-            }
+    // Root of the tree being modified, only used by the writing thread
+    private Node<T> rootNode;
+
+    // Root of the tree as it was after the last finished modification, used by searches
+    private volatile Node<T> publishedRoot;
+
+    // Nodes created during this modification have this epoch, and can be changed in place in copy on write mode
+    private long writeEpoch = 0;
+
+    // Leaf node that each object is in
+    private final Map<T, Node<T>> leafNodes = new IdentityHashMap<T, Node<T>>();
+
+    // Queue used in nearest object searches, reused between searches by the same thread
+    private final ThreadLocal<DistanceQueue> distanceQueues = new ThreadLocal<DistanceQueue>() {
+        @Override
+        protected DistanceQueue initialValue() {
+            return new DistanceQueue();
         }
     };
 
-    private static final Comparator<Node> NODE_Y_COMPARATOR = new Comparator<Node>() {
+    // Nodes left to visit in searches, reused between searches by the same thread
+    private final ThreadLocal<NodeStack<T>> searchStacks = new ThreadLocal<NodeStack<T>>() {
         @Override
-        public int compare(Node o1, Node o2) {
-            double o1Min = o1.getBounds().getMinY();
-            double o2Min = o2.getBounds().getMinY();
+        protected NodeStack<T> initialValue() {
+            return new NodeStack<T>();
+        }
+    };
 
-            // Sort primarily by min coordinate
-            if (o1Min < o2Min) return -1;
-            else if (o1Min > o2Min) return 1;
-            else {
-                double o1Max = o1.getBounds().getMaxY();
-                double o2Max = o2.getBounds().getMaxY();
+    // Levels where an overflow has already been handled by re-inserting during the current insertion, one bit per level
+    private long reInsertedLevels = 0;
 
-                // Secondary by max coordinate
-                if (o1Max < o2Max) return -1;
-                else if (o1Max > o2Max) return 1;
-                else return 0;
-            }
+    // Temporary storage used when splitting nodes
+    private final double[] prefixBounds;
+    private final double[] suffixBounds;
+    private double chosenSplitOverlap;
+    private double chosenSplitArea;
+
+    private static final Comparator<PackEntry> PACK_ENTRY_X_COMPARATOR = new Comparator<PackEntry>() {
+        @Override
+        public int compare(PackEntry o1, PackEntry o2) {
+            return Double.compare(o1.minX + o1.maxX, o2.minX + o2.maxX);
         }
     };
 
-    protected void rawAdd(T object) {
-        // Create leaf node for the object
-        Node<T> entry = new Node<T>(object);
+    private static final Comparator<PackEntry> PACK_ENTRY_Y_COMPARATOR = new Comparator<PackEntry>() {
+        @Override
+        public int compare(PackEntry o1, PackEntry o2) {
+            return Double.compare(o1.minY + o1.maxY, o2.minY + o2.maxY);
+        }
+    };
 
-        addNode(entry, new BitSet());
+    /**
+     * Creates an index with the default max node size.
+     */
+    public RStarSpatialIndex() {
+        this(DEFAULT_MAX_NODE_SIZE);
     }
 
-    private void addNode(Node<T> entry, BitSet overflowsAtDepths) {
-        // Determine where to add
-        Node<T> nodeToAddObjectTo = chooseSubtree(rootNode, entry.getBounds());
+    /**
+     * @param maxNodeSize max number of children in a node.  Values around 8 to 64 work well,
+     *                    larger nodes make the tree shallower but each visited node slower to search.
+     */
+    public RStarSpatialIndex(int maxNodeSize) {
+        this(maxNodeSize, false);
+    }
 
-        // Add
-        nodeToAddObjectTo.addChildNode(entry);
+    /**
+     * @param maxNodeSize max number of children in a node.
+     * @param copyOnWrite if true, searches do not lock the index, and modifications copy the nodes they change instead.
+     */
+    public RStarSpatialIndex(int maxNodeSize, boolean copyOnWrite) {
+        super(copyOnWrite);
+        ParameterChecker.checkIntegerEqualsOrLargerThan(maxNodeSize, "maxNodeSize", MIN_MAX_NODE_SIZE);
+
+        this.maxNodeSize = maxNodeSize;
+        this.copyOnWrite = copyOnWrite;
+        minNodeSize = Math.max(2, (int) (maxNodeSize * MIN_FILL_FRACTION));
+        rootNode = createNode(0);
+        rawCommit();
+
+        prefixBounds = new double[4 * (maxNodeSize + 1)];
+        suffixBounds = new double[4 * (maxNodeSize + 1)];
+    }
 
-        // Check if the chosen subtree got filled to max capacity
-        if (nodeToAddObjectTo.getSize() > maxFill) {
+    /**
+     * @return max number of children in a node.
+     */
+    public final int getMaxNodeSize() {
+        return maxNodeSize;
+    }
 
-            // Handle overflow, first time at each depth level by re-inserting some of the nodes, subsequent times by splitting the node.
-            int depth = nodeToAddObjectTo.getDepth();
-            if (depth > 0 && !overflowsAtDepths.get(depth)) {
+    /**
+     * @return true if searches do not lock the index, and modifications copy the nodes they change.
+     */
+    public final boolean isCopyOnWrite() {
+        return copyOnWrite;
+    }
 
-                // Mark overflow handled at this depth
-                overflowsAtDepths.set(depth);
+    @Override
+    protected void rawAdd(T object) {
+        final BoundingBox bounds = object.getBounds();
+        reInsertedLevels = 0;
+        insert(object, bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY(), 0);
+    }
 
-                // Remove some nodes from the overflowing node, and add them back to the root.
-                reInsertSomeNodes(nodeToAddObjectTo, overflowsAtDepths);
-            }
-            else {
-                // If we are splitting the root, create a new root and add the old root to it first.
-                if (nodeToAddObjectTo == rootNode) {
-                    rootNode = new Node<T>();
-                    rootNode.addChildNode(nodeToAddObjectTo);
-                }
+    @Override
+    protected void rawAddAll(Collection<T> objects) {
+        if (objects.isEmpty()) return;
+
+        // Pack the objects into a tree
+        List<PackEntry> entries = new ArrayList<PackEntry>(objects.size());
+        for (T object : objects) {
+            final BoundingBox bounds = object.getBounds();
+            entries.add(new PackEntry(object, bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY()));
+        }
+        Node<T> packedRoot = buildPackedTree(entries);
 
-                // Split node into two
-                nodeToAddObjectTo.split();
+        if (rootNode.size == 0) {
+            // Use the packed tree as is
+            rootNode = packedRoot;
+        }
+        else {
+            // Merge the lower tree into the higher one
+            if (packedRoot.level > rootNode.level) {
+                final Node<T> oldRoot = rootNode;
+                rootNode = packedRoot;
+                packedRoot = oldRoot;
             }
+            mergeSubtree(packedRoot);
         }
     }
 
-    private void reInsertSomeNodes(Node<T> overFilledNode, BitSet overflowsAtDepths) {
-        if (overFilledNode.isLeaf()) throw new IllegalStateException("reInsert not possible for leaf nodes");
-
-        // Sort nodes by distance from child node centers to the center of this node
-        final double centerX = overFilledNode.getBounds().getCenterX();
-        final double centerY = overFilledNode.getBounds().getCenterY();
-        Collections.sort(overFilledNode.childNodes, new Comparator<Node<T>>() {
-            @Override
-            public int compare(Node<T> o1, Node<T> o2) {
-                double d1 = o1.getBounds().getSquaredCenterDistanceTo(centerX, centerY);
-                double d2 = o2.getBounds().getSquaredCenterDistanceTo(centerX, centerY);
-
-                if (d1 < d2) return -1;
-                else if (d1 > d2) return 1;
-                else return 0;
-            }
-        });
+    @Override
+    protected boolean rawRemove(T object) {
+        final Node<T> containingLeaf = leafNodes.get(object);
+        if (containingLeaf == null) return false;
+
+        final Node<T> leaf = mutable(containingLeaf);
+        leafNodes.remove(object);
+        leaf.removeAt(leaf.indexOf(object));
+        condenseTree(leaf);
+        return true;
+    }
 
-        // Remove some percentage of furthest away ones
-        int nodesToRemoveCount = (int) (overFilledNode.getSize() * RE_INSERTION_FRACTION);
-        List<Node<T>> removedNodes = new ArrayList<Node<T>>(nodesToRemoveCount);
-        int start = overFilledNode.getSize() - 1;
-        int end = Math.max(0, overFilledNode.getSize() - nodesToRemoveCount);
-        for (int i = start; i >= end; i--) {
-            removedNodes.add(overFilledNode.childNodes.get(i));
-            overFilledNode.childNodes.remove(i);
+    @Override
+    protected void rawUpdate(T object) {
+        Node<T> leaf = leafNodes.get(object);
+        if (leaf == null) return;
+
+        final BoundingBox bounds = object.getBounds();
+        final double x1 = bounds.getMinX();
+        final double y1 = bounds.getMinY();
+        final double x2 = bounds.getMaxX();
+        final double y2 = bounds.getMaxY();
+
+        // Update in place if the object stays within its leaf, or within the parent of its leaf, in which case only the
+        // leaf bounds need to grow.  Otherwise re-insert it, to keep the tree tight.
+        final Node<T> parent = leaf.parent;
+        if (parent == null ||
+            isInsideParentBounds(leaf, x1, y1, x2, y2) ||
+            (parent.parent != null && isInsideParentBounds(parent, x1, y1, x2, y2))) {
+            leaf = mutable(leaf);
+            leaf.set(leaf.indexOf(object), object, x1, y1, x2, y2);
+            updateBoundsInParents(leaf);
         }
-
-        // Recalculate node bounds
-        overFilledNode.recalculateBounds(true);
-
-        // Re-insert removed nodes
-        for (int i = removedNodes.size() - 1; i >= 0; i--) {
-            Node<T> removedNode = removedNodes.get(i);
-            addNode(removedNode, overflowsAtDepths);
+        else {
+            rawRemove(object);
+            rawAdd(object);
         }
     }
 
-
     @Override
-    protected boolean rawRemove(T object) {
-        final BoundingBox boundingBox = object.getBounds();
-        if (boundingBox != null) {
-            // Find node for the object
-            Node<T> node = rootNode.getNodeFor(object);
-
-            if (node != null) {
-                // Remove node
-                final Node<T> parent = node.getParent();
-                parent.removeChildNode(node);
-
-                // If parent has less than min capacity, merge
-                if (!parent.isRoot() && parent.getSize() < minFill) {
-                    // Remove parent node
-                    parent.getParent().removeChildNode(parent);
-
-                    // Add all its children to the tree
-                    BitSet overflowsAtDepths = new BitSet();
-                    for (Node<T> childNode : parent.getChildNodes()) {
-                        //overflowsAtDepths.clear();
-                        addNode(childNode, overflowsAtDepths);
-                    }
-                }
-                return true;
-            }
+    protected void rawUpdateAll(Collection<T> objects) {
+        if (objects.size() >= leafNodes.size() * REBUILD_FRACTION && !leafNodes.isEmpty()) {
+            // Faster to pack all objects into a new tree than to update this many objects one at a time
+            final List<T> allObjects = new ArrayList<T>(leafNodes.keySet());
+            leafNodes.clear();
+            rootNode = createNode(0);
+            rawAddAll(allObjects);
+        }
+        else {
+            super.rawUpdateAll(objects);
         }
+    }
+
+    @Override
+    protected void rawCommit() {
+        publishedRoot = rootNode;
 
-        return false;
+        // Nodes created so far are now visible to searches, and should be copied before changing them
+        if (copyOnWrite) writeEpoch++;
     }
 
     @Override
     protected boolean rawContains(T object) {
-        return rootNode.getNodeFor(object) != null;
+        return leafNodes.containsKey(object);
     }
 
     @Override
     protected int rawGetContained(BoundingBox area, Collection<T> resultOut) {
-        return getContainedObjectsFromNode(rootNode, area, resultOut);
+        return search(area, true, null, resultOut);
     }
 
     @Override
     protected int rawGetIntersecting(BoundingBox area, Collection<T> resultOut) {
-        return getIntersectingObjectsFromNode(rootNode, area, resultOut);
+        return search(area, false, null, resultOut);
     }
 
-    private int getContainedObjectsFromNode(Node<T> node, BoundingBox searchArea, Collection<T> resultOut) {
-        int numResults = 0;
+    @Override
+    protected int rawVisitContained(BoundingBox area, SpatialVisitor<? super T> visitor) {
+        return search(area, true, visitor, null);
+    }
 
-        if (node.isLeaf() && searchArea.contains(node.getBounds())) {
-            // Include data object in result
-            resultOut.add(node.getContent());
-            numResults++;
-        }
-        else if (searchArea.intersects(node.getBounds())) {
-            // If non-leaf node with overlapping area, check each child node
-            for (Node<T> childNode : node.getChildNodes()) {
-                numResults += getContainedObjectsFromNode(childNode, searchArea, resultOut);
+    @Override
+    protected int rawVisitIntersecting(BoundingBox area, SpatialVisitor<? super T> visitor) {
+        return search(area, false, visitor, null);
+    }
+
+    /**
+     * Finds the objects contained in or intersecting the area, and passes them to the visitor, or if there is no visitor,
+     * adds them to the result collection.  Traverses the tree depth first with a per thread stack of nodes, without recursion.
+     */
+    private int search(BoundingBox area, boolean containedOnly, SpatialVisitor<? super T> visitor, Collection<T> resultOut) {
+        if (area.isEmpty()) return 0;
+
+        final double x1 = area.getMinX();
+        final double y1 = area.getMinY();
+        final double x2 = area.getMaxX();
+        final double y2 = area.getMaxY();
+
+        // Searches started from a visitor use the stack above the nodes of the outer search
+        final NodeStack<T> stack = searchStacks.get();
+        final int base = stack.size;
+        stack.push(publishedRoot);
+
+        int numResults = 0;
+        try {
+            while (stack.size > base) {
+                final Node<T> node = stack.pop();
+                final double[] minX = node.minX;
+                final double[] minY = node.minY;
+                final double[] maxX = node.maxX;
+                final double[] maxY = node.maxY;
+                final int size = node.size;
+
+                if (node.isLeaf()) {
+                    for (int i = 0; i < size; i++) {
+                        final boolean found = containedOnly ?
+                                              minX[i] >= x1 && minY[i] >= y1 && maxX[i] <= x2 && maxY[i] <= y2 :
+                                              minX[i] <= x2 && maxX[i] >= x1 && minY[i] <= y2 && maxY[i] >= y1;
+                        if (found) {
+                            numResults++;
+                            if (visitor == null) {
+                                resultOut.add(node.getObject(i));
+                            }
+                            else if (!visitor.visit(node.getObject(i))) {
+                                // Stopped by the visitor
+                                return numResults;
+                            }
+                        }
+                    }
+                }
+                else {
+                    for (int i = 0; i < size; i++) {
+                        if (minX[i] <= x2 && maxX[i] >= x1 && minY[i] <= y2 && maxY[i] >= y1) {
+                            // Overlapping child node, check its children later
+                            stack.push(node.getChildNode(i));
+                        }
+                    }
+                }
             }
         }
+        finally {
+            stack.popTo(base);
+        }
 
         return numResults;
     }
 
-    private int getIntersectingObjectsFromNode(Node<T> node, BoundingBox searchArea, Collection<T> resultOut) {
+    @Override
+    protected int rawGetNearest(double x, double y, int count, double maxSquaredDistance, List<T> resultOut) {
+        // Best first search, always expanding the closest node or object found so far.
+        // An object is the nearest remaining one when it comes before all nodes that could contain something closer.
+        final DistanceQueue queue = distanceQueues.get();
         int numResults = 0;
-
-        if (searchArea.intersects(node.getBounds())) {
-            if (node.isLeaf()) {
-                // Include intersecting data object in result
-                resultOut.add(node.getContent());
-                numResults++;
-            }
-            else {
-                // If non leaf node with overlapping area, check each child node
-                for (Node<T> childNode : node.getChildNodes()) {
-                    numResults += getIntersectingObjectsFromNode(childNode, searchArea, resultOut);
+        try {
+            queue.add(publishedRoot, 0);
+            while (numResults < count && !queue.isEmpty()) {
+                final double squaredDistance = queue.getFirstSquaredDistance();
+                if (squaredDistance > maxSquaredDistance) break;
+
+                final Object item = queue.removeFirst();
+                if (item instanceof Node) {
+                    final Node<T> node = (Node<T>) item;
+                    for (int i = 0; i < node.size; i++) {
+                        final double childSquaredDistance = squaredDistanceToBox(x, y, node.minX[i], node.minY[i], node.maxX[i], node.maxY[i]);
+                        if (childSquaredDistance <= maxSquaredDistance) queue.add(node.children[i], childSquaredDistance);
+                    }
+                }
+                else {
+                    resultOut.add((T) item);
+                    numResults++;
                 }
             }
         }
+        finally {
+            queue.clear();
+        }
 
         return numResults;
     }
 
+    @Override
+    protected int rawGetWithinRadius(double x, double y, double squaredRadius, Collection<T> resultOut) {
+        final NodeStack<T> stack = searchStacks.get();
+        final int base = stack.size;
+        stack.push(publishedRoot);
 
-    private double calculateCombinedArea(BoundingBox originalBox, BoundingBox boxToInclude) {
-        double x1 = Math.min(originalBox.getMinX(), boxToInclude.getMinX());
-        double x2 = Math.max(originalBox.getMaxX(), boxToInclude.getMaxX());
-        double y1 = Math.min(originalBox.getMinY(), boxToInclude.getMinY());
-        double y2 = Math.max(originalBox.getMaxY(), boxToInclude.getMaxY());
-        double xSize = x2 - x1;
-        double ySize = y2 - y1;
-        return xSize * ySize;
-    }
-
-    private Node<T> chooseSubtree(Node<T> parentNode, BoundingBox boundsToAdd) {
-        // Find most suitable leaf node to contain the object
-        Node<T> node = parentNode;
-        while (true) {
-            // Choose a child node whose boundaries needs least area enlargement to include the new object
-            Node<T> bestChildNode = null;
-            double bestAreaEnlargementNeeded = Double.POSITIVE_INFINITY;
-            for (Node<T> childNode : node.getChildNodes()) {
-                if (!childNode.isLeaf()) {
-                    double areaEnlargementNeeded =  calculateCombinedArea(childNode.getBounds(), boundsToAdd) - childNode.getBounds().getArea();
-                    if (bestChildNode == null || areaEnlargementNeeded < bestAreaEnlargementNeeded) {
-                        bestChildNode = childNode;
-                        bestAreaEnlargementNeeded = areaEnlargementNeeded;
+        int numResults = 0;
+        try {
+            while (stack.size > base) {
+                final Node<T> node = stack.pop();
+                for (int i = 0; i < node.size; i++) {
+                    if (squaredDistanceToBox(x, y, node.minX[i], node.minY[i], node.maxX[i], node.maxY[i]) <= squaredRadius) {
+                        if (node.isLeaf()) {
+                            resultOut.add(node.getObject(i));
+                            numResults++;
+                        }
+                        else {
+                            stack.push(node.getChildNode(i));
+                        }
                     }
                 }
             }
+        }
+        finally {
+            stack.popTo(base);
+        }
+
+        return numResults;
+    }
+
+    /**
+     * Inserts an object or subtree into a node at the specified level, handling any overflow.
+     * @param level level of the node to add the child to, 0 for objects, the level of the child node + 1 for nodes.
+     */
+    private void insert(Object child, double x1, double y1, double x2, double y2, int level) {
+        final Node<T> node = mutable(chooseSubtree(x1, y1, x2, y2, level));
+        addChild(node, child, x1, y1, x2, y2);
+        updateBoundsInParents(node);
+
+        if (node.size > maxNodeSize) handleOverflow(node);
+    }
 
-            if (bestChildNode == null) {
-                // No suitable child nodes found, add to this node
-                return node;
+    private Node<T> chooseSubtree(double x1, double y1, double x2, double y2, int level) {
+        // Descend to the child whose bounds need least area enlargement to include the new bounds, or has smallest area on ties
+        Node<T> node = rootNode;
+        while (node.level > level) {
+            int bestIndex = 0;
+            double bestEnlargement = Double.POSITIVE_INFINITY;
+            double bestArea = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < node.size; i++) {
+                final double area = (node.maxX[i] - node.minX[i]) * (node.maxY[i] - node.minY[i]);
+                final double combinedArea = (Math.max(node.maxX[i], x2) - Math.min(node.minX[i], x1)) *
+                                            (Math.max(node.maxY[i], y2) - Math.min(node.minY[i], y1));
+                final double enlargement = combinedArea - area;
+                if (enlargement < bestEnlargement || (enlargement == bestEnlargement && area < bestArea)) {
+                    bestIndex = i;
+                    bestEnlargement = enlargement;
+                    bestArea = area;
+                }
             }
 
-            // Descend into the best subnode
-            node = bestChildNode;
+            node = node.getChildNode(bestIndex);
         }
+        return node;
     }
 
+    private void handleOverflow(Node<T> node) {
+        // Handle overflow, first time at each level by re-inserting some of the children, subsequent times by splitting the node.
+        final long levelBit = 1L << node.level;
+        if (node != rootNode && (reInsertedLevels & levelBit) == 0) {
+            reInsertedLevels |= levelBit;
+            reInsertSomeChildren(node);
+        }
+        else {
+            split(node);
+        }
+    }
 
-    /**
-     * A node in the RStar spatial index.
-     */
-    private static final class Node<T extends Bounded> {
-        private Node<T> parent = null;
-        private final BoundingBox bounds;
-        private final List<Node<T>> childNodes;
-        private final T content;
+    private void reInsertSomeChildren(Node<T> node) {
+        final int size = node.size;
+
+        // Sort children by distance from their centers to the center of the node
+        double nodeMinX = Double.POSITIVE_INFINITY;
+        double nodeMinY = Double.POSITIVE_INFINITY;
+        double nodeMaxX = Double.NEGATIVE_INFINITY;
+        double nodeMaxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            nodeMinX = Math.min(nodeMinX, node.minX[i]);
+            nodeMinY = Math.min(nodeMinY, node.minY[i]);
+            nodeMaxX = Math.max(nodeMaxX, node.maxX[i]);
+            nodeMaxY = Math.max(nodeMaxY, node.maxY[i]);
+        }
+        final double centerX2 = nodeMinX + nodeMaxX;
+        final double centerY2 = nodeMinY + nodeMaxY;
+        final double[] distances = new double[size];
+        for (int i = 0; i < size; i++) {
+            final double dx = node.minX[i] + node.maxX[i] - centerX2;
+            final double dy = node.minY[i] + node.maxY[i] - centerY2;
+            distances[i] = dx * dx + dy * dy;
+        }
+        final int[] order = sortedOrder(distances, null, size);
+        node.reorder(order);
+
+        // Remove some percentage of the furthest away ones
+        final int keptCount = size - Math.max(1, (int) (size * RE_INSERTION_FRACTION));
+        final int removedCount = size - keptCount;
+        final Object[] removedChildren = new Object[removedCount];
+        final double[] removedBounds = new double[4 * removedCount];
+        for (int i = 0; i < removedCount; i++) {
+            final int index = keptCount + i;
+            removedChildren[i] = node.children[index];
+            removedBounds[4 * i] = node.minX[index];
+            removedBounds[4 * i + 1] = node.minY[index];
+            removedBounds[4 * i + 2] = node.maxX[index];
+            removedBounds[4 * i + 3] = node.maxY[index];
+        }
+        node.truncate(keptCount);
+        updateBoundsInParents(node);
 
-        /**
-         * Creates a new non-leaf node.
-         */
-        public Node() {
-            this.bounds = new MutableBoundingBox();
-            this.content = null;
-            this.childNodes = new ArrayList<Node<T>>();
+        // Re-insert removed children, closest first
+        for (int i = 0; i < removedCount; i++) {
+            insert(removedChildren[i], removedBounds[4 * i], removedBounds[4 * i + 1], removedBounds[4 * i + 2], removedBounds[4 * i + 3], node.level);
         }
+    }
 
-        /**
-         * Creates a new leaf node.
-         */
-        public Node(T content) {
-            if (content == null) throw new IllegalArgumentException("Content should not be null for a leaf node.");
-            if (content.getBounds() == null) throw new IllegalArgumentException("Bounds should not be null for a leaf node.");
+    private void split(Node<T> node) {
+        final int size = node.size;
+
+        // Sort children along each axis by lower and by upper boundary
+        final int[] xByMin = sortedOrder(node.minX, node.maxX, size);
+        final int[] xByMax = sortedOrder(node.maxX, node.minX, size);
+        final int[] yByMin = sortedOrder(node.minY, node.maxY, size);
+        final int[] yByMax = sortedOrder(node.maxY, node.minY, size);
+
+        // Determine split axis - use the axis with the smallest circumference sum of its distributions
+        final boolean splitAlongX = marginSum(node, xByMin) + marginSum(node, xByMax) <=
+                                    marginSum(node, yByMin) + marginSum(node, yByMax);
+        final int[] byMin = splitAlongX ? xByMin : yByMin;
+        final int[] byMax = splitAlongX ? xByMax : yByMax;
+
+        // Determine the distribution with the smallest overlap between the two groups, or the smallest area on ties
+        final int byMinSplitIndex = chooseSplitIndex(node, byMin);
+        final double byMinOverlap = chosenSplitOverlap;
+        final double byMinArea = chosenSplitArea;
+        final int byMaxSplitIndex = chooseSplitIndex(node, byMax);
+        final boolean useByMin = byMinOverlap < chosenSplitOverlap ||
+                                 (byMinOverlap == chosenSplitOverlap && byMinArea <= chosenSplitArea);
+        final int[] order = useByMin ? byMin : byMax;
+        final int splitIndex = useByMin ? byMinSplitIndex : byMaxSplitIndex;
+
+        // Move the second group to a new node
+        node.reorder(order);
+        final Node<T> splitNode = createNode(node.level);
+        for (int i = splitIndex; i < size; i++) {
+            addChild(splitNode, node.children[i], node.minX[i], node.minY[i], node.maxX[i], node.maxY[i]);
+        }
+        node.truncate(splitIndex);
+
+        // If we are splitting the root, create a new root and add the old root to it first.
+        if (node == rootNode) {
+            rootNode = createNode(node.level + 1);
+            addChildNode(rootNode, node);
+        }
+        else {
+            updateBoundsInParents(node);
+        }
+
+        // Add split node to parent
+        final Node<T> parent = node.parent;
+        addChildNode(parent, splitNode);
+        if (parent.size > maxNodeSize) handleOverflow(parent);
+    }
 
-            this.bounds = content.getBounds();
-            this.content = content;
-            this.childNodes = null;
+    private double marginSum(Node<T> node, int[] order) {
+        final int size = node.size;
+        calculateGroupBounds(node, order);
+
+        // Iterate all distributions of the children where they are split into two groups
+        double sum = 0;
+        for (int splitIndex = minNodeSize; splitIndex <= size - minNodeSize; splitIndex++) {
+            final int prefix = 4 * (splitIndex - 1);
+            final int suffix = 4 * splitIndex;
+            sum += prefixBounds[prefix + 2] - prefixBounds[prefix] + prefixBounds[prefix + 3] - prefixBounds[prefix + 1];
+            sum += suffixBounds[suffix + 2] - suffixBounds[suffix] + suffixBounds[suffix + 3] - suffixBounds[suffix + 1];
         }
+        return sum;
+    }
 
-        public Node<T> getParent() {
-            return parent;
+    /**
+     * @return the index to split the children at, in the specified order, that gives the smallest overlap between the groups.
+     *         The overlap and area of the chosen split are stored in chosenSplitOverlap and chosenSplitArea.
+     */
+    private int chooseSplitIndex(Node<T> node, int[] order) {
+        final int size = node.size;
+        calculateGroupBounds(node, order);
+
+        int bestIndex = minNodeSize;
+        double minimumOverlap = Double.POSITIVE_INFINITY;
+        double minimumArea = Double.POSITIVE_INFINITY;
+        for (int splitIndex = minNodeSize; splitIndex <= size - minNodeSize; splitIndex++) {
+            final int prefix = 4 * (splitIndex - 1);
+            final int suffix = 4 * splitIndex;
+            final double ax1 = prefixBounds[prefix];
+            final double ay1 = prefixBounds[prefix + 1];
+            final double ax2 = prefixBounds[prefix + 2];
+            final double ay2 = prefixBounds[prefix + 3];
+            final double bx1 = suffixBounds[suffix];
+            final double by1 = suffixBounds[suffix + 1];
+            final double bx2 = suffixBounds[suffix + 2];
+            final double by2 = suffixBounds[suffix + 3];
+
+            final double overlapX = Math.min(ax2, bx2) - Math.max(ax1, bx1);
+            final double overlapY = Math.min(ay2, by2) - Math.max(ay1, by1);
+            final double overlap = overlapX > 0 && overlapY > 0 ? overlapX * overlapY : 0;
+            final double area = (ax2 - ax1) * (ay2 - ay1) + (bx2 - bx1) * (by2 - by1);
+
+            if (overlap < minimumOverlap || (overlap == minimumOverlap && area < minimumArea)) {
+                minimumOverlap = overlap;
+                minimumArea = area;
+                bestIndex = splitIndex;
+            }
         }
 
-        public Node<T> getRoot() {
-            if (parent == null) return this;
-            else return parent.getRoot();
+        chosenSplitOverlap = minimumOverlap;
+        chosenSplitArea = minimumArea;
+        return bestIndex;
+    }
+
+    /**
+     * Calculates the bounds of the first n and the last size - n children, for each n, in the specified order.
+     */
+    private void calculateGroupBounds(Node<T> node, int[] order) {
+        final int size = node.size;
+
+        double x1 = Double.POSITIVE_INFINITY;
+        double y1 = Double.POSITIVE_INFINITY;
+        double x2 = Double.NEGATIVE_INFINITY;
+        double y2 = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            final int child = order[i];
+            x1 = Math.min(x1, node.minX[child]);
+            y1 = Math.min(y1, node.minY[child]);
+            x2 = Math.max(x2, node.maxX[child]);
+            y2 = Math.max(y2, node.maxY[child]);
+            prefixBounds[4 * i] = x1;
+            prefixBounds[4 * i + 1] = y1;
+            prefixBounds[4 * i + 2] = x2;
+            prefixBounds[4 * i + 3] = y2;
         }
 
-        public T getContent() {
-            return content;
+        x1 = Double.POSITIVE_INFINITY;
+        y1 = Double.POSITIVE_INFINITY;
+        x2 = Double.NEGATIVE_INFINITY;
+        y2 = Double.NEGATIVE_INFINITY;
+        for (int i = size - 1; i >= 0; i--) {
+            final int child = order[i];
+            x1 = Math.min(x1, node.minX[child]);
+            y1 = Math.min(y1, node.minY[child]);
+            x2 = Math.max(x2, node.maxX[child]);
+            y2 = Math.max(y2, node.maxY[child]);
+            suffixBounds[4 * i] = x1;
+            suffixBounds[4 * i + 1] = y1;
+            suffixBounds[4 * i + 2] = x2;
+            suffixBounds[4 * i + 3] = y2;
         }
+    }
 
-        public boolean isRoot() {
-            return parent == null;
+    /**
+     * @return indexes from 0 to size sorted by the primary key, and by the secondary key on ties.
+     */
+    private static int[] sortedOrder(double[] primaryKey, double[] secondaryKey, int size) {
+        final int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
         }
 
-        public boolean isLeaf() {
-            return content != null;
+        // Insertion sort, nodes are small
+        for (int i = 1; i < size; i++) {
+            final int index = order[i];
+            final double primary = primaryKey[index];
+            final double secondary = secondaryKey == null ? 0 : secondaryKey[index];
+            int j = i - 1;
+            while (j >= 0 && (primaryKey[order[j]] > primary ||
+                              (secondaryKey != null && primaryKey[order[j]] == primary && secondaryKey[order[j]] > secondary))) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = index;
         }
 
-        public BoundingBox getBounds() {
-            return bounds;
+        return order;
+    }
+
+    /**
+     * Removes underfilled nodes on the path from the node to the root, and re-inserts their children.
+     */
+    private void condenseTree(Node<T> node) {
+        List<Node<T>> removedNodes = null;
+        while (node != rootNode) {
+            final Node<T> parent = node.parent;
+            if (node.size < minNodeSize) {
+                parent.removeAt(node.indexInParent);
+                if (removedNodes == null) removedNodes = new ArrayList<Node<T>>();
+                removedNodes.add(node);
+            }
+            else {
+                updateBoundsInParents(node);
+            }
+            node = parent;
         }
 
-        public List<Node<T>> getChildNodes() {
-            return childNodes == null ? Collections.<Node<T>>emptyList() : childNodes;
+        // Re-insert the children of removed nodes at their original level
+        if (removedNodes != null) {
+            for (Node<T> removedNode : removedNodes) {
+                if (rootNode.size == 0 && rootNode.level > 0) {
+                    rootNode = createNode(0);
+                }
+                if (rootNode.level < removedNode.level) {
+                    // Tree is too shallow for the removed subtrees, re-insert their objects one by one
+                    reInsertObjects(removedNode);
+                }
+                else {
+                    for (int i = 0; i < removedNode.size; i++) {
+                        reInsertedLevels = 0;
+                        insert(removedNode.children[i], removedNode.minX[i], removedNode.minY[i], removedNode.maxX[i], removedNode.maxY[i], removedNode.level);
+                    }
+                }
+            }
         }
 
-        public void addChildNode(Node<T> node) {
-            if (isLeaf()) throw new IllegalArgumentException("Can not add child nodes to a leaf node");
+        // Shorten the tree if the root only has one child node
+        while (rootNode.level > 0 && rootNode.size == 1) {
+            final Node<T> child = rootNode.getChildNode(0);
+            child.parent = null;
+            child.indexInParent = -1;
+            rootNode = child;
+        }
+        if (rootNode.level > 0 && rootNode.size == 0) {
+            rootNode = createNode(0);
+        }
+    }
 
-            // Add node
-            rawAddChildNode(node);
+    private void reInsertObjects(Node<T> node) {
+        for (int i = 0; i < node.size; i++) {
+            if (node.isLeaf()) {
+                reInsertedLevels = 0;
+                insert(node.children[i], node.minX[i], node.minY[i], node.maxX[i], node.maxY[i], 0);
+            }
+            else {
+                reInsertObjects(node.getChildNode(i));
+            }
+        }
+    }
 
-            // Update bounds
-            includeInBounds(node.getBounds());
+    /**
+     * Adds the children of the root of a subtree to the tree, at their level.  The subtree should not be higher than the tree.
+     */
+    private void mergeSubtree(Node<T> subtreeRoot) {
+        for (int i = 0; i < subtreeRoot.size; i++) {
+            final Object child = subtreeRoot.children[i];
+            if (!subtreeRoot.isLeaf()) {
+                final Node<T> childNode = (Node<T>) child;
+                childNode.parent = null;
+            }
+            reInsertedLevels = 0;
+            insert(child, subtreeRoot.minX[i], subtreeRoot.minY[i], subtreeRoot.maxX[i], subtreeRoot.maxY[i], subtreeRoot.level);
         }
+    }
 
-        public int getDepth() {
-            if (parent == null) return 0;
-            else return parent.getDepth() + 1;
+    /**
+     * Builds a tree from the entries using Sort-Tile-Recursive packing, in O(n log n) time.
+     * Each level is sorted into vertical slices by x, and each slice is sorted by y and cut into full nodes.
+     * @return root node of the packed tree.
+     */
+    private Node<T> buildPackedTree(List<PackEntry> entries) {
+        int level = 0;
+        while (entries.size() > maxNodeSize) {
+            entries = packLevel(entries, level++);
         }
 
-        private void includeInBounds(final BoundingBox boundsToInclude) {
-            // Update bounds
-            ((MutableBoundingBox) bounds).include(boundsToInclude);
+        final Node<T> root = createNode(level);
+        for (PackEntry entry : entries) {
+            addChild(root, entry.child, entry.minX, entry.minY, entry.maxX, entry.maxY);
+        }
+        return root;
+    }
 
-            // Notify parent as well
-            if (parent != null) parent.includeInBounds(boundsToInclude);
+    private List<PackEntry> packLevel(List<PackEntry> entries, int level) {
+        final int nodeCount = (entries.size() + maxNodeSize - 1) / maxNodeSize;
+        final int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+        final int sliceSize = sliceCount * maxNodeSize;
+
+        Collections.sort(entries, PACK_ENTRY_X_COMPARATOR);
+
+        final List<PackEntry> parents = new ArrayList<PackEntry>(nodeCount);
+        for (int sliceStart = 0; sliceStart < entries.size(); sliceStart += sliceSize) {
+            final List<PackEntry> slice = entries.subList(sliceStart, Math.min(sliceStart + sliceSize, entries.size()));
+            Collections.sort(slice, PACK_ENTRY_Y_COMPARATOR);
+
+            for (int start = 0; start < slice.size(); start += maxNodeSize) {
+                final Node<T> node = createNode(level);
+                final PackEntry parent = new PackEntry(node, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+                final int end = Math.min(start + maxNodeSize, slice.size());
+                for (int i = start; i < end; i++) {
+                    final PackEntry entry = slice.get(i);
+                    addChild(node, entry.child, entry.minX, entry.minY, entry.maxX, entry.maxY);
+                    parent.include(entry);
+                }
+                parents.add(parent);
+            }
         }
 
-        private void rawAddChildNode(Node<T> node) {
-            // Set parent to this
-            node.parent = this;
+        return parents;
+    }
+
+    private Node<T> createNode(int level) {
+        return new Node<T>(level, maxNodeSize, writeEpoch);
+    }
+
+    /**
+     * @return the node, or in copy on write mode, if the node may be seen by searches, a copy of it that has replaced it
+     *         in the tree.  The nodes on the path to the root are copied too.
+     */
+    private Node<T> mutable(Node<T> node) {
+        if (node.epoch == writeEpoch) return node;
 
-            // Add to list of child nodes
-            childNodes.add(node);
+        final Node<T> copy = new Node<T>(node, writeEpoch);
+        if (node.parent == null) {
+            rootNode = copy;
+        }
+        else {
+            final Node<T> parent = mutable(node.parent);
+            parent.children[copy.indexInParent] = copy;
+            copy.parent = parent;
         }
 
-        public void removeChildNode(Node<T> node) {
-            if (isLeaf()) throw new IllegalStateException("Can not remove a child node from a leaf node");
+        // Point the children to the copy.  Searches do not use the parents, so the original can share the children.
+        for (int i = 0; i < copy.size; i++) {
+            if (copy.isLeaf()) leafNodes.put(copy.getObject(i), copy);
+            else copy.getChildNode(i).parent = copy;
+        }
+
+        return copy;
+    }
+
+    /**
+     * @return true if the bounds are inside the bounds stored for the node in its parent.
+     */
+    private static boolean isInsideParentBounds(Node<?> node, double x1, double y1, double x2, double y2) {
+        final Node<?> parent = node.parent;
+        final int index = node.indexInParent;
+        return x1 >= parent.minX[index] && y1 >= parent.minY[index] && x2 <= parent.maxX[index] && y2 <= parent.maxY[index];
+    }
+
+    private void addChild(Node<T> node, Object child, double x1, double y1, double x2, double y2) {
+        node.add(child, x1, y1, x2, y2);
+        if (node.isLeaf()) leafNodes.put((T) child, node);
+    }
 
-            if (childNodes.remove(node)) {
-                node.parent = null;
+    private void addChildNode(Node<T> parent, Node<T> child) {
+        // The bounds are calculated by updateBoundsInParents
+        parent.add(child, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+        updateBoundsInParents(child);
+    }
 
-                // Update bounds
-                recalculateBounds(true);
+    /**
+     * Updates the bounds stored for the node in its parent, and the bounds of the parents above it, as long as they change.
+     */
+    private static <T extends Bounded> void updateBoundsInParents(Node<T> node) {
+        while (node.parent != null) {
+            final Node<T> parent = node.parent;
+            final int index = node.indexInParent;
+
+            double x1 = Double.POSITIVE_INFINITY;
+            double y1 = Double.POSITIVE_INFINITY;
+            double x2 = Double.NEGATIVE_INFINITY;
+            double y2 = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < node.size; i++) {
+                x1 = Math.min(x1, node.minX[i]);
+                y1 = Math.min(y1, node.minY[i]);
+                x2 = Math.max(x2, node.maxX[i]);
+                y2 = Math.max(y2, node.maxY[i]);
             }
-        }
 
-        public int getSize() {
-            return childNodes == null ? 0 : childNodes.size();
+            if (parent.minX[index] == x1 && parent.minY[index] == y1 && parent.maxX[index] == x2 && parent.maxY[index] == y2) return;
+
+            parent.minX[index] = x1;
+            parent.minY[index] = y1;
+            parent.maxX[index] = x2;
+            parent.maxY[index] = y2;
+
+            node = parent;
         }
+    }
 
-        public void split() {
-            if (isLeaf()) throw new IllegalStateException("Can not split a leaf node");
-            if (isRoot()) throw new IllegalStateException("Can not split the root node");
+    /**
+     * A node in the RStar spatial index.  Has room for one child more than the max size, to hold it until the overflow is handled.
+     */
+    private static final class Node<T extends Bounded> {
+        // Zero for leaf nodes, whose children are the indexed objects, the level of the child nodes + 1 for other nodes.
+        private final int level;
 
-            // Sort nodes by (lower and upper) x and y boundaries  (primary order by upper boundary, secondary by lower).
-            List<Node<T>> childNodesByX = childNodes;
-            List<Node<T>> childNodesByY = new ArrayList<Node<T>>(childNodes);
-            Collections.sort(childNodesByX, NODE_X_COMPARATOR);
-            Collections.sort(childNodesByY, NODE_Y_COMPARATOR);
+        // Write epoch of the index when the node was created
+        private final long epoch;
 
-            // Determine split axis - use the axis with the smallest circumference sum of it's distributions
-            double circumferenceSumX = calculateCircumferenceSum(childNodesByX);
-            double circumferenceSumY = calculateCircumferenceSum(childNodesByY);
-            boolean splitAlongX = circumferenceSumX <= circumferenceSumY;
-            List<Node<T>> sortedChildren;
-            if (splitAlongX) sortedChildren = childNodesByX;
-            else sortedChildren = childNodesByY;
+        private Node<T> parent = null;
+        private int indexInParent = -1;
+
+        private int size = 0;
+        private final Object[] children;
+        private final double[] minX;
+        private final double[] minY;
+        private final double[] maxX;
+        private final double[] maxY;
+
+        private Node(int level, int maxSize, long epoch) {
+            this.level = level;
+            this.epoch = epoch;
+            children = new Object[maxSize + 1];
+            minX = new double[maxSize + 1];
+            minY = new double[maxSize + 1];
+            maxX = new double[maxSize + 1];
+            maxY = new double[maxSize + 1];
+        }
 
-            // Determine index to split at
-            final int splitIndex = chooseSplitIndex(sortedChildren);
+        /**
+         * Creates a copy of the node, with the same parent and children.
+         */
+        private Node(Node<T> original, long epoch) {
+            level = original.level;
+            this.epoch = epoch;
+            parent = original.parent;
+            indexInParent = original.indexInParent;
+            size = original.size;
+            children = original.children.clone();
+            minX = original.minX.clone();
+            minY = original.minY.clone();
+            maxX = original.maxX.clone();
+            maxY = original.maxY.clone();
+        }
+
+        private boolean isLeaf() {
+            return level == 0;
+        }
 
-            // Split off new node
-            Node<T> splitNode = new Node<T>();
-            for (int i = splitIndex; i < sortedChildren.size(); i++) {
-                final Node<T> childNode = sortedChildren.get(i);
+        private T getObject(int index) {
+            return (T) children[index];
+        }
 
-                // Add to new node
-                splitNode.rawAddChildNode(childNode);
+        private Node<T> getChildNode(int index) {
+            return (Node<T>) children[index];
+        }
 
-                // Remove from this node
-                childNodes.remove(childNode);
+        private int indexOf(Object child) {
+            for (int i = 0; i < size; i++) {
+                if (children[i] == child) return i;
             }
+            return -1;
+        }
 
-            // Recalculate bounds
-            recalculateBounds(false);
-            splitNode.recalculateBounds(false);
+        private void add(Object child, double x1, double y1, double x2, double y2) {
+            set(size++, child, x1, y1, x2, y2);
+        }
 
-            // Add split node to parent
-            parent.addChildNode(splitNode);
+        private void set(int index, Object child, double x1, double y1, double x2, double y2) {
+            children[index] = child;
+            minX[index] = x1;
+            minY[index] = y1;
+            maxX[index] = x2;
+            maxY[index] = y2;
+
+            if (level > 0) {
+                final Node<T> childNode = (Node<T>) child;
+                childNode.parent = this;
+                childNode.indexInParent = index;
+            }
         }
 
-        private double calculateCircumferenceSum(List<Node<T>> nodes) {
-            double sum = 0;
-            MutableBoundingBox tempBounds = new MutableBoundingBox();
+        /**
+         * Removes the child at the index, replacing it with the last child.
+         */
+        private void removeAt(int index) {
+            final Object removed = children[index];
+            final int last = --size;
+            if (index != last) {
+                set(index, children[last], minX[last], minY[last], maxX[last], maxY[last]);
+            }
+            children[last] = null;
 
-            // Iterate all distribution of the cells where they are split into two groups
-            for (int splitIndex = minFill; splitIndex < nodes.size() - minFill; splitIndex++) {
-                sum += boundingBoxForNodeSubset(nodes, 0, splitIndex, tempBounds).getCircumference();
-                sum += boundingBoxForNodeSubset(nodes, splitIndex, nodes.size(), tempBounds).getCircumference();
+            if (level > 0) {
+                final Node<T> removedNode = (Node<T>) removed;
+                removedNode.parent = null;
+                removedNode.indexInParent = -1;
             }
+        }
 
-            return sum;
+        /**
+         * Drops the children from the index on.
+         */
+        private void truncate(int newSize) {
+            for (int i = newSize; i < size; i++) {
+                children[i] = null;
+            }
+            size = newSize;
         }
 
-        private int chooseSplitIndex(List<Node<T>> nodes) {
-            int bestIndex = 0;
-            double minimumOverlap = Double.POSITIVE_INFINITY;
-            MutableBoundingBox tempBoundsA = new MutableBoundingBox();
-            MutableBoundingBox tempBoundsB = new MutableBoundingBox();
-
-            // Iterate all distributions, find the one with smallest overlap between the distributions
-            for (int splitIndex = minFill; splitIndex < nodes.size() - minFill; splitIndex++) {
-                // Calculate bounds for the two subsets
-                boundingBoxForNodeSubset(nodes, 0, splitIndex, tempBoundsA);
-                boundingBoxForNodeSubset(nodes, splitIndex, nodes.size(), tempBoundsB);
-
-                // Get area of intersection
-                tempBoundsA.setToIntersection(tempBoundsB);
-                final double overlapArea = tempBoundsA.getArea();
-
-                // Find smallest overlap
-                if (overlapArea < minimumOverlap) {
-                    minimumOverlap = overlapArea;
-                    bestIndex = splitIndex;
-                }
+        /**
+         * Rearranges the children so that the child at order[i] is moved to index i.
+         */
+        private void reorder(int[] order) {
+            final Object[] oldChildren = children.clone();
+            final double[] oldMinX = minX.clone();
+            final double[] oldMinY = minY.clone();
+            final double[] oldMaxX = maxX.clone();
+            final double[] oldMaxY = maxY.clone();
+            for (int i = 0; i < size; i++) {
+                final int from = order[i];
+                set(i, oldChildren[from], oldMinX[from], oldMinY[from], oldMaxX[from], oldMaxY[from]);
             }
+        }
+    }
+
+    /**
+     * Growable stack of nodes.
+     */
+    private static final class NodeStack<T extends Bounded> {
+        private Node<T>[] nodes = new Node[64];
+        private int size = 0;
 
-            return bestIndex;
+        private void push(Node<T> node) {
+            if (size == nodes.length) nodes = Arrays.copyOf(nodes, size * 2);
+            nodes[size++] = node;
         }
 
-        private MutableBoundingBox boundingBoxForNodeSubset(List<Node<T>> nodes, final int start, int end, MutableBoundingBox boundsOut) {
-            if (boundsOut == null) boundsOut = new MutableBoundingBox();
+        private Node<T> pop() {
+            final Node<T> node = nodes[--size];
+            nodes[size] = null;
+            return node;
+        }
 
-            boundsOut.clear();
-            if (start < nodes.size()) {
-                boundsOut.set(nodes.get(start).getBounds());
-                for (int i = start + 1; i < end; i++) {
-                    boundsOut.include(nodes.get(i).getBounds());
-                }
+        private void popTo(int newSize) {
+            while (size > newSize) {
+                nodes[--size] = null;
             }
-            return boundsOut;
         }
+    }
 
+    /**
+     * Priority queue of nodes and objects, ordered by squared distance, closest first.  Implemented as a binary heap.
+     */
+    private static final class DistanceQueue {
+        private double[] squaredDistances = new double[64];
+        private Object[] items = new Object[64];
+        private int size = 0;
 
-        private void recalculateBounds(boolean propagateToParent) {
-            if (isLeaf()) throw new IllegalStateException("Can not clear bounds for leaf node");
-
-            final MutableBoundingBox mutableBounds = (MutableBoundingBox) bounds;
+        private boolean isEmpty() {
+            return size == 0;
+        }
 
-            mutableBounds.clear();
+        private double getFirstSquaredDistance() {
+            return squaredDistances[0];
+        }
 
-            if (childNodes != null) {
-                for (Node<T> childNode : childNodes) {
-                    mutableBounds.include(childNode.getBounds());
-                }
+        private void add(Object item, double squaredDistance) {
+            if (size == items.length) {
+                squaredDistances = Arrays.copyOf(squaredDistances, size * 2);
+                items = Arrays.copyOf(items, size * 2);
             }
 
-            if (propagateToParent && parent != null) {
-                // Recalculate bounds for parent as well.
-                parent.recalculateBounds(true);
+            // Move parents down until the place of the new item is found
+            int index = size++;
+            while (index > 0) {
+                final int parent = (index - 1) >> 1;
+                if (squaredDistances[parent] <= squaredDistance) break;
+                squaredDistances[index] = squaredDistances[parent];
+                items[index] = items[parent];
+                index = parent;
             }
+            squaredDistances[index] = squaredDistance;
+            items[index] = item;
         }
 
-
-        public Node<T> getNodeFor(T object) {
-            if (bounds.intersects(object.getBounds())) {
-                if (isLeaf()) {
-                    if (content == object) {
-                        return this;
-                    }
-                }
-                else {
-                    for (Node<T> childNode : getChildNodes()) {
-                        final Node<T> node = childNode.getNodeFor(object);
-                        if (node != null) return node;
-                    }
+        private Object removeFirst() {
+            final Object first = items[0];
+
+            // Move the last item to the top, and then down until it is closer than its children
+            final int last = --size;
+            final double squaredDistance = squaredDistances[last];
+            final Object item = items[last];
+            items[last] = null;
+            if (last > 0) {
+                int index = 0;
+                while (true) {
+                    int child = 2 * index + 1;
+                    if (child >= last) break;
+                    if (child + 1 < last && squaredDistances[child + 1] < squaredDistances[child]) child++;
+                    if (squaredDistance <= squaredDistances[child]) break;
+                    squaredDistances[index] = squaredDistances[child];
+                    items[index] = items[child];
+                    index = child;
                 }
+                squaredDistances[index] = squaredDistance;
+                items[index] = item;
             }
 
-            return null;
+            return first;
         }
 
+        private void clear() {
+            for (int i = 0; i < size; i++) {
+                items[i] = null;
+            }
+            size = 0;
+        }
     }
 
+    /**
+     * An object or node with its bounds, used when building packed trees.
+     */
+    private static final class PackEntry {
+        private final Object child;
+        private double minX;
+        private double minY;
+        private double maxX;
+        private double maxY;
+
+        private PackEntry(Object child, double minX, double minY, double maxX, double maxY) {
+            this.child = child;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+
+        private void include(PackEntry other) {
+            minX = Math.min(minX, other.minX);
+            minY = Math.min(minY, other.minY);
+            maxX = Math.max(maxX, other.maxX);
+            maxY = Math.max(maxY, other.maxY);
+        }
+    }
 }
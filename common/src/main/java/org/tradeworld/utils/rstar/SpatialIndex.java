@@ -3,6 +3,7 @@ package org.tradeworld.utils.rstar;
 import org.tradeworld.utils.bbox.BoundingBox;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -20,6 +21,7 @@ public interface SpatialIndex<T extends Bounded> {
 
     /**
      * Adds all the specified bounded objects.
+     * Implementations may build the index more efficiently for a large batch than when adding the objects one at a time.
      */
     void addAll(Collection<T> boundedObjects);
 
@@ -58,4 +60,67 @@ public interface SpatialIndex<T extends Bounded> {
      */
     int getIntersecting(BoundingBox searchBounds, Collection<T> resultOut);
 
+    /**
+     * Calls the visitor with each object that is contained within the specified area, until the visitor stops the search.
+     * Does not allocate memory.
+     * @param searchBounds The area to get objects within.  All objects that have no part outside the area are included.
+     * @param visitor visitor to call with the found objects.  Should not modify the index.
+     * @return number of objects visited.
+     */
+    int visitContained(BoundingBox searchBounds, SpatialVisitor<? super T> visitor);
+
+    /**
+     * Calls the visitor with each object that intersects the specified area, until the visitor stops the search.
+     * Does not allocate memory.
+     * @param searchBounds The area to get objects overlapping.  All objects that are not completely outside the area are included.
+     * @param visitor visitor to call with the found objects.  Should not modify the index.
+     * @return number of objects visited.
+     */
+    int visitIntersecting(BoundingBox searchBounds, SpatialVisitor<? super T> visitor);
+
+    /**
+     * Retrieves the objects closest to a point, nearest first.
+     * The distance to an object is the distance from the point to the closest point in the bounds of the object,
+     * zero if the point is inside the bounds.  Objects at the same distance are returned in no particular order.
+     * @param x x coordinate of the point.
+     * @param y y coordinate of the point.
+     * @param count max number of objects to retrieve.
+     * @param maxDistance only objects at most this far away are retrieved.  Use Double.POSITIVE_INFINITY for no limit.
+     * @param resultOut the result list to add the found objects to, nearest first.
+     *                  Results are only added, does not remove any existing elements from the list.
+     * @return number of objects found.
+     */
+    int getNearest(double x, double y, int count, double maxDistance, List<T> resultOut);
+
+    /**
+     * Retrieves all objects within a radius of a point, that is, whose bounds intersect the circle.
+     * @param x x coordinate of the center.
+     * @param y y coordinate of the center.
+     * @param radius radius of the circle.
+     * @param resultOut the result collection to add the found objects to.
+     *                  Results are only added, does not remove any existing elements from the collection.
+     * @return number of objects found.
+     */
+    int getWithinRadius(double x, double y, double radius, Collection<T> resultOut);
+
+    /**
+     * In deferred update mode, moved or resized objects are only marked as moved, and the index is updated for all of
+     * them at once when flushUpdates is called.  An object that moves many times between flushes is updated only once.
+     * Until then searches use the bounds the objects had at the last update.
+     * Should be changed when objects are not being moved, turning deferred updates off flushes the pending updates.
+     */
+    void setDeferredUpdates(boolean deferredUpdates);
+
+    /**
+     * @return true if moved objects are updated in the index only when flushUpdates is called.
+     */
+    boolean isDeferredUpdates();
+
+    /**
+     * Updates the index for the objects that have moved since the last flush in deferred update mode.
+     * Call at a point where the positions should be up to date for searches, e.g. once per tick after moving objects.
+     * @return number of moved objects that were updated.
+     */
+    int flushUpdates();
+
 }
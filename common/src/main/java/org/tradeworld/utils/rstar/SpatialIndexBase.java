@@ -3,18 +3,31 @@ package org.tradeworld.utils.rstar;
 import org.tradeworld.utils.bbox.BoundingBox;
 import org.tradeworld.utils.bbox.BoundingBoxListener;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Common functionality of a SpatialIndex.
+ *
+ * Modifications are done under a write lock.  Searches are done under a read lock, unless the implementation
+ * supports lock free reads, in which case the searches do not wait for modifications, or for each other.
  */
 public abstract class SpatialIndexBase<T extends Bounded> implements SpatialIndex<T> {
 
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final boolean lockFreeReads;
+
+    private volatile boolean deferredUpdates = false;
+
+    // Objects moved since the last flush in deferred update mode, by their bounds, which are compared by identity
+    private final ConcurrentHashMap<BoundingBox, T> movedObjects = new ConcurrentHashMap<BoundingBox, T>();
 
     /**
      * Listener that handles moved or re-sized objects.
@@ -23,12 +36,18 @@ public abstract class SpatialIndexBase<T extends Bounded> implements SpatialInde
         @Override
         public void onChanged(BoundingBox boundingBox, Object listenerData) {
             if (boundingBox != null && listenerData != null) {
-                lock.writeLock().lock();
                 T object = (T) listenerData;
+
+                // Only mark the object as moved in deferred mode, without locking
+                if (deferredUpdates) {
+                    movedObjects.put(boundingBox, object);
+                    return;
+                }
+
+                lock.writeLock().lock();
                 try {
-                    // Remove and reinsert the object with the changed bounding box.
-                    rawRemove(object);
-                    rawAdd(object);
+                    rawUpdate(object);
+                    rawCommit();
                 }
                 finally {
                     lock.writeLock().unlock();
@@ -37,11 +56,32 @@ public abstract class SpatialIndexBase<T extends Bounded> implements SpatialInde
         }
     };
 
+    protected SpatialIndexBase() {
+        this(false);
+    }
+
+    /**
+     * @param lockFreeReads if true, searches are done without locking.  The implementation should then make sure
+     *                      that searches see a consistent index while it is modified, and publish the changes in rawCommit.
+     *                      The contains check is still done under the read lock.
+     */
+    protected SpatialIndexBase(boolean lockFreeReads) {
+        this.lockFreeReads = lockFreeReads;
+    }
+
+    /**
+     * @return true if searches are done without locking.
+     */
+    public final boolean hasLockFreeReads() {
+        return lockFreeReads;
+    }
+
     @Override
     public final void add(T object) {
         lock.writeLock().lock();
         try {
             handleAdd(object);
+            rawCommit();
         }
         finally {
             lock.writeLock().unlock();
@@ -53,8 +93,18 @@ public abstract class SpatialIndexBase<T extends Bounded> implements SpatialInde
         lock.writeLock().lock();
         try {
             for (T object : objects) {
-                handleAdd(object);
+                checkAddedSpatialObject(object);
             }
+
+            // Add to spatial index in one go, so that implementations can build the index more efficiently
+            rawAddAll(objects);
+
+            // Listen to changes
+            for (T object : objects) {
+                object.getBounds().addListener(boundingBoxListener, object);
+            }
+
+            rawCommit();
         }
         finally {
             lock.writeLock().unlock();
@@ -65,7 +115,9 @@ public abstract class SpatialIndexBase<T extends Bounded> implements SpatialInde
     public final boolean remove(T object) {
         lock.writeLock().lock();
         try {
-            return handleRemove(object);
+            final boolean removed = handleRemove(object);
+            rawCommit();
+            return removed;
         }
         finally {
             lock.writeLock().unlock();
@@ -82,6 +134,7 @@ public abstract class SpatialIndexBase<T extends Bounded> implements SpatialInde
                 if (handleRemove(object)) removeCount++;
             }
 
+            rawCommit();
             return removeCount;
         }
         finally {
@@ -89,6 +142,40 @@ public abstract class SpatialIndexBase<T extends Bounded> implements SpatialInde
         }
     }
 
+    @Override
+    public final void setDeferredUpdates(boolean deferredUpdates) {
+        this.deferredUpdates = deferredUpdates;
+        if (!deferredUpdates) flushUpdates();
+    }
+
+    @Override
+    public final boolean isDeferredUpdates() {
+        return deferredUpdates;
+    }
+
+    @Override
+    public final int flushUpdates() {
+        if (movedObjects.isEmpty()) return 0;
+
+        lock.writeLock().lock();
+        try {
+            // Objects moved while flushing are left for the next flush
+            final List<T> objects = new ArrayList<T>(movedObjects.size());
+            final Iterator<T> iterator = movedObjects.values().iterator();
+            while (iterator.hasNext()) {
+                objects.add(iterator.next());
+                iterator.remove();
+            }
+
+            rawUpdateAll(objects);
+            rawCommit();
+            return objects.size();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     @Override
     public final boolean contains(T object) {
         lock.readLock().lock();
@@ -105,12 +192,12 @@ public abstract class SpatialIndexBase<T extends Bounded> implements SpatialInde
         if (searchBounds == null) throw new IllegalArgumentException("area should not be null");
         if (resultOut == null) throw new IllegalArgumentException("resultOut should not be null");
 
-        lock.readLock().lock();
+        lockForReading();
         try {
             return rawGetContained(searchBounds, resultOut);
         }
         finally {
-            lock.readLock().unlock();
+            unlockAfterReading();
         }
     }
 
@@ -119,12 +206,127 @@ public abstract class SpatialIndexBase<T extends Bounded> implements SpatialInde
         if (searchBounds == null) throw new IllegalArgumentException("area should not be null");
         if (resultOut == null) throw new IllegalArgumentException("resultOut should not be null");
 
-        lock.readLock().lock();
+        lockForReading();
         try {
             return rawGetIntersecting(searchBounds, resultOut);
         }
         finally {
-            lock.readLock().unlock();
+            unlockAfterReading();
+        }
+    }
+
+    @Override
+    public final int visitContained(BoundingBox searchBounds, SpatialVisitor<? super T> visitor) {
+        if (searchBounds == null) throw new IllegalArgumentException("area should not be null");
+        if (visitor == null) throw new IllegalArgumentException("visitor should not be null");
+
+        lockForReading();
+        try {
+            return rawVisitContained(searchBounds, visitor);
+        }
+        finally {
+            unlockAfterReading();
+        }
+    }
+
+    @Override
+    public final int visitIntersecting(BoundingBox searchBounds, SpatialVisitor<? super T> visitor) {
+        if (searchBounds == null) throw new IllegalArgumentException("area should not be null");
+        if (visitor == null) throw new IllegalArgumentException("visitor should not be null");
+
+        lockForReading();
+        try {
+            return rawVisitIntersecting(searchBounds, visitor);
+        }
+        finally {
+            unlockAfterReading();
+        }
+    }
+
+    @Override
+    public final int getNearest(double x, double y, int count, double maxDistance, List<T> resultOut) {
+        if (count < 0) throw new IllegalArgumentException("count should not be negative");
+        if (Double.isNaN(maxDistance) || maxDistance < 0) throw new IllegalArgumentException("maxDistance should be zero or positive");
+        if (resultOut == null) throw new IllegalArgumentException("resultOut should not be null");
+        if (count == 0) return 0;
+
+        lockForReading();
+        try {
+            return rawGetNearest(x, y, count, maxDistance * maxDistance, resultOut);
+        }
+        finally {
+            unlockAfterReading();
+        }
+    }
+
+    @Override
+    public final int getWithinRadius(double x, double y, double radius, Collection<T> resultOut) {
+        if (Double.isNaN(radius) || radius < 0) throw new IllegalArgumentException("radius should be zero or positive");
+        if (resultOut == null) throw new IllegalArgumentException("resultOut should not be null");
+
+        lockForReading();
+        try {
+            return rawGetWithinRadius(x, y, radius * radius, resultOut);
+        }
+        finally {
+            unlockAfterReading();
+        }
+    }
+
+    private void lockForReading() {
+        if (!lockFreeReads) lock.readLock().lock();
+    }
+
+    private void unlockAfterReading() {
+        if (!lockFreeReads) lock.readLock().unlock();
+    }
+
+    /**
+     * @return squared distance from the point to the closest point in the box, zero if the point is inside the box.
+     */
+    protected static double squaredDistanceToBox(double x, double y, double minX, double minY, double maxX, double maxY) {
+        final double dx = x < minX ? minX - x : x > maxX ? x - maxX : 0;
+        final double dy = y < minY ? minY - y : y > maxY ? y - maxY : 0;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Objects found in a nearest search, with their squared distances as stored in the index.
+     */
+    protected static final class NearestCandidates<T> {
+        private final List<Candidate<T>> candidates = new ArrayList<Candidate<T>>();
+
+        public void add(T object, double squaredDistance) {
+            candidates.add(new Candidate<T>(object, squaredDistance));
+        }
+
+        /**
+         * Adds at most count of the candidates to the result list, nearest first.
+         * @return number of results added.
+         */
+        public int addNearest(int count, List<T> resultOut) {
+            Collections.sort(candidates);
+
+            final int resultCount = Math.min(count, candidates.size());
+            for (int i = 0; i < resultCount; i++) {
+                resultOut.add(candidates.get(i).object);
+            }
+            return resultCount;
+        }
+    }
+
+    private static final class Candidate<T> implements Comparable<Candidate<T>> {
+        private final T object;
+        private final double squaredDistance;
+
+        private Candidate(T object, double squaredDistance) {
+            this.object = object;
+            this.squaredDistance = squaredDistance;
+        }
+
+        @Override
+        public int compareTo(Candidate<T> o) {
+            return Double.compare(squaredDistance, o.squaredDistance);
         }
     }
 
@@ -135,6 +337,18 @@ public abstract class SpatialIndexBase<T extends Bounded> implements SpatialInde
      */
     protected abstract void rawAdd(T object);
 
+    /**
+     * Should take care of adding all the objects to the spatial index.
+     * By default adds them one at a time, override if the implementation can add many objects more efficiently.
+     * Locking is already handled in SpatialIndexBase before this is called.
+     * @param objects bounded objects to add.
+     */
+    protected void rawAddAll(Collection<T> objects) {
+        for (T object : objects) {
+            rawAdd(object);
+        }
+    }
+
     /**
      * Should take care of removing the object from the spatial index.
      * Locking is already handled in SpatialIndexBase before this is called.
@@ -143,6 +357,35 @@ public abstract class SpatialIndexBase<T extends Bounded> implements SpatialInde
      */
     protected abstract boolean rawRemove(T object);
 
+    /**
+     * Should update the position of the object in the spatial index after its bounding box changed.
+     * By default removes and re-adds the object, override if the implementation can update objects more efficiently.
+     * Locking is already handled in SpatialIndexBase before this is called.
+     * @param object object whose bounds changed.
+     */
+    protected void rawUpdate(T object) {
+        if (rawRemove(object)) rawAdd(object);
+    }
+
+    /**
+     * Should update the positions of all the objects in the spatial index after their bounding boxes changed.
+     * By default updates them one at a time, override if the implementation can update many objects more efficiently.
+     * Locking is already handled in SpatialIndexBase before this is called.
+     * @param objects objects whose bounds changed.  Objects that are no longer in the index should be ignored.
+     */
+    protected void rawUpdateAll(Collection<T> objects) {
+        for (T object : objects) {
+            rawUpdate(object);
+        }
+    }
+
+    /**
+     * Called after each modification, before the write lock is released.
+     * Implementations with lock free reads should make the changes visible to searches here.
+     */
+    protected void rawCommit() {
+    }
+
     /**
      * @return true if the object is contained in this spatial index.
      */
@@ -166,6 +409,43 @@ public abstract class SpatialIndexBase<T extends Bounded> implements SpatialInde
      */
     protected abstract int rawGetIntersecting(BoundingBox area, Collection<T> resultOut);
 
+    /**
+     * Calls the visitor with objects contained in an area, until it returns false.
+     * Locking is already handled in SpatialIndexBase before this is called.
+     * @param area area to look for results in.
+     * @param visitor visitor to call with found results.
+     * @return number of results visited.
+     */
+    protected abstract int rawVisitContained(BoundingBox area, SpatialVisitor<? super T> visitor);
+
+    /**
+     * Calls the visitor with objects overlapping an area, until it returns false.
+     * Locking is already handled in SpatialIndexBase before this is called.
+     * @param area area to look for results in.
+     * @param visitor visitor to call with found results.
+     * @return number of results visited.
+     */
+    protected abstract int rawVisitIntersecting(BoundingBox area, SpatialVisitor<? super T> visitor);
+
+    /**
+     * Looks for the objects closest to a point.
+     * Locking is already handled in SpatialIndexBase before this is called.
+     * @param count max number of results, at least one.
+     * @param maxSquaredDistance squared max distance to results.
+     * @param resultOut list to add found results to, nearest first.
+     * @return number of results found.
+     */
+    protected abstract int rawGetNearest(double x, double y, int count, double maxSquaredDistance, List<T> resultOut);
+
+    /**
+     * Looks for objects within a radius of a point.
+     * Locking is already handled in SpatialIndexBase before this is called.
+     * @param squaredRadius squared radius of the circle.
+     * @param resultOut collection to add found results to.
+     * @return number of results found.
+     */
+    protected abstract int rawGetWithinRadius(double x, double y, double squaredRadius, Collection<T> resultOut);
+
     private void handleAdd(T object) {
         // Check params
         checkAddedSpatialObject(object);
@@ -185,6 +465,7 @@ public abstract class SpatialIndexBase<T extends Bounded> implements SpatialInde
 
             // Stop listening to changes
             object.getBounds().removeListener(boundingBoxListener);
+            movedObjects.remove(object.getBounds(), object);
 
             return true;
         }
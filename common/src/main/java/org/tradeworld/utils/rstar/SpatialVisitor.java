@@ -0,0 +1,15 @@
+package org.tradeworld.utils.rstar;
+
+/**
+ * Is called with each object found by a spatial index search.  Can stop the search early, e.g. when looking for the
+ * first match, or for at most some number of matches.  To count matches without collecting them, just count the calls.
+ */
+public interface SpatialVisitor<T> {
+
+    /**
+     * @param object a found object.
+     * @return true to continue the search, false to stop it.
+     */
+    boolean visit(T object);
+
+}
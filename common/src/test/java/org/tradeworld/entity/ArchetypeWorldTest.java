@@ -0,0 +1,218 @@
+package org.tradeworld.entity;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.tradeworld.utils.Ticker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that the chunks of an ArchetypeWorld follow the entities, as they are added, removed and moved between archetypes.
+ */
+public class ArchetypeWorldTest {
+
+    private static final int CHUNK_CAPACITY = 4;
+
+    private ArchetypeWorld world;
+    private TestStore store;
+    private TestView view;
+    private Ticker ticker;
+
+    @Before
+    public void setUp() throws Exception {
+        world = new ArchetypeWorld(1, CHUNK_CAPACITY);
+        store = world.addColumnStore(new TestStore());
+        world.init();
+        view = store.view();
+        ticker = new Ticker();
+    }
+
+    @Test
+    public void testColumnValuesAreStoredInChunks() throws Exception {
+        final List<Entity> entities = createEntities(10);
+        world.process(ticker);
+
+        final Archetype archetype = getArchetype(entities.get(0));
+        Assert.assertEquals(10, archetype.getEntityCount());
+        Assert.assertEquals(3, archetype.getChunks().size());
+
+        // The chunk arrays are the storage of the views
+        for (EntityChunk chunk : archetype.getChunks()) {
+            final float[] amounts = chunk.getValues(store.amount);
+            for (int i = 0; i < chunk.size(); i++) {
+                final Entity entity = chunk.getEntity(i);
+                Assert.assertEquals((float) entities.indexOf(entity), amounts[i]);
+
+                amounts[i] = -amounts[i];
+                Assert.assertEquals(amounts[i], store.get(entity, view).getAmount());
+            }
+        }
+    }
+
+    @Test
+    public void testValuesMoveWithEntitiesBetweenArchetypes() throws Exception {
+        final List<Entity> entities = createEntities(10);
+        world.process(ticker);
+        final Archetype archetypeA = getArchetype(entities.get(0));
+
+        // Move some entities out of the middle and the end of the chunks, and remove some
+        for (int i = 0; i < entities.size(); i += 3) {
+            entities.get(i).addComponent(new TestComponentB());
+        }
+        entities.get(1).remove();
+        entities.get(8).remove();
+        world.process(ticker);
+
+        final Archetype archetypeAB = getArchetype(entities.get(0));
+        Assert.assertNotSame(archetypeA, archetypeAB);
+        Assert.assertEquals(4, archetypeAB.getEntityCount());
+        Assert.assertEquals(4, archetypeA.getEntityCount());
+        assertChunksMatchEntities(archetypeA, entities);
+        assertChunksMatchEntities(archetypeAB, entities);
+
+        // And back again
+        entities.get(3).removeComponent(TestComponentB.class);
+        entities.get(9).removeComponent(TestComponentB.class);
+        world.process(ticker);
+        Assert.assertEquals(6, archetypeA.getEntityCount());
+        Assert.assertEquals(2, archetypeAB.getEntityCount());
+        assertChunksMatchEntities(archetypeA, entities);
+        assertChunksMatchEntities(archetypeAB, entities);
+    }
+
+    @Test
+    public void testColumnComponentsAddedToPlacedEntitiesKeepTheirValues() throws Exception {
+        final Entity entity = world.createEntity(new TestComponentA());
+        world.process(ticker);
+        Assert.assertEquals(1, getArchetype(entity).getEntityCount());
+
+        // The values are written to the chunk of the old archetype, and moved to the new one on the next refresh
+        store.add(entity, view).set(42, 4200);
+        world.process(ticker);
+        Assert.assertTrue(getArchetype(entity).getComponentTypeIds().contains(store.getComponentTypeId()));
+        Assert.assertEquals(42f, store.get(entity, view).getAmount());
+        Assert.assertEquals(4200L, view.getTime());
+        Assert.assertEquals(42f, entity.chunk.getValues(store.amount)[entity.chunkIndex]);
+        Assert.assertEquals(4200L, entity.chunk.getValues(store.time)[entity.chunkIndex]);
+    }
+
+    @Test
+    public void testEmptyChunksAreReused() throws Exception {
+        final List<Entity> entities = createEntities(CHUNK_CAPACITY * 2);
+        world.process(ticker);
+        final Archetype archetype = getArchetype(entities.get(0));
+        final EntityChunk lastChunk = archetype.getChunks().get(1);
+
+        for (int i = 0; i < CHUNK_CAPACITY; i++) {
+            entities.get(i).remove();
+        }
+        world.process(ticker);
+        Assert.assertEquals(1, archetype.getChunks().size());
+
+        // The number of the dropped chunk is reused, the new chunk starts with the values of its new entities
+        final List<Entity> newEntities = createEntities(CHUNK_CAPACITY);
+        world.process(ticker);
+        Assert.assertEquals(2, archetype.getChunks().size());
+        Assert.assertEquals(lastChunk.getChunkNumber(), archetype.getChunks().get(1).getChunkNumber());
+        for (int i = 0; i < newEntities.size(); i++) {
+            final Entity entity = newEntities.get(i);
+            Assert.assertEquals((float) i, entity.chunk.getValues(store.amount)[entity.chunkIndex]);
+        }
+        for (int i = CHUNK_CAPACITY; i < entities.size(); i++) {
+            Assert.assertEquals((float) i, store.get(entities.get(i), view).getAmount());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testChunksFitInOneColumnPage() throws Exception {
+        new ArchetypeWorld(1, ArchetypeWorld.MAX_CHUNK_CAPACITY + 1);
+    }
+
+    /**
+     * Creates entities with TestComponentA and the column component, with the index of the entity as amount and time.
+     */
+    private List<Entity> createEntities(int count) {
+        final List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 0; i < count; i++) {
+            final Entity entity = world.createEntity(new TestComponentA());
+            store.add(entity, view).set(i, i);
+            entities.add(entity);
+        }
+        return entities;
+    }
+
+    private Archetype getArchetype(Entity entity) {
+        return entity.chunk.getArchetype();
+    }
+
+    /**
+     * Checks that the chunks are packed, and that their components and values are the ones of their entities.
+     * The amount of each entity should be its index in the list of entities.
+     */
+    private void assertChunksMatchEntities(Archetype archetype, List<Entity> entities) {
+        final List<EntityChunk> chunks = archetype.getChunks();
+        int entityCount = 0;
+        for (int c = 0; c < chunks.size(); c++) {
+            final EntityChunk chunk = chunks.get(c);
+            if (c < chunks.size() - 1) Assert.assertTrue("Only the last chunk should have room", chunk.isFull());
+
+            final TestComponentA[] componentsA = chunk.getComponents(TestComponentA.class);
+            final float[] amounts = chunk.getValues(store.amount);
+            final long[] times = chunk.getValues(store.time);
+            for (int i = 0; i < chunk.size(); i++) {
+                final Entity entity = chunk.getEntity(i);
+                Assert.assertSame(chunk, entity.chunk);
+                Assert.assertEquals(i, entity.chunkIndex);
+                Assert.assertSame(entity.getComponent(TestComponentA.class), componentsA[i]);
+
+                final int expected = entities.indexOf(entity);
+                Assert.assertEquals((float) expected, amounts[i]);
+                Assert.assertEquals((long) expected, times[i]);
+                Assert.assertEquals((float) expected, store.get(entity, view).getAmount());
+            }
+            entityCount += chunk.size();
+        }
+        Assert.assertEquals(archetype.getEntityCount(), entityCount);
+    }
+
+    private static final class TestStore extends ColumnStore<TestView> {
+        private final FloatColumn amount = addFloatColumn(-1);
+        private final LongColumn time = addLongColumn(-2);
+
+        private TestStore() {
+            super(TestView.class);
+        }
+
+        @Override
+        protected TestView createView() {
+            return new TestView(this);
+        }
+    }
+
+    private static final class TestView extends ColumnView {
+        private final TestStore store;
+
+        private TestView(TestStore store) {
+            super(store);
+            this.store = store;
+        }
+
+        public float getAmount() {
+            return store.amount.get(getIndex());
+        }
+
+        public long getTime() {
+            return store.time.get(getIndex());
+        }
+
+        public void set(float amount, long time) {
+            store.amount.set(getIndex(), amount);
+            store.time.set(getIndex(), time);
+        }
+    }
+
+    private static final class TestComponentA extends BaseComponent {}
+    private static final class TestComponentB extends BaseComponent {}
+}
@@ -0,0 +1,176 @@
+package org.tradeworld.entity;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tradeworld.utils.Ticker;
+import org.tradeworld.utils.WorkerPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tests concurrent processing of the handled entities of BaseEntitySystems in chunks.
+ */
+public class BaseEntitySystemTest {
+
+    private static final int ENTITY_COUNT = 1003;
+    private static final int MINIMUM_CHUNK_SIZE = 10;
+
+    private WorkerPool pool;
+    private DefaultWorld world;
+    private Ticker ticker;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new WorkerPool(4, "TestWorker");
+        world = new DefaultWorld();
+        ticker = new Ticker();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void testChunksAreProcessedInParallel() throws Exception {
+        final ChunkCountingSystem system = world.addSystem(new ChunkCountingSystem(TestComponentA.class, pool));
+        world.init();
+        createEntities();
+
+        // Each thread that takes part waits for a second thread, which only arrives if the entities were split into chunks
+        system.secondThread = new CountDownLatch(2);
+        world.process(ticker);
+
+        Assert.assertTrue("Entities should be processed by several threads at once", system.waitedForSecondThread);
+        system.assertEachEntityProcessedOnce();
+        Assert.assertEquals("Post processing should start after all chunks are processed", ENTITY_COUNT, system.processedBeforePostProcess);
+    }
+
+    @Test
+    public void testSmallEntityCountsAreNotSplit() throws Exception {
+        final ChunkCountingSystem system = world.addSystem(new ChunkCountingSystem(TestComponentA.class, pool));
+        system.setMinimumChunkSize(ENTITY_COUNT + 1);
+        world.init();
+        createEntities();
+        world.process(ticker);
+
+        system.assertEachEntityProcessedOnce();
+        Assert.assertEquals(Collections.singleton(Thread.currentThread()), system.threads);
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentSystemsInParallelStageShareThePool() throws Exception {
+        // Systems that do not conflict end up in the same stage, and split their entities on the pool that runs the stage
+        final ChunkCountingSystem systemA = world.addSystem(new ChunkCountingSystem(TestComponentA.class, pool));
+        final ChunkCountingSystem systemB = world.addSystem(new ComponentBCountingSystem(pool));
+        world.init();
+        createEntities();
+        world.process(ticker);
+        systemA.resetCounts();
+        systemB.resetCounts();
+
+        final List<EntitySystem> systems = new ArrayList<EntitySystem>();
+        systems.add(systemA);
+        systems.add(systemB);
+        final SystemScheduler scheduler = new SystemScheduler(systems, pool);
+        Assert.assertEquals(1, scheduler.getStages().size());
+
+        scheduler.process(ticker);
+        systemA.assertEachEntityProcessedOnce();
+        systemB.assertEachEntityProcessedOnce();
+    }
+
+    @Test
+    public void testErrorsInChunksAreThrown() throws Exception {
+        final ChunkCountingSystem system = world.addSystem(new ChunkCountingSystem(TestComponentA.class, pool));
+        world.init();
+        createEntities();
+        system.failingEntityIndex = ENTITY_COUNT - 1;
+
+        try {
+            world.process(ticker);
+            Assert.fail("The error from processing an entity should be thrown");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Failed", e.getMessage());
+        }
+        Assert.assertEquals("Post processing should not run after a failure", -1, system.processedBeforePostProcess);
+    }
+
+    private void createEntities() {
+        for (int i = 0; i < ENTITY_COUNT; i++) {
+            world.createEntity(new TestComponentA(), new TestComponentB());
+        }
+    }
+
+    private static class ChunkCountingSystem extends BaseEntitySystem {
+        private final AtomicIntegerArray processCounts = new AtomicIntegerArray(ENTITY_COUNT);
+        private final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        private volatile CountDownLatch secondThread = null;
+        private volatile boolean waitedForSecondThread = false;
+        private volatile int failingEntityIndex = -1;
+        private int processedBeforePostProcess = -1;
+
+        private ChunkCountingSystem(Class<? extends Component> handledType, WorkerPool pool) {
+            super(null, 0, true, handledType);
+            declareReadComponents();
+            declareWrittenComponents(handledType);
+            setMinimumChunkSize(MINIMUM_CHUNK_SIZE);
+            setWorkerPool(pool);
+        }
+
+        @Override
+        protected void processEntity(Ticker ticker, Entity entity) {
+            if (entity.getEntityIndex() == failingEntityIndex) throw new IllegalStateException("Failed");
+            processCounts.incrementAndGet(entity.getEntityIndex());
+
+            final CountDownLatch latch = secondThread;
+            if (threads.add(Thread.currentThread()) && latch != null) {
+                latch.countDown();
+                try {
+                    if (latch.await(5, TimeUnit.SECONDS)) waitedForSecondThread = true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        protected void postProcess(Ticker ticker) {
+            processedBeforePostProcess = 0;
+            for (int i = 0; i < processCounts.length(); i++) {
+                processedBeforePostProcess += processCounts.get(i);
+            }
+        }
+
+        private void resetCounts() {
+            for (int i = 0; i < processCounts.length(); i++) {
+                processCounts.set(i, 0);
+            }
+            threads.clear();
+        }
+
+        private void assertEachEntityProcessedOnce() {
+            for (int i = 0; i < processCounts.length(); i++) {
+                Assert.assertEquals("Entity " + i + " should be processed once", 1, processCounts.get(i));
+            }
+        }
+    }
+
+    private static final class ComponentBCountingSystem extends ChunkCountingSystem {
+        private ComponentBCountingSystem(WorkerPool pool) {
+            super(TestComponentB.class, pool);
+        }
+    }
+
+    private static final class TestComponentA extends BaseComponent {}
+    private static final class TestComponentB extends BaseComponent {}
+}
@@ -0,0 +1,138 @@
+package org.tradeworld.entity;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.tradeworld.utils.Ticker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests column component storage, as entities are created and their indexes reused.
+ */
+public class ColumnStoreTest {
+
+    private DefaultWorld world;
+    private TestStore store;
+    private Ticker ticker;
+
+    @Before
+    public void setUp() throws Exception {
+        world = new DefaultWorld();
+        store = world.addColumnStore(new TestStore());
+        world.init();
+        ticker = new Ticker();
+    }
+
+    @Test
+    public void testColumnsGrowWithoutLosingValues() throws Exception {
+        // Enough entities to need several column pages
+        final int count = Column.PAGE_SIZE * 3 + 7;
+        final List<Entity> entities = new ArrayList<Entity>();
+        final TestView view = store.view();
+        for (int i = 0; i < count; i++) {
+            final Entity entity = world.createEntity();
+            entities.add(entity);
+            store.add(entity, view).set(i, 1000L * i);
+
+            // Values written before the columns grew are kept
+            if (i % 100 == 0) assertValues(entities, 0, view);
+        }
+
+        world.process(ticker);
+        assertValues(entities, 0, view);
+    }
+
+    @Test
+    public void testReusedIndexesStartWithDefaults() throws Exception {
+        final Entity removed = world.createEntity();
+        store.add(removed).set(5, 55);
+        world.process(ticker);
+        final int index = removed.getEntityIndex();
+
+        removed.remove();
+        world.process(ticker);
+
+        // The next entity reuses the index, but not the values of the removed entity
+        final Entity entity = world.createEntity();
+        Assert.assertEquals("Index should be reused", index, entity.getEntityIndex());
+        Assert.assertNull("New entity should not have the component", store.get(entity));
+
+        final TestView view = store.add(entity);
+        Assert.assertEquals(TestStore.DEFAULT_AMOUNT, view.getAmount());
+        Assert.assertEquals(TestStore.DEFAULT_TIME, view.getTime());
+    }
+
+    @Test
+    public void testViewsCanBeReused() throws Exception {
+        final Entity first = world.createEntity();
+        final Entity second = world.createEntity();
+        final Entity without = world.createEntity();
+        store.add(first).set(1, 10);
+        store.add(second).set(2, 20);
+
+        final TestView view = store.view();
+        Assert.assertSame(view, store.get(first, view));
+        Assert.assertEquals(1f, view.getAmount());
+        Assert.assertSame(view, store.get(second, view));
+        Assert.assertEquals(2f, view.getAmount());
+        Assert.assertSame(second, view.getEntity());
+        Assert.assertNull(store.get(without, view));
+
+        // Entities return a view of column components too
+        Assert.assertEquals(20L, second.getComponent(TestView.class).getTime());
+        Assert.assertTrue(second.containsComponent(TestView.class));
+
+        store.remove(second);
+        Assert.assertNull(second.getComponent(TestView.class));
+        Assert.assertFalse(store.contains(second));
+    }
+
+    private void assertValues(List<Entity> entities, int from, TestView view) {
+        for (int i = from; i < entities.size(); i++) {
+            store.get(entities.get(i), view);
+            Assert.assertEquals((float) i, view.getAmount());
+            Assert.assertEquals(1000L * i, view.getTime());
+        }
+    }
+
+    private static final class TestStore extends ColumnStore<TestView> {
+        private static final float DEFAULT_AMOUNT = -1;
+        private static final long DEFAULT_TIME = -2;
+
+        private final FloatColumn amount = addFloatColumn(DEFAULT_AMOUNT);
+        private final LongColumn time = addLongColumn(DEFAULT_TIME);
+
+        private TestStore() {
+            super(TestView.class);
+        }
+
+        @Override
+        protected TestView createView() {
+            return new TestView(this);
+        }
+    }
+
+    private static final class TestView extends ColumnView {
+        private final TestStore store;
+
+        private TestView(TestStore store) {
+            super(store);
+            this.store = store;
+        }
+
+        public float getAmount() {
+            return store.amount.get(getIndex());
+        }
+
+        public long getTime() {
+            return store.time.get(getIndex());
+        }
+
+        public void set(float amount, long time) {
+            store.amount.set(getIndex(), amount);
+            store.time.set(getIndex(), time);
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package org.tradeworld.entity;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.tradeworld.utils.BoundedPool;
+import org.tradeworld.utils.Ticker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests entity and component change handling in DefaultWorld.
+ */
+public class DefaultWorldTest {
+
+    private DefaultWorld world;
+    private ChangeCountingSystem changeCountingSystem;
+    private ChangeCountingSystem componentCChangeCountingSystem;
+    private Ticker ticker;
+
+    @Before
+    public void setUp() throws Exception {
+        changeCountingSystem = new ChangeCountingSystem(null);
+        componentCChangeCountingSystem = new ChangeCountingSystem(TestComponentC.class);
+        world = new DefaultWorld();
+        world.addSystem(changeCountingSystem);
+        world.addSystem(componentCChangeCountingSystem);
+        world.init();
+        ticker = new Ticker();
+    }
+
+    @Test
+    public void testChangedEntitiesAreNotifiedOnce() throws Exception {
+        Entity entity = world.createEntity(new TestComponentA());
+        world.process(ticker);
+
+        // Several changes during one tick result in one notification
+        entity.addComponent(new TestComponentB());
+        entity.addComponent(new TestComponentC());
+        entity.removeComponent(TestComponentC.class);
+        world.process(ticker);
+        Assert.assertEquals("Changed entity should be notified once", 1, changeCountingSystem.changeCount);
+
+        // Later ticks do not notify again
+        changeCountingSystem.changeCount = 0;
+        world.process(ticker);
+        world.process(ticker);
+        Assert.assertEquals("Changed entity should not be notified again on later ticks", 0, changeCountingSystem.changeCount);
+    }
+
+    @Test
+    public void testCancelledChangesAreNotNotified() throws Exception {
+        Entity entity = world.createEntity(new TestComponentA());
+        world.process(ticker);
+
+        entity.addComponent(new TestComponentB());
+        entity.removeComponent(TestComponentB.class);
+        entity.addComponent(new TestComponentA());
+        world.process(ticker);
+        Assert.assertEquals("Changes that do not change the component types should not be notified", 0, changeCountingSystem.changeCount);
+    }
+
+    @Test
+    public void testReplacedComponentsAreNotified() throws Exception {
+        Entity entity = world.createEntity(new TestComponentA(), new TestComponentC());
+        world.process(ticker);
+        Assert.assertEquals("Components of new entities are not replacements", 0, changeCountingSystem.replacedCount);
+
+        // Replacing a component notifies systems interested in its type once
+        entity.addComponent(new TestComponentC());
+        entity.addComponent(new TestComponentC());
+        world.process(ticker);
+        Assert.assertEquals(1, changeCountingSystem.replacedCount);
+        Assert.assertEquals(1, componentCChangeCountingSystem.replacedCount);
+        Assert.assertEquals("Replacements are not type changes", 0, changeCountingSystem.changeCount);
+
+        // Systems not interested in the replaced type are not notified
+        entity.addComponent(new TestComponentA());
+        world.process(ticker);
+        Assert.assertEquals(2, changeCountingSystem.replacedCount);
+        Assert.assertEquals(1, componentCChangeCountingSystem.replacedCount);
+
+        // A component that was added during the same refresh is a type change, not a replacement
+        entity.addComponent(new TestComponentB());
+        entity.addComponent(new TestComponentB());
+        world.process(ticker);
+        Assert.assertEquals(2, changeCountingSystem.replacedCount);
+        Assert.assertEquals(1, changeCountingSystem.changeCount);
+
+        // Later ticks do not notify again
+        world.process(ticker);
+        Assert.assertEquals(2, changeCountingSystem.replacedCount);
+    }
+
+    @Test
+    public void testRefreshWorkStaysFlat() throws Exception {
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 0; i < 1000; i++) {
+            entities.add(world.createEntity(new TestComponentA()));
+        }
+        world.process(ticker);
+
+        // Toggle a component on a few entities each tick, the notifications per tick should not grow over time
+        for (int tick = 0; tick < 1000; tick++) {
+            changeCountingSystem.changeCount = 0;
+            for (int i = 0; i < 10; i++) {
+                Entity entity = entities.get((tick * 10 + i) % entities.size());
+                if (entity.containsComponent(TestComponentB.class)) entity.removeComponent(TestComponentB.class);
+                else entity.addComponent(new TestComponentB());
+            }
+            world.process(ticker);
+            Assert.assertEquals("Only entities changed during the tick should be notified", 10, changeCountingSystem.changeCount);
+        }
+    }
+
+    @Test
+    public void testChangesAreOnlyRoutedToInterestedSystems() throws Exception {
+        Entity entity = world.createEntity(new TestComponentA());
+        world.process(ticker);
+
+        entity.addComponent(new TestComponentB());
+        world.process(ticker);
+        Assert.assertEquals("System handling all entities should be notified", 1, changeCountingSystem.changeCount);
+        Assert.assertEquals("System not handling the changed component type should not be notified", 0, componentCChangeCountingSystem.changeCount);
+
+        entity.addComponent(new TestComponentC());
+        world.process(ticker);
+        Assert.assertEquals("System handling the changed component type should be notified", 1, componentCChangeCountingSystem.changeCount);
+    }
+
+    @Test
+    public void testRemovedEntitiesAreNotNotified() throws Exception {
+        Entity entity = world.createEntity(new TestComponentA());
+        world.process(ticker);
+        long entityId = entity.getEntityId();
+
+        entity.addComponent(new TestComponentB());
+        entity.remove();
+        world.process(ticker);
+        Assert.assertEquals("Removed entity should not be notified as changed", 0, changeCountingSystem.changeCount);
+        Assert.assertNull("Removed entity should not be found", world.getEntity(entityId));
+    }
+
+    @Test
+    public void testRemovedEntitiesFailFastAndAreNotReused() throws Exception {
+        Entity removed = world.createEntity(new TestComponentA());
+        world.process(ticker);
+        removed.remove();
+        world.process(ticker);
+        Assert.assertNull("Removed entity should not belong to a world", removed.getWorld());
+        Assert.assertEquals(0, removed.getEntityId());
+
+        // A new entity reuses the index, but not the removed entity object
+        Entity entity = world.createEntity(new TestComponentA());
+        world.process(ticker);
+        Assert.assertNotSame("Removed entities should not be reused", removed, entity);
+
+        // Stale references can not change or remove the new entity
+        try {
+            removed.remove();
+            Assert.fail("Removing a removed entity should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        try {
+            removed.addComponent(new TestComponentB());
+            Assert.fail("Adding components to a removed entity should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        try {
+            removed.removeComponent(TestComponentA.class);
+            Assert.fail("Removing components from a removed entity should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        world.process(ticker);
+        Assert.assertSame(entity, world.getEntity(entity.getEntityId()));
+        Assert.assertTrue(entity.containsComponent(TestComponentA.class));
+        Assert.assertFalse(entity.containsComponent(TestComponentB.class));
+    }
+
+    @Test
+    public void testStaleIdsDoNotResolveToReusedIndexes() throws Exception {
+        Entity removed = world.createEntity(new TestComponentA());
+        world.process(ticker);
+        final long staleId = removed.getEntityId();
+        removed.remove();
+        world.process(ticker);
+
+        final Entity entity = world.createEntity(new TestComponentA());
+        world.process(ticker);
+        Assert.assertEquals("Index should be reused", EntityIds.getIndex(staleId), entity.getEntityIndex());
+        Assert.assertTrue("Reused index should get a new id", staleId != entity.getEntityId());
+        Assert.assertNull("Stale id should not resolve to the entity that reuses its index", world.getEntity(staleId));
+        Assert.assertSame(entity, world.getEntity(entity.getEntityId()));
+
+        // Other threads resolve the id to the same, fully set up entity
+        final long entityId = entity.getEntityId();
+        final Entity[] resolved = new Entity[2];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                resolved[0] = world.getEntity(entityId);
+                resolved[1] = world.getEntity(staleId);
+            }
+        });
+        thread.start();
+        thread.join();
+        Assert.assertSame(entity, resolved[0]);
+        Assert.assertTrue(resolved[0].containsComponent(TestComponentA.class));
+        Assert.assertNull(resolved[1]);
+    }
+
+    @Test
+    public void testCommandsFromSeveralThreadsArePlayedBackInOrder() throws Exception {
+        // One thread creates an entity, and other threads change and remove it during the same tick
+        final Entity[] created = new Entity[2];
+        runInThread(new Runnable() {
+            @Override
+            public void run() {
+                created[0] = world.createEntity(new TestComponentA());
+                created[1] = world.createEntity(new TestComponentA());
+            }
+        });
+        runInThread(new Runnable() {
+            @Override
+            public void run() {
+                created[0].addComponent(new TestComponentC());
+                created[1].addComponent(new TestComponentC());
+            }
+        });
+        runInThread(new Runnable() {
+            @Override
+            public void run() {
+                created[0].remove();
+            }
+        });
+        world.process(ticker);
+
+        // The removed entity is never added to systems, the other one is added with all its components
+        Assert.assertEquals(1, changeCountingSystem.addedCount);
+        Assert.assertEquals(1, componentCChangeCountingSystem.addedCount);
+        Assert.assertNull(world.getEntity(EntityIds.create(created[0].getEntityIndex(), 1)));
+        Assert.assertNull(created[0].getWorld());
+        Assert.assertSame(created[1], world.getEntity(created[1].getEntityId()));
+
+        // The buffers of the ended threads are dropped
+        Assert.assertEquals(0, world.getCommandBufferCount());
+
+        // The same thread can remove and create in one tick
+        runInThread(new Runnable() {
+            @Override
+            public void run() {
+                created[1].remove();
+                created[0] = world.createEntity(new TestComponentC());
+            }
+        });
+        world.process(ticker);
+        Assert.assertNull(created[1].getWorld());
+        Assert.assertSame(created[0], world.getEntity(created[0].getEntityId()));
+        Assert.assertEquals(2, componentCChangeCountingSystem.addedCount);
+        Assert.assertEquals(0, world.getCommandBufferCount());
+    }
+
+    @Test
+    public void testComponentsAreRecycledToTheirPool() throws Exception {
+        final BoundedPool<TestComponentB> pool = world.addComponentPool(TestComponentB.class, 10);
+        Assert.assertNull("No components should be pooled yet", world.obtainComponent(TestComponentB.class));
+        Assert.assertNull("Types without a pool should not be pooled", world.obtainComponent(TestComponentA.class));
+
+        // Components of removed entities and removed or replaced components are recycled
+        final TestComponentB first = new TestComponentB();
+        final TestComponentB second = new TestComponentB();
+        final TestComponentB third = new TestComponentB();
+        Entity entity = world.createEntity(new TestComponentA(), first);
+        world.process(ticker);
+        entity.addComponent(second);
+        entity.removeComponent(TestComponentB.class);
+        world.createEntity(third).remove();
+        world.process(ticker);
+        Assert.assertEquals(3, pool.getSize());
+        Assert.assertEquals(3, pool.getReleaseCount());
+
+        // Recycled components can be added to new entities
+        final TestComponentB recycled = world.obtainComponent(TestComponentB.class);
+        Assert.assertNotNull(recycled);
+        Assert.assertNull("Recycled component should not belong to an entity", recycled.getEntity());
+        Entity newEntity = world.createEntity(recycled);
+        Assert.assertSame(recycled, newEntity.getComponent(TestComponentB.class));
+        Assert.assertEquals(1, pool.getReuseCount());
+    }
+
+    @Test
+    public void testRemovedEntitiesAreNotifiedToHandlingSystemsOnly() throws Exception {
+        Entity entityA = world.createEntity(new TestComponentA());
+        Entity entityC = world.createEntity(new TestComponentC());
+        world.process(ticker);
+
+        entityA.remove();
+        entityC.remove();
+        world.createEntity(new TestComponentC()).remove();
+        world.process(ticker);
+        Assert.assertEquals("System handling all entities should be notified of both", 2, changeCountingSystem.removedCount);
+        Assert.assertEquals("Only the entity with the handled component type should be notified", 1, componentCChangeCountingSystem.removedCount);
+    }
+
+    @Test
+    public void testRemovedComponentsAreNotReusedInTheSameTick() throws Exception {
+        final BoundedPool<TestComponentB> pool = world.addComponentPool(TestComponentB.class, 10);
+        final TestComponentB removed = new TestComponentB();
+        Entity entity = world.createEntity(new TestComponentA(), removed);
+        world.process(ticker);
+
+        // Systems may still refer to the removed component until the next refresh
+        entity.removeComponent(TestComponentB.class);
+        Assert.assertNull("Component removed during the tick should not be obtainable yet", world.obtainComponent(TestComponentB.class));
+        Assert.assertEquals(0, pool.getSize());
+
+        world.process(ticker);
+        Assert.assertSame(removed, world.obtainComponent(TestComponentB.class));
+    }
+
+    @Test
+    public void testIntervalSystemsAreProcessedOnGameTimeAndSpread() throws Exception {
+        IntervalSystem first = new IntervalSystem(AllChangesSystem.class);
+        IntervalSystem second = new IntervalSystem(ComponentChangesSystem.class);
+        DefaultWorld intervalWorld = new DefaultWorld();
+        intervalWorld.addSystem(first);
+        intervalWorld.addSystem(second);
+        intervalWorld.init();
+
+        // Game time advances 100 ms per tick, regardless of how fast the ticks are run
+        Ticker gameTicker = new Ticker();
+        for (int i = 0; i < 29; i++) {
+            gameTicker.tick(100);
+            intervalWorld.process(gameTicker);
+        }
+
+        // The first system is processed on the first tick, and then at each whole game second
+        Assert.assertEquals("Should be processed once per game second", 3, first.processTimes.size());
+        Assert.assertEquals("Should be processed once per game second", 3, second.processTimes.size());
+        Assert.assertEquals("Should be processed a second of game time apart", 1000, first.processTimes.get(2) - first.processTimes.get(1));
+        Assert.assertEquals("Systems with the same interval should be spread over the interval", 500, second.processTimes.get(1) - first.processTimes.get(1));
+    }
+
+    private static void runInThread(Runnable task) throws InterruptedException {
+        Thread thread = new Thread(task);
+        thread.start();
+        thread.join();
+    }
+
+    private static final class IntervalSystem extends BaseSystem {
+        private final List<Long> processTimes = new ArrayList<Long>();
+        private long gameTime = 0;
+
+        private IntervalSystem(Class<? extends EntitySystem> baseType) {
+            super(baseType, 1.0);
+        }
+
+        @Override
+        protected void doProcess(Ticker systemTicker) {
+            gameTime += systemTicker.getLastTickDurationMs();
+            processTimes.add(gameTime);
+        }
+    }
+
+    private static final class ChangeCountingSystem extends BaseSystem {
+        private final IdSet handledComponentTypeIds;
+        private int changeCount = 0;
+        private int addedCount = 0;
+        private int removedCount = 0;
+        private int replacedCount = 0;
+
+        private ChangeCountingSystem(Class<? extends Component> handledComponentType) {
+            super(handledComponentType == null ? AllChangesSystem.class : ComponentChangesSystem.class);
+            handledComponentTypeIds = handledComponentType == null ? null : IdRegistry.getComponentTypeIds(handledComponentType);
+        }
+
+        @Override
+        public IdSet getHandledComponentTypeIds() {
+            return handledComponentTypeIds;
+        }
+
+        @Override
+        public void onEntityAdded(Entity entity) {
+            addedCount++;
+        }
+
+        @Override
+        public void onEntityRemoved(Entity entity) {
+            removedCount++;
+        }
+
+        @Override
+        public void onEntityComponentsChanged(Entity entity) {
+            changeCount++;
+        }
+
+        @Override
+        public void onEntityComponentsReplaced(Entity entity) {
+            replacedCount++;
+        }
+    }
+
+    private interface AllChangesSystem extends EntitySystem {}
+    private interface ComponentChangesSystem extends EntitySystem {}
+
+    private static final class TestComponentA extends BaseComponent {}
+    private static final class TestComponentB extends BaseComponent {}
+    private static final class TestComponentC extends BaseComponent {}
+}
@@ -0,0 +1,44 @@
+package org.tradeworld.entity;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Tests draining and recycling of entity command buffers.
+ */
+public class EntityCommandBufferTest {
+
+    @Test
+    public void testDrainingTwiceBeforeRecycling() throws Exception {
+        final EntityCommandBuffer buffer = new EntityCommandBuffer(Thread.currentThread());
+        buffer.record(0, EntityCommandBuffer.CREATE, null, -1);
+        final EntityCommandBuffer.Commands first = buffer.drain();
+        Assert.assertEquals(1, first.size);
+
+        // Second drain without recycling the first commands
+        buffer.record(1, EntityCommandBuffer.DESTROY, null, -1);
+        final EntityCommandBuffer.Commands second = buffer.drain();
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(1, second.size);
+        Assert.assertEquals(1, second.sequences[0]);
+
+        // Recording still works, and recycled lists are reused
+        buffer.recycle(first);
+        buffer.recycle(second);
+        buffer.record(2, EntityCommandBuffer.CREATE, null, -1);
+        final EntityCommandBuffer.Commands third = buffer.drain();
+        Assert.assertEquals(1, third.size);
+        Assert.assertEquals(2, third.sequences[0]);
+        Assert.assertEquals(0, buffer.drain().size);
+    }
+
+    @Test
+    public void testOwnerLiveness() throws Exception {
+        Assert.assertTrue(new EntityCommandBuffer(Thread.currentThread()).isOwnerAlive());
+
+        final Thread thread = new Thread();
+        thread.start();
+        thread.join();
+        Assert.assertFalse(new EntityCommandBuffer(thread).isOwnerAlive());
+    }
+}
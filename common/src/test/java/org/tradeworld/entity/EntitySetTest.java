@@ -0,0 +1,154 @@
+package org.tradeworld.entity;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests the position bookkeeping of EntitySet when entities are removed one at a time and in bulk.
+ */
+public class EntitySetTest {
+
+    @Test
+    public void testRemoveMovesLastEntityToTheHole() throws Exception {
+        final List<Entity> entities = createEntities(5);
+        final EntitySet set = createSet(entities);
+
+        // Remove from the middle
+        Assert.assertTrue(set.remove(entities.get(1)));
+        Assert.assertSame("Last entity should fill the hole", entities.get(4), set.get(1));
+        assertContainsInOrder(set, entities.get(0), entities.get(4), entities.get(2), entities.get(3));
+
+        // Remove the last and the first
+        Assert.assertTrue(set.remove(entities.get(3)));
+        Assert.assertTrue(set.remove(entities.get(0)));
+        Assert.assertSame(entities.get(2), set.get(0));
+        assertContainsInOrder(set, entities.get(2), entities.get(4));
+
+        // Removing again does nothing
+        Assert.assertFalse(set.remove(entities.get(0)));
+        assertContainsInOrder(set, entities.get(2), entities.get(4));
+
+        // Removed entities can be added again, at the end
+        Assert.assertTrue(set.add(entities.get(1)));
+        Assert.assertFalse(set.add(entities.get(1)));
+        assertContainsInOrder(set, entities.get(2), entities.get(4), entities.get(1));
+
+        Assert.assertTrue(set.remove(entities.get(2)));
+        Assert.assertTrue(set.remove(entities.get(4)));
+        Assert.assertTrue(set.remove(entities.get(1)));
+        Assert.assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void testRemoveAllKeepsOrder() throws Exception {
+        final List<Entity> entities = createEntities(10);
+        final EntitySet set = createSet(entities);
+        final Entity notContained = new Entity(EntityIds.create(20, 1), null);
+
+        // Duplicates and entities that are not in the set are not counted
+        final List<Entity> toRemove = Arrays.asList(entities.get(0), entities.get(3), entities.get(3), entities.get(9), notContained);
+        Assert.assertEquals(3, set.removeAll(toRemove));
+        assertContainsInOrder(set, entities.get(1), entities.get(2), entities.get(4), entities.get(5), entities.get(6), entities.get(7), entities.get(8));
+        Assert.assertFalse(set.contains(notContained));
+
+        // Positions stay consistent for later single removals
+        Assert.assertTrue(set.remove(entities.get(1)));
+        assertContainsInOrder(set, entities.get(8), entities.get(2), entities.get(4), entities.get(5), entities.get(6), entities.get(7));
+
+        Assert.assertEquals(0, set.removeAll(toRemove));
+        Assert.assertEquals(6, set.removeAll(entities));
+        Assert.assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void testEntitiesWithReusedIndexesAreDistinct() throws Exception {
+        final Entity entity = new Entity(EntityIds.create(3, 1), null);
+        final Entity reused = new Entity(EntityIds.create(3, 2), null);
+        final EntitySet set = new EntitySet();
+        set.add(entity);
+
+        // An entity with the same index is not contained, and can not remove the contained one
+        Assert.assertFalse(set.contains(reused));
+        Assert.assertFalse(set.remove(reused));
+        Assert.assertEquals(0, set.removeAll(Arrays.asList(reused)));
+        assertContainsInOrder(set, entity);
+    }
+
+    @Test
+    public void testRandomChangesMatchHashSet() throws Exception {
+        final Random random = new Random(42);
+        final List<Entity> entities = createEntities(200);
+        final EntitySet set = new EntitySet(1);
+        final Set<Entity> expected = new HashSet<Entity>();
+
+        for (int round = 0; round < 2000; round++) {
+            final Entity entity = entities.get(random.nextInt(entities.size()));
+            final int operation = random.nextInt(10);
+            if (operation < 5) {
+                Assert.assertEquals(expected.add(entity), set.add(entity));
+            }
+            else if (operation < 9) {
+                Assert.assertEquals(expected.remove(entity), set.remove(entity));
+            }
+            else {
+                final List<Entity> toRemove = new ArrayList<Entity>();
+                for (int i = 0; i < 20; i++) {
+                    toRemove.add(entities.get(random.nextInt(entities.size())));
+                }
+                final int sizeBefore = expected.size();
+                expected.removeAll(toRemove);
+                Assert.assertEquals(sizeBefore - expected.size(), set.removeAll(toRemove));
+            }
+
+            assertContainsAnyOrder(set, expected.toArray(new Entity[expected.size()]));
+        }
+    }
+
+    private List<Entity> createEntities(int count) {
+        final List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 0; i < count; i++) {
+            entities.add(new Entity(EntityIds.create(i, 1), null));
+        }
+        return entities;
+    }
+
+    private EntitySet createSet(List<Entity> entities) {
+        final EntitySet set = new EntitySet(2);
+        for (Entity entity : entities) {
+            Assert.assertTrue(set.add(entity));
+        }
+        return set;
+    }
+
+    /**
+     * Checks that the set has exactly the expected entities at the expected positions, and finds each of them through its position.
+     */
+    private void assertContainsInOrder(EntitySet set, Entity ... expected) {
+        Assert.assertEquals(expected.length, set.size());
+        for (int position = 0; position < expected.length; position++) {
+            Assert.assertSame("Entity at position " + position, expected[position], set.get(position));
+            Assert.assertTrue("Entity at position " + position + " should be found", set.contains(expected[position]));
+        }
+    }
+
+    /**
+     * Checks that the set has exactly the expected entities, and finds each of them through its position.
+     */
+    private void assertContainsAnyOrder(EntitySet set, Entity ... expected) {
+        Assert.assertEquals(expected.length, set.size());
+        final Set<Entity> found = new HashSet<Entity>();
+        for (int position = 0; position < set.size(); position++) {
+            final Entity entity = set.get(position);
+            Assert.assertTrue("Entity at position " + position + " should be found", set.contains(entity));
+            Assert.assertTrue("Entity should be in the set once", found.add(entity));
+        }
+        Assert.assertEquals(new HashSet<Entity>(Arrays.asList(expected)), found);
+    }
+}
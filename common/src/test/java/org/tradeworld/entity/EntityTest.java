@@ -0,0 +1,105 @@
+package org.tradeworld.entity;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.tradeworld.utils.Ticker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests concurrent component changes on entities.
+ */
+public class EntityTest {
+
+    private static final int ROUNDS = 20000;
+
+    private DefaultWorld world;
+
+    @Before
+    public void setUp() throws Exception {
+        world = new DefaultWorld();
+        world.init();
+    }
+
+    @Test
+    public void testConcurrentComponentChangesDoNotLoseTypes() throws Exception {
+        final Entity entity = world.createEntity();
+        world.process(new Ticker());
+
+        // Each thread adds and removes its own component type, and leaves it added at the end
+        final Class[] componentTypes = {TestComponentA.class, TestComponentB.class, TestComponentC.class, TestComponentD.class};
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final Thread[] threads = new Thread[componentTypes.length];
+        for (int i = 0; i < threads.length; i++) {
+            final Class<? extends Component> componentType = componentTypes[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int round = 0; round < ROUNDS; round++) {
+                            entity.addComponent(componentType.newInstance());
+                            if (!entity.containsComponent(componentType)) throw new IllegalStateException("Added component type missing");
+                            entity.removeComponent(componentType);
+                            if (entity.containsComponent(componentType)) throw new IllegalStateException("Removed component type still present");
+                        }
+                        entity.addComponent(componentType.newInstance());
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertNull("No thread should fail: " + error.get(), error.get());
+        for (Class<? extends Component> componentType : componentTypes) {
+            Assert.assertTrue("Component type should be in the entity", entity.containsComponent(componentType));
+            Assert.assertNotNull("Component should be in the entity", entity.getComponent(componentType));
+            Assert.assertEquals("Component should be owned by the entity", entity, ((BaseComponent) entity.getComponent(componentType)).getEntity());
+        }
+        Assert.assertEquals("Component types should match the components", IdRegistry.getComponentTypeIds(componentTypes), entity.getComponentTypeIds());
+    }
+
+    @Test
+    public void testReplacingComponent() throws Exception {
+        final Entity entity = world.createEntity();
+        final TestComponentA first = new TestComponentA();
+        final TestComponentA second = new TestComponentA();
+
+        entity.addComponent(first);
+        entity.addComponent(first);
+        Assert.assertSame(first, entity.getComponent(TestComponentA.class));
+
+        entity.addComponent(second);
+        Assert.assertSame(second, entity.getComponent(TestComponentA.class));
+        Assert.assertNull("Replaced component should be removed from the entity", first.getEntity());
+    }
+
+    @Test
+    public void testQueriesDoNotRegisterComponentTypes() throws Exception {
+        final Entity entity = world.createEntity(new TestComponentA());
+
+        Assert.assertNull(entity.getComponent(UnusedComponent.class));
+        Assert.assertFalse(entity.containsComponent(UnusedComponent.class));
+        entity.removeComponent(UnusedComponent.class);
+        Assert.assertEquals("Querying an unused component type should not register it", -1, IdRegistry.findComponentTypeId(UnusedComponent.class));
+
+        Assert.assertTrue(IdRegistry.findComponentTypeId(TestComponentA.class) >= 0);
+        Assert.assertTrue(entity.containsComponent(TestComponentA.class));
+    }
+
+    public static final class TestComponentA extends BaseComponent {}
+    public static final class TestComponentB extends BaseComponent {}
+    public static final class TestComponentC extends BaseComponent {}
+    public static final class TestComponentD extends BaseComponent {}
+    private static final class UnusedComponent extends BaseComponent {}
+}
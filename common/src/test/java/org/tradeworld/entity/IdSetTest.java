@@ -0,0 +1,179 @@
+package org.tradeworld.entity;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Tests IdSet against java.util.BitSet, especially around the 64 id boundary where the extra words start.
+ */
+public class IdSetTest {
+
+    private static final int[] BOUNDARY_IDS = {0, 1, 62, 63, 64, 65, 127, 128, 129, 191, 192, 300};
+
+    @Test
+    public void testContainsAroundWordBoundaries() throws Exception {
+        for (int id : BOUNDARY_IDS) {
+            final IdSet set = new IdSet();
+            set.add(id);
+            for (int other : BOUNDARY_IDS) {
+                Assert.assertEquals("Contains " + other + " when " + id + " was added", other == id, set.contains(other));
+            }
+            Assert.assertFalse("Ids past the allocated words should not be contained", set.contains(10000));
+
+            set.remove(id);
+            Assert.assertFalse(set.contains(id));
+            Assert.assertTrue(set.isEmpty());
+        }
+    }
+
+    @Test
+    public void testNextIdAroundWordBoundaries() throws Exception {
+        final IdSet set = new IdSet();
+        for (int id : BOUNDARY_IDS) {
+            set.add(id);
+        }
+
+        // Iterating gives all ids in order
+        int index = 0;
+        for (int id = set.nextId(0); id >= 0; id = set.nextId(id + 1)) {
+            Assert.assertEquals(BOUNDARY_IDS[index++], id);
+        }
+        Assert.assertEquals(BOUNDARY_IDS.length, index);
+
+        // Searching from each position skips to the next id
+        Assert.assertEquals(64, set.nextId(64));
+        Assert.assertEquals(127, set.nextId(66));
+        Assert.assertEquals(300, set.nextId(193));
+        Assert.assertEquals(-1, set.nextId(301));
+        Assert.assertEquals(-1, set.nextId(100000));
+
+        // Only extra words set
+        final IdSet highIds = new IdSet();
+        highIds.add(200);
+        Assert.assertEquals(200, highIds.nextId(0));
+        Assert.assertEquals(200, highIds.nextId(64));
+        Assert.assertEquals(-1, highIds.nextId(201));
+    }
+
+    @Test
+    public void testXorWithDifferentWordCounts() throws Exception {
+        final IdSet small = ids(1, 63);
+        final IdSet large = ids(1, 64, 200);
+
+        final IdSet result = new IdSet(small);
+        result.xor(large);
+        Assert.assertEquals(ids(63, 64, 200), result);
+
+        // The other way around, the longer set xors with a set without extra words
+        final IdSet reversed = new IdSet(large);
+        reversed.xor(small);
+        Assert.assertEquals(ids(63, 64, 200), reversed);
+
+        // Xor with itself cancels out, also in the extra words
+        reversed.xor(ids(63, 64, 200));
+        Assert.assertTrue(reversed.isEmpty());
+        Assert.assertEquals(new IdSet(), reversed);
+        Assert.assertEquals(new IdSet().hashCode(), reversed.hashCode());
+    }
+
+    @Test
+    public void testContainsAllWithDifferentWordCounts() throws Exception {
+        final IdSet small = ids(1, 63);
+        final IdSet large = ids(1, 63, 64, 200);
+
+        Assert.assertTrue(large.containsAll(small));
+        Assert.assertFalse(small.containsAll(large));
+        Assert.assertTrue(small.containsAll(new IdSet()));
+        Assert.assertTrue(new IdSet().containsAll(new IdSet()));
+
+        // Trailing empty words do not matter
+        final IdSet emptiedExtraWords = ids(1, 63, 500);
+        emptiedExtraWords.remove(500);
+        Assert.assertTrue(small.containsAll(emptiedExtraWords));
+        Assert.assertTrue(emptiedExtraWords.containsAll(small));
+        Assert.assertEquals(small, emptiedExtraWords);
+        Assert.assertEquals(small.hashCode(), emptiedExtraWords.hashCode());
+
+        Assert.assertFalse(ids(64).containsAll(ids(65)));
+        Assert.assertTrue(ids(64, 65).containsAll(ids(65)));
+    }
+
+    @Test
+    public void testRandomOperationsMatchBitSet() throws Exception {
+        final Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            final IdSet a = new IdSet();
+            final IdSet b = new IdSet();
+            final BitSet expectedA = new BitSet();
+            final BitSet expectedB = new BitSet();
+            fillRandomly(random, a, expectedA);
+            fillRandomly(random, b, expectedB);
+
+            final IdSet xor = new IdSet(a);
+            xor.xor(b);
+            final BitSet expectedXor = (BitSet) expectedA.clone();
+            expectedXor.xor(expectedB);
+            assertSame(expectedXor, xor);
+
+            final BitSet intersection = (BitSet) expectedA.clone();
+            intersection.and(expectedB);
+            Assert.assertEquals(intersection.equals(expectedB), a.containsAll(b));
+            Assert.assertEquals(!intersection.isEmpty(), a.intersects(b));
+        }
+    }
+
+    @Test
+    public void testNegativeIdsAreRejected() throws Exception {
+        final IdSet set = ids(63);
+        try {
+            set.contains(-1);
+            Assert.fail("Negative id should not be accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            set.add(-65);
+            Assert.fail("Negative id should not be accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            set.remove(-1);
+            Assert.fail("Negative id should not be accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        Assert.assertEquals(ids(63), set);
+    }
+
+    private static IdSet ids(int... ids) {
+        final IdSet set = new IdSet();
+        for (int id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    private static void fillRandomly(Random random, IdSet set, BitSet expected) {
+        final int maxId = 1 + random.nextInt(random.nextBoolean() ? 64 : 400);
+        final int count = random.nextInt(20);
+        for (int i = 0; i < count; i++) {
+            final int id = random.nextInt(maxId);
+            set.add(id);
+            expected.set(id);
+        }
+    }
+
+    private static void assertSame(BitSet expected, IdSet actual) {
+        int expectedId = expected.nextSetBit(0);
+        for (int id = actual.nextId(0); id >= 0; id = actual.nextId(id + 1)) {
+            Assert.assertEquals(expectedId, id);
+            Assert.assertTrue(actual.contains(id));
+            expectedId = expected.nextSetBit(id + 1);
+        }
+        Assert.assertEquals(-1, expectedId);
+    }
+}
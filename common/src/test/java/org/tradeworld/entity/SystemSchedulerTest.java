@@ -0,0 +1,174 @@
+package org.tradeworld.entity;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tradeworld.utils.Ticker;
+import org.tradeworld.utils.WorkerPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests how SystemScheduler groups systems into stages and processes them.
+ */
+public class SystemSchedulerTest {
+
+    private WorkerPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new WorkerPool(3, "TestWorker");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testConflicts() throws Exception {
+        final AccessSystem readerA = AccessSystem.reading("readerA", TestComponentA.class);
+        final AccessSystem readerAB = AccessSystem.reading("readerAB", TestComponentA.class, TestComponentB.class);
+        final AccessSystem writerA = AccessSystem.writing("writerA", TestComponentA.class);
+        final AccessSystem writerB = AccessSystem.writing("writerB", TestComponentB.class);
+        final AccessSystem undeclared = new AccessSystem("undeclared");
+
+        Assert.assertFalse("Readers should not conflict", SystemScheduler.conflicts(readerA, readerAB));
+        Assert.assertTrue(SystemScheduler.conflicts(readerA, writerA));
+        Assert.assertTrue(SystemScheduler.conflicts(writerA, readerA));
+        Assert.assertTrue(SystemScheduler.conflicts(writerA, AccessSystem.writing("otherWriterA", TestComponentA.class)));
+        Assert.assertFalse(SystemScheduler.conflicts(writerA, writerB));
+        Assert.assertFalse(SystemScheduler.conflicts(readerA, writerB));
+        Assert.assertTrue(SystemScheduler.conflicts(readerAB, writerB));
+
+        // Systems that have not declared what they access conflict with everything
+        Assert.assertTrue(SystemScheduler.conflicts(undeclared, readerA));
+        Assert.assertTrue(SystemScheduler.conflicts(readerA, undeclared));
+        Assert.assertTrue(SystemScheduler.conflicts(undeclared, new AccessSystem("otherUndeclared")));
+    }
+
+    @Test
+    public void testConflictingSystemsAreInDifferentStages() throws Exception {
+        final AccessSystem writerA = AccessSystem.writing("writerA", TestComponentA.class);
+        final AccessSystem readerA = AccessSystem.reading("readerA", TestComponentA.class);
+        final AccessSystem readerB = AccessSystem.reading("readerB", TestComponentB.class);
+        final AccessSystem otherWriterA = AccessSystem.writing("otherWriterA", TestComponentA.class);
+        final AccessSystem writerB = AccessSystem.writing("writerB", TestComponentB.class);
+
+        final SystemScheduler scheduler = createScheduler(writerA, readerA, readerB, otherWriterA, writerB);
+
+        // A system goes to the stage after the latest stage of the earlier systems it conflicts with
+        assertStages(scheduler,
+                     Arrays.<EntitySystem>asList(writerA, readerB),
+                     Arrays.<EntitySystem>asList(readerA, writerB),
+                     Arrays.<EntitySystem>asList(otherWriterA));
+    }
+
+    @Test
+    public void testUndeclaredSystemsAreProcessedAlone() throws Exception {
+        final AccessSystem readerA = AccessSystem.reading("readerA", TestComponentA.class);
+        final AccessSystem undeclared = new AccessSystem("undeclared");
+        final AccessSystem readerB = AccessSystem.reading("readerB", TestComponentB.class);
+
+        assertStages(createScheduler(readerA, undeclared, readerB),
+                     Arrays.<EntitySystem>asList(readerA),
+                     Arrays.<EntitySystem>asList(undeclared),
+                     Arrays.<EntitySystem>asList(readerB));
+    }
+
+    @Test
+    public void testStagesKeepRegistrationOrder() throws Exception {
+        // Readers of A do not conflict with each other or with writers of B, each writer of B conflicts with the earlier ones
+        final List<AccessSystem> readers = new ArrayList<AccessSystem>();
+        final List<AccessSystem> writers = new ArrayList<AccessSystem>();
+        final List<AccessSystem> all = new ArrayList<AccessSystem>();
+        for (int i = 0; i < 4; i++) {
+            final AccessSystem reader = AccessSystem.reading("readerA" + i, TestComponentA.class);
+            final AccessSystem writer = AccessSystem.writing("writerB" + i, TestComponentB.class);
+            readers.add(reader);
+            writers.add(writer);
+            all.add(reader);
+            all.add(writer);
+        }
+        final AccessSystem writerA = AccessSystem.writing("writerA", TestComponentA.class);
+        all.add(writerA);
+
+        assertStages(createScheduler(all.toArray(new AccessSystem[all.size()])),
+                     Arrays.<EntitySystem>asList(readers.get(0), writers.get(0), readers.get(1), readers.get(2), readers.get(3)),
+                     Arrays.<EntitySystem>asList(writers.get(1), writerA),
+                     Arrays.<EntitySystem>asList(writers.get(2)),
+                     Arrays.<EntitySystem>asList(writers.get(3)));
+    }
+
+    @Test
+    public void testStagesAreProcessedInOrder() throws Exception {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final AccessSystem readerA = AccessSystem.reading("readerA", TestComponentA.class);
+        final AccessSystem readerB = AccessSystem.reading("readerB", TestComponentB.class);
+        final AccessSystem writerA = AccessSystem.writing("writerA", TestComponentA.class);
+        readerA.events = events;
+        readerB.events = events;
+        writerA.events = events;
+
+        createScheduler(readerA, readerB, writerA).process(new Ticker());
+
+        // The readers run in parallel in any order, the writer only after both
+        Assert.assertEquals(6, events.size());
+        Assert.assertEquals(Arrays.asList("start writerA", "end writerA"), events.subList(4, 6));
+        Assert.assertTrue(events.subList(0, 4).containsAll(Arrays.asList("start readerA", "end readerA", "start readerB", "end readerB")));
+    }
+
+    private SystemScheduler createScheduler(AccessSystem ... systems) {
+        return new SystemScheduler(Arrays.<EntitySystem>asList(systems), pool);
+    }
+
+    private void assertStages(SystemScheduler scheduler, List<EntitySystem> ... expectedStages) {
+        Assert.assertEquals(Arrays.asList(expectedStages), scheduler.getStages());
+    }
+
+    /**
+     * System with configurable component access, that can record when it is processed.
+     */
+    private static final class AccessSystem extends BaseSystem {
+        private final String name;
+        private List<String> events = null;
+
+        private static AccessSystem reading(String name, Class<? extends Component> ... types) {
+            final AccessSystem system = new AccessSystem(name);
+            system.declareReadComponents(types);
+            system.declareWrittenComponents();
+            return system;
+        }
+
+        private static AccessSystem writing(String name, Class<? extends Component> ... types) {
+            final AccessSystem system = new AccessSystem(name);
+            system.declareReadComponents();
+            system.declareWrittenComponents(types);
+            return system;
+        }
+
+        private AccessSystem(String name) {
+            this.name = name;
+        }
+
+        @Override
+        protected void doProcess(Ticker systemTicker) {
+            if (events != null) {
+                events.add("start " + name);
+                events.add("end " + name);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final class TestComponentA extends BaseComponent {}
+    private static final class TestComponentB extends BaseComponent {}
+}
@@ -0,0 +1,130 @@
+package org.tradeworld.systems;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.tradeworld.components.Crop;
+import org.tradeworld.components.EdibleView;
+import org.tradeworld.components.Named;
+import org.tradeworld.entity.ArchetypeWorld;
+import org.tradeworld.entity.ColumnStore;
+import org.tradeworld.entity.Entity;
+import org.tradeworld.entity.EntityChunk;
+import org.tradeworld.utils.Ticker;
+import org.tradeworld.utils.WorkerPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that ChunkedGrowSystem makes only grown crops edible, and how ChunkedEntitySystem spreads chunks over threads.
+ */
+public class ChunkedGrowSystemTest {
+
+    @Test
+    public void testGrownCropsBecomeEdible() throws Exception {
+        final ArchetypeWorld world = new ArchetypeWorld(1, 8);
+        world.addSystem(new ChunkedGrowSystem());
+        world.init();
+        final ColumnStore<EdibleView> edibleStore = world.getColumnStore(EdibleView.class);
+        final Ticker ticker = new Ticker();
+
+        // Several chunks of grown and growing crops
+        final List<Entity> grown = new ArrayList<Entity>();
+        final List<Entity> growing = new ArrayList<Entity>();
+        for (int i = 0; i < 20; i++) {
+            grown.add(world.createEntity(new Named("grown"), new Crop(0)));
+            growing.add(world.createEntity(new Named("growing"), new Crop(1000)));
+        }
+
+        // Added on the first process, moved to the edible chunks on the next
+        world.process(ticker);
+        world.process(ticker);
+        world.process(ticker);
+
+        final EdibleView view = edibleStore.view();
+        for (Entity entity : grown) {
+            Assert.assertNotNull("Grown crop should be edible", edibleStore.get(entity, view));
+            Assert.assertEquals(100f, view.getEnergyJoule());
+            Assert.assertEquals(1f, view.getPoisonDamage());
+            Assert.assertEquals(0f, view.getHeal());
+        }
+        for (Entity entity : growing) {
+            Assert.assertFalse("Growing crop should not be edible", edibleStore.contains(entity));
+        }
+    }
+
+    @Test
+    public void testFewEntitiesAreProcessedInCallingThread() throws Exception {
+        final ThreadRecordingGrowSystem system = new ThreadRecordingGrowSystem();
+        final ArchetypeWorld world = createWorld(system);
+
+        // Several chunks, but fewer entities in total than the default minimum
+        world.process(new Ticker());
+        Assert.assertEquals(Collections.singleton(Thread.currentThread()), system.threads);
+    }
+
+    @Test(timeout = 10000)
+    public void testChunksAreProcessedOnTheWorkerPool() throws Exception {
+        final WorkerPool pool = new WorkerPool(2, "TestWorker");
+        try {
+            final ThreadRecordingGrowSystem system = new ThreadRecordingGrowSystem();
+            system.setWorkerPool(pool);
+            system.setMinimumConcurrentEntityCount(1);
+            final ArchetypeWorld world = createWorld(system);
+
+            // Each thread that takes part waits for a second thread, which only arrives if the chunks are processed in parallel
+            system.secondThread = new CountDownLatch(2);
+            world.process(new Ticker());
+
+            Assert.assertTrue("Chunks should be processed by several threads at once", system.waitedForSecondThread);
+            for (Thread thread : system.threads) {
+                Assert.assertTrue("Chunks should be processed by the calling thread or the given pool, not by " + thread.getName(),
+                                  thread == Thread.currentThread() || thread.getName().startsWith("TestWorker"));
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    private ArchetypeWorld createWorld(ThreadRecordingGrowSystem system) {
+        final ArchetypeWorld world = new ArchetypeWorld(1, 8);
+        world.addSystem(system);
+        world.init();
+        for (int i = 0; i < 40; i++) {
+            world.createEntity(new Named("growing"), new Crop(1000));
+        }
+
+        // Process once to add the entities
+        system.threads.clear();
+        world.process(new Ticker());
+        system.threads.clear();
+        return world;
+    }
+
+    private static final class ThreadRecordingGrowSystem extends ChunkedGrowSystem {
+        private final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        private volatile CountDownLatch secondThread = null;
+        private volatile boolean waitedForSecondThread = false;
+
+        @Override
+        protected void processChunk(Ticker ticker, EntityChunk chunk) {
+            final CountDownLatch latch = secondThread;
+            if (threads.add(Thread.currentThread()) && latch != null) {
+                latch.countDown();
+                try {
+                    if (latch.await(5, TimeUnit.SECONDS)) waitedForSecondThread = true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            super.processChunk(ticker, chunk);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.tradeworld.systems.farm;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that the timing wheel hands out values at the right time.
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void testValuesAreHandedOutAtTheirTime() throws Exception {
+        final long start = 1000000;
+        final long resolution = 10;
+        final TimingWheel<Long> wheel = new TimingWheel<Long>(resolution, start);
+
+        // Mix of near, far and past times, crossing several levels of the wheel
+        final Random random = new Random(42);
+        final int count = 10000;
+        for (int i = 0; i < count; i++) {
+            final long maxDelay = i % 3 == 0 ? 1000 : i % 3 == 1 ? 1000000 : 100000000;
+            final long time = start - 500 + (long) (random.nextDouble() * maxDelay);
+            wheel.schedule(time, time);
+        }
+        Assert.assertEquals(count, wheel.size());
+
+        // Advance in uneven steps and check that no value is handed out early, or more than a tick late
+        final List<Long> expired = new ArrayList<Long>();
+        long now = start;
+        int handedOut = 0;
+        while (!wheel.isEmpty()) {
+            now += 1 + random.nextInt(20000);
+            final int expiredCount = wheel.advanceTo(now, expired);
+            Assert.assertEquals(expired.size(), expiredCount);
+            for (Long time : expired) {
+                Assert.assertTrue("Value handed out early", time <= now);
+            }
+            handedOut += expiredCount;
+            expired.clear();
+
+            // Nothing still waiting should be due
+            Assert.assertEquals(0, wheel.advanceTo(now, expired));
+        }
+        Assert.assertEquals(count, handedOut);
+    }
+
+    @Test
+    public void testValuesAreNotHandedOutLate() throws Exception {
+        final TimingWheel<Long> wheel = new TimingWheel<Long>(1, 0);
+        final List<Long> expired = new ArrayList<Long>();
+        final long[] times = {1, 255, 256, 257, 65535, 65536, 70000, 16777216, 5000000000L};
+        for (long time : times) {
+            wheel.schedule(time, time);
+        }
+
+        for (long time : times) {
+            wheel.advanceTo(time - 1, expired);
+            Assert.assertFalse("Value at " + time + " handed out early", expired.contains(time));
+            wheel.advanceTo(time, expired);
+            Assert.assertTrue("Value at " + time + " should be handed out at its time", expired.contains(time));
+        }
+        Assert.assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testCancelledValuesAreNotHandedOut() throws Exception {
+        final TimingWheel<String> wheel = new TimingWheel<String>(10, 0);
+        final List<String> expired = new ArrayList<String>();
+        final TimingWheel.Entry<String> near = wheel.schedule(50, "near");
+        final TimingWheel.Entry<String> far = wheel.schedule(5000000, "far");
+        final TimingWheel.Entry<String> past = wheel.schedule(-10, "past");
+        wheel.schedule(60, "kept");
+        Assert.assertEquals(4, wheel.size());
+
+        Assert.assertTrue(wheel.cancel(near));
+        Assert.assertTrue(wheel.cancel(far));
+        Assert.assertTrue(wheel.cancel(past));
+        Assert.assertFalse("Cancelling twice should do nothing", wheel.cancel(near));
+        Assert.assertNull("Cancelled entries should not reference their value", far.getValue());
+        Assert.assertEquals(1, wheel.size());
+
+        Assert.assertEquals(1, wheel.advanceTo(10000000, expired));
+        Assert.assertEquals("kept", expired.get(0));
+        Assert.assertTrue(wheel.isEmpty());
+
+        // Entries that have been handed out can not be cancelled
+        final TimingWheel.Entry<String> handedOut = wheel.schedule(10000010, "handed out");
+        wheel.advanceTo(10000020, expired);
+        Assert.assertTrue(handedOut.isDone());
+        Assert.assertFalse(wheel.cancel(handedOut));
+        Assert.assertEquals(0, wheel.size());
+
+        // Neither can cleared entries
+        final TimingWheel.Entry<String> cleared = wheel.schedule(20000000, "cleared");
+        wheel.clear();
+        Assert.assertFalse(wheel.cancel(cleared));
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testPastValuesAreHandedOutOnNextAdvance() throws Exception {
+        final TimingWheel<String> wheel = new TimingWheel<String>(100, 5000);
+        final List<String> expired = new ArrayList<String>();
+        wheel.schedule(100, "past");
+        wheel.advanceTo(5000, expired);
+        Assert.assertEquals(1, expired.size());
+        Assert.assertEquals("past", expired.get(0));
+    }
+}
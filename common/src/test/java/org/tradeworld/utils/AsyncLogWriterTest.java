@@ -0,0 +1,124 @@
+package org.tradeworld.utils;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests message ordering, dropping and shutdown of AsyncLogWriter.
+ */
+public class AsyncLogWriterTest {
+
+    private static final int CAPACITY = 4;
+    private static final long TIMEOUT_MILLISECONDS = 5000;
+
+    private ByteArrayOutputStream output;
+    private AsyncLogWriter writer;
+
+    @Before
+    public void setUp() throws Exception {
+        output = new ByteArrayOutputStream();
+        writer = new AsyncLogWriter(CAPACITY, new PrintStream(output, true, "UTF-8"), "TestLogWriter");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.shutdown();
+    }
+
+    @Test
+    public void testMessagesAreWrittenInOrderAcrossWraparound() throws Exception {
+        // Several rounds through the ring buffer
+        for (int i = 0; i < CAPACITY * 5; i++) {
+            Assert.assertTrue(writer.write(LogLevel.INFO, "Test", "Message {} of {}", i, "test", null, null));
+            if (i % 3 == 2) Assert.assertTrue(writer.flush(TIMEOUT_MILLISECONDS));
+        }
+        Assert.assertTrue(writer.flush(TIMEOUT_MILLISECONDS));
+
+        final String[] lines = getLines();
+        Assert.assertEquals(CAPACITY * 5, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            Assert.assertTrue(lines[i], lines[i].endsWith(" INFO [" + Thread.currentThread().getName() + "] Test: Message " + i + " of test"));
+        }
+        Assert.assertEquals(0, writer.getDroppedCount());
+    }
+
+    @Test
+    public void testMessagesAreDroppedAndCountedWhenFull() throws Exception {
+        // Keep the writer busy with the first message while the buffer fills up
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Object blockingArgument = new Object() {
+            @Override
+            public String toString() {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "blocked";
+            }
+        };
+        Assert.assertTrue(writer.write(LogLevel.INFO, "Test", "First {}", blockingArgument, null, null, null));
+        Assert.assertTrue(writing.await(TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS));
+
+        // The first slot is not handed back until its message is written
+        for (int i = 1; i < CAPACITY; i++) {
+            Assert.assertTrue(writer.write(LogLevel.WARNING, "Test", "Queued {}", i, null, null, null));
+        }
+        Assert.assertFalse(writer.write(LogLevel.WARNING, "Test", "Dropped", null, null, null, null));
+        Assert.assertFalse(writer.write(LogLevel.WARNING, "Test", "Dropped", null, null, null, null));
+        Assert.assertEquals(2, writer.getDroppedCount());
+
+        release.countDown();
+        Assert.assertTrue(writer.flush(TIMEOUT_MILLISECONDS));
+
+        // Slots are usable again
+        Assert.assertTrue(writer.write(LogLevel.ERROR, "Test", "After", null, null, null, null));
+        Assert.assertTrue(writer.flush(TIMEOUT_MILLISECONDS));
+
+        final String text = output.toString("UTF-8");
+        Assert.assertFalse(text.contains("Dropped"));
+        Assert.assertTrue(text.contains("Log buffer was full, dropped 2 log messages"));
+        Assert.assertTrue(text.indexOf("First blocked") < text.indexOf("Queued 1"));
+        Assert.assertTrue(text.indexOf("Queued 3") < text.indexOf("After"));
+    }
+
+    @Test
+    public void testShutdownWritesQueuedMessages() throws Exception {
+        for (int i = 0; i < CAPACITY; i++) {
+            writer.write(LogLevel.DEBUG, "Test", "Message {}", i, null, null, null);
+        }
+        writer.shutdown();
+        Assert.assertEquals(CAPACITY, getLines().length);
+
+        // Messages after shutdown are not written, and can not be flushed
+        writer.write(LogLevel.DEBUG, "Test", "Too late", null, null, null, null);
+        Assert.assertFalse(writer.flush(10));
+        Assert.assertFalse(output.toString("UTF-8").contains("Too late"));
+    }
+
+    @Test
+    public void testUnusedArgumentsAndPlaceholders() throws Exception {
+        writer.write(LogLevel.INFO, "Test", "{} and {}", "a", "b", "c", null);
+        writer.write(LogLevel.INFO, "Test", "{} {} {} {}", 1, 2, 3, null);
+        writer.write(LogLevel.INFO, "Test", null, null, null, null, null);
+        Assert.assertTrue(writer.flush(TIMEOUT_MILLISECONDS));
+
+        final String[] lines = getLines();
+        Assert.assertTrue(lines[0], lines[0].endsWith("Test: a and b"));
+        Assert.assertTrue(lines[1], lines[1].endsWith("Test: 1 2 3 {}"));
+        Assert.assertTrue(lines[2], lines[2].endsWith("Test: null"));
+    }
+
+    private String[] getLines() throws Exception {
+        return output.toString("UTF-8").split("\\r?\\n");
+    }
+}
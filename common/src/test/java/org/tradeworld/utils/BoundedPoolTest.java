@@ -0,0 +1,59 @@
+package org.tradeworld.utils;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the size limit and statistics of BoundedPool.
+ */
+public class BoundedPoolTest {
+
+    @Test
+    public void testObjectsAreReused() throws Exception {
+        final BoundedPool<Object> pool = new BoundedPool<Object>(2);
+        Assert.assertNull("Empty pool should not return anything", pool.obtain());
+        Assert.assertEquals(1, pool.getAllocationCount());
+
+        final Object a = new Object();
+        final Object b = new Object();
+        Assert.assertTrue(pool.release(a));
+        Assert.assertTrue(pool.release(b));
+        Assert.assertEquals(2, pool.getSize());
+
+        // Most recently released objects are reused first
+        Assert.assertSame(b, pool.obtain());
+        Assert.assertSame(a, pool.obtain());
+        Assert.assertNull(pool.obtain());
+
+        Assert.assertEquals(2, pool.getReuseCount());
+        Assert.assertEquals(2, pool.getAllocationCount());
+        Assert.assertEquals(2, pool.getReleaseCount());
+        Assert.assertEquals(0, pool.getDiscardCount());
+    }
+
+    @Test
+    public void testPoolIsBounded() throws Exception {
+        final BoundedPool<Object> pool = new BoundedPool<Object>(2);
+        Assert.assertTrue(pool.release(new Object()));
+        Assert.assertTrue(pool.release(new Object()));
+        Assert.assertFalse("Full pool should drop released objects", pool.release(new Object()));
+        Assert.assertEquals(2, pool.getSize());
+        Assert.assertEquals(3, pool.getReleaseCount());
+        Assert.assertEquals(1, pool.getDiscardCount());
+
+        // Shrinking drops extra objects
+        pool.setMaxSize(1);
+        Assert.assertEquals(1, pool.getSize());
+
+        // A size of zero keeps nothing
+        pool.setMaxSize(0);
+        Assert.assertEquals(0, pool.getSize());
+        Assert.assertFalse(pool.release(new Object()));
+        Assert.assertNull(pool.obtain());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullIsRejected() throws Exception {
+        new BoundedPool<Object>(2).release(null);
+    }
+}
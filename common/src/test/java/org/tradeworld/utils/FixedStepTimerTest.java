@@ -0,0 +1,146 @@
+package org.tradeworld.utils;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests step timing, catch-up and statistics of FixedStepTimer, using a clock that only moves when told to.
+ */
+public class FixedStepTimerTest {
+
+    private static final long MS = 1000000L;
+    private static final double EPSILON = 0.000001;
+
+    private TestClock clock;
+    private FixedStepTimer timer;
+
+    @Before
+    public void setUp() throws Exception {
+        clock = new TestClock();
+        timer = new FixedStepTimer(10, 3, clock);
+    }
+
+    @Test
+    public void testStepsAreScheduledAtFixedTimes() throws Exception {
+        Assert.assertEquals("First step is due at once", 1, timer.awaitSteps());
+        Assert.assertEquals(0, clock.time);
+        runStep(2);
+
+        // Waits for the rest of the step, processing time does not delay the next step
+        Assert.assertEquals(1, timer.awaitSteps());
+        Assert.assertEquals(10 * MS, clock.time);
+        runStep(7);
+        Assert.assertEquals(1, timer.awaitSteps());
+        Assert.assertEquals(20 * MS, clock.time);
+
+        Assert.assertEquals(2, timer.getStepCount());
+        Assert.assertEquals(0, timer.getCatchUpStepCount());
+        Assert.assertEquals(0, timer.getDroppedStepCount());
+    }
+
+    @Test
+    public void testCatchUpIsBounded() throws Exception {
+        timer.awaitSteps();
+        runStep(45);
+
+        // Three missed steps are run back to back with the due one
+        Assert.assertEquals(4, timer.awaitSteps());
+        Assert.assertEquals("Should not wait when behind", 45 * MS, clock.time);
+        Assert.assertEquals(3, timer.getCatchUpStepCount());
+        Assert.assertEquals(0, timer.getDroppedStepCount());
+        for (int i = 0; i < 4; i++) {
+            runStep(0);
+        }
+
+        // Caught up, back on the original schedule
+        Assert.assertEquals(1, timer.awaitSteps());
+        Assert.assertEquals(50 * MS, clock.time);
+    }
+
+    @Test
+    public void testStepsBeyondTheCatchUpLimitAreDropped() throws Exception {
+        timer.awaitSteps();
+        runStep(100);
+
+        // Nine steps were missed, three are caught up and six dropped
+        Assert.assertEquals(4, timer.awaitSteps());
+        Assert.assertEquals(3, timer.getCatchUpStepCount());
+        Assert.assertEquals(6, timer.getDroppedStepCount());
+        for (int i = 0; i < 4; i++) {
+            runStep(0);
+        }
+
+        // The dropped steps are not run later
+        Assert.assertEquals(1, timer.awaitSteps());
+        Assert.assertEquals(110 * MS, clock.time);
+        Assert.assertEquals(5, timer.getStepCount());
+
+        // Without catch-up all missed steps are dropped
+        timer.setMaxCatchUpSteps(0);
+        runStep(35);
+        Assert.assertEquals(1, timer.awaitSteps());
+        Assert.assertEquals(6 + 2, timer.getDroppedStepCount());
+        Assert.assertEquals(3, timer.getCatchUpStepCount());
+    }
+
+    @Test
+    public void testInterpolationAlpha() throws Exception {
+        timer.awaitSteps();
+        timer.stepStarted();
+        Assert.assertEquals(0.0, timer.getInterpolationAlpha(), EPSILON);
+
+        clock.time += 2 * MS + MS / 2;
+        Assert.assertEquals(0.25, timer.getInterpolationAlpha(), EPSILON);
+
+        clock.time += 5 * MS;
+        Assert.assertEquals(0.75, timer.getInterpolationAlpha(), EPSILON);
+
+        // Stays in range when the next step is late
+        clock.time += 30 * MS;
+        Assert.assertEquals(1.0, timer.getInterpolationAlpha(), EPSILON);
+    }
+
+    @Test
+    public void testOverrunStatistics() throws Exception {
+        timer.awaitSteps();
+        runStep(5);
+        timer.awaitSteps();
+        runStep(15);
+        timer.awaitSteps();
+        runStep(13);
+
+        Assert.assertEquals(3, timer.getStepCount());
+        Assert.assertEquals("Steps taking longer than the step length are overruns", 2, timer.getOverrunCount());
+        Assert.assertEquals(0.015, timer.getMaxProcessingSeconds(), EPSILON);
+        Assert.assertEquals(0.011, timer.getAverageProcessingSeconds(), EPSILON);
+
+        timer.reset();
+        Assert.assertEquals(0, timer.getStepCount());
+        Assert.assertEquals(0, timer.getOverrunCount());
+        Assert.assertEquals(0.0, timer.getAverageProcessingSeconds(), EPSILON);
+    }
+
+    private void runStep(long processingMilliseconds) {
+        timer.stepStarted();
+        clock.time += processingMilliseconds * MS;
+        timer.stepEnded();
+    }
+
+    /**
+     * Clock that only advances when the test moves it, or when the timer sleeps.
+     */
+    private static final class TestClock extends FixedStepTimer.Clock {
+        private long time = 0;
+
+        @Override
+        long nanoTime() {
+            return time;
+        }
+
+        @Override
+        void sleep(long nanoseconds) {
+            time += nanoseconds;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.tradeworld.utils;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tests that WorkerPool runs every task of a batch once, propagates errors, and handles batches started from inside batches.
+ */
+public class WorkerPoolTest {
+
+    private WorkerPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new WorkerPool(3, "TestWorker");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testEachTaskIsRunOnce() throws Exception {
+        final AtomicIntegerArray runCounts = new AtomicIntegerArray(100);
+        pool.run(runCounts.length(), new WorkerPool.IndexedTask() {
+            @Override
+            public void run(int index) {
+                runCounts.incrementAndGet(index);
+            }
+        });
+
+        for (int i = 0; i < runCounts.length(); i++) {
+            Assert.assertEquals("Task " + i + " should be run once", 1, runCounts.get(i));
+        }
+    }
+
+    @Test
+    public void testErrorOfLowestTaskIsThrownAfterAllTasksRun() throws Exception {
+        final AtomicIntegerArray runCounts = new AtomicIntegerArray(50);
+        final RuntimeException firstError = new IllegalStateException("First");
+        try {
+            pool.run(runCounts.length(), new WorkerPool.IndexedTask() {
+                @Override
+                public void run(int index) {
+                    runCounts.incrementAndGet(index);
+                    if (index == 7) throw firstError;
+                    if (index == 3 * 7) throw new IllegalArgumentException("Second");
+                    if (index == 4 * 7) throw new AssertionError("Third");
+                }
+            });
+            Assert.fail("The error of a task should be thrown");
+        } catch (IllegalStateException e) {
+            Assert.assertSame("The error of the lowest failing task should be thrown as is", firstError, e);
+        }
+
+        for (int i = 0; i < runCounts.length(); i++) {
+            Assert.assertEquals("Task " + i + " should be run even if others fail", 1, runCounts.get(i));
+        }
+    }
+
+    @Test
+    public void testErrorsAreThrownAsIs() throws Exception {
+        try {
+            pool.run(2, new WorkerPool.IndexedTask() {
+                @Override
+                public void run(int index) {
+                    if (index == 1) throw new AssertionError("Failed");
+                }
+            });
+            Assert.fail("The error of a task should be thrown");
+        } catch (AssertionError e) {
+            Assert.assertEquals("Failed", e.getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testNestedBatchesComplete() throws Exception {
+        // More outer tasks than threads, so all workers are busy when the inner batches start
+        final int outerCount = pool.getThreadCount() * 2;
+        final int innerCount = 20;
+        final AtomicIntegerArray runCounts = new AtomicIntegerArray(outerCount * innerCount);
+        pool.run(outerCount, new WorkerPool.IndexedTask() {
+            @Override
+            public void run(final int outerIndex) {
+                pool.run(innerCount, new WorkerPool.IndexedTask() {
+                    @Override
+                    public void run(int innerIndex) {
+                        runCounts.incrementAndGet(outerIndex * innerCount + innerIndex);
+                    }
+                });
+            }
+        });
+
+        for (int i = 0; i < runCounts.length(); i++) {
+            Assert.assertEquals("Inner task " + i + " should be run once", 1, runCounts.get(i));
+        }
+    }
+
+    @Test
+    public void testShutDownPoolRunsInCallingThread() throws Exception {
+        pool.shutdown();
+
+        final Thread caller = Thread.currentThread();
+        final AtomicIntegerArray runCounts = new AtomicIntegerArray(10);
+        pool.run(runCounts.length(), new WorkerPool.IndexedTask() {
+            @Override
+            public void run(int index) {
+                if (Thread.currentThread() == caller) runCounts.incrementAndGet(index);
+            }
+        });
+
+        for (int i = 0; i < runCounts.length(); i++) {
+            Assert.assertEquals(1, runCounts.get(i));
+        }
+    }
+}
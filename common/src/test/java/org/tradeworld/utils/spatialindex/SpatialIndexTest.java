@@ -6,10 +6,15 @@ import org.junit.Test;
 import org.tradeworld.utils.Stopwatch;
 import org.tradeworld.utils.bbox.ImmutableBoundingBox;
 import org.tradeworld.utils.rstar.BruteForceSpatialIndex;
+import org.tradeworld.utils.rstar.GridSpatialIndex;
 import org.tradeworld.utils.rstar.RStarSpatialIndex;
 import org.tradeworld.utils.rstar.SpatialIndex;
+import org.tradeworld.utils.rstar.SpatialVisitor;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Runs some tests with rstar and brute force spatial indexes.
@@ -24,6 +29,9 @@ public class SpatialIndexTest {
         spatialIndexes = new ArrayList<SpatialIndex<TestNode>>();
         spatialIndexes.add(new BruteForceSpatialIndex<TestNode>());
         spatialIndexes.add(new RStarSpatialIndex<TestNode>());
+        spatialIndexes.add(new RStarSpatialIndex<TestNode>(8));
+        spatialIndexes.add(new RStarSpatialIndex<TestNode>(RStarSpatialIndex.DEFAULT_MAX_NODE_SIZE, true));
+        spatialIndexes.add(new GridSpatialIndex<TestNode>(GridSpatialIndex.DEFAULT_CELL_SIZE));
         random = new Random(923453);
     }
 
@@ -31,11 +39,12 @@ public class SpatialIndexTest {
     public void testAddAndRetrieve() throws Exception {
         Stopwatch stopwatch = new Stopwatch();
 
-        // Add
+        // Add the same objects to all indexes
+        List<TestNode> testNodes = createTestNodes(100000);
         for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
             stopwatch.start(1000);
-            for (int i = 0; i < 100000; i++) {
-                spatialIndex.add(new TestNode("TestObject_" + i, createRandomBoundingBox()));
+            for (TestNode testNode : testNodes) {
+                spatialIndex.add(testNode);
                 stopwatch.lap();
             }
             stopwatch.printResult("Adding an element to " + spatialIndex.getClass().getSimpleName());
@@ -64,11 +73,309 @@ public class SpatialIndexTest {
             stopwatch.printResult("Retrieving intersecting elements from " + spatialIndex.getClass().getSimpleName());
         }
 
+        Assert.assertEquals("Some results missmatch.", 0, countMissmatches(1000));
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        // Bulk load into empty indexes
+        List<TestNode> testNodes = createTestNodes(100000);
+        for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
+            spatialIndex.addAll(testNodes);
+        }
+        Assert.assertEquals("Some results missmatch after bulk load.", 0, countMissmatches(1000));
+
+        // Merge a batch into the non-empty indexes
+        List<TestNode> moreTestNodes = createTestNodes(20000);
+        for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
+            spatialIndex.addAll(moreTestNodes);
+        }
+        Assert.assertEquals("Some results missmatch after merging a batch.", 0, countMissmatches(1000));
+
+        // Bulk loaded objects can be found and removed
+        for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
+            Assert.assertTrue(spatialIndex.contains(testNodes.get(123)));
+            Assert.assertTrue(spatialIndex.contains(moreTestNodes.get(123)));
+            Assert.assertEquals(1000, spatialIndex.removeAll(testNodes.subList(0, 1000)));
+            Assert.assertFalse(spatialIndex.contains(testNodes.get(123)));
+        }
+        Assert.assertEquals("Some results missmatch after removal.", 0, countMissmatches(1000));
+    }
+
+    @Test
+    public void testMove() throws Exception {
+        List<TestNode> testNodes = createTestNodes(100000);
+        for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
+            spatialIndex.addAll(testNodes);
+        }
+
+        // Move some objects a bit, and some far away.  All indexes listen to the same objects.
+        for (int i = 0; i < 20000; i++) {
+            TestNode testNode = testNodes.get(random.nextInt(testNodes.size()));
+            if (i % 10 == 0) {
+                testNode.getBounds().set(createRandomBoundingBox());
+            }
+            else {
+                double dx = random.nextGaussian();
+                double dy = random.nextGaussian();
+                testNode.getBounds().set(testNode.getBounds().getMinX() + dx, testNode.getBounds().getMinY() + dy,
+                                         testNode.getBounds().getMaxX() + dx, testNode.getBounds().getMaxY() + dy);
+            }
+        }
+
+        Assert.assertEquals("Some results missmatch after moving.", 0, countMissmatches(1000));
+        for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
+            Assert.assertTrue(spatialIndex.remove(testNodes.get(42)));
+            Assert.assertFalse(spatialIndex.contains(testNodes.get(42)));
+        }
+    }
+
+    @Test
+    public void testDeferredUpdates() throws Exception {
+        List<TestNode> testNodes = createTestNodes(20000);
+        for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
+            spatialIndex.addAll(testNodes);
+            spatialIndex.setDeferredUpdates(true);
+        }
+
+        // Move a few objects many times, and a lot of objects once, so that both ways of updating are used
+        for (int movedCount : new int[]{100, 5000}) {
+            Set<TestNode> movedNodes = new HashSet<TestNode>();
+            for (int i = 0; i < movedCount; i++) {
+                TestNode testNode = testNodes.get(random.nextInt(testNodes.size()));
+                for (int j = 0; j < 5; j++) {
+                    testNode.getBounds().set(createRandomBoundingBox());
+                }
+                movedNodes.add(testNode);
+            }
+
+            // A removed object is not added back by the flush
+            TestNode removedNode = movedNodes.iterator().next();
+            for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
+                Assert.assertTrue(spatialIndex.remove(removedNode));
+                Assert.assertEquals("Each moved object should be updated once", movedNodes.size() - 1, spatialIndex.flushUpdates());
+                Assert.assertEquals(0, spatialIndex.flushUpdates());
+                Assert.assertFalse(spatialIndex.contains(removedNode));
+                spatialIndex.add(removedNode);
+            }
+
+            Assert.assertEquals("Some results missmatch after flushing updates.", 0, countMissmatches(1000));
+        }
+
+        // Turning off deferred updates flushes the pending ones
+        TestNode testNode = testNodes.get(0);
+        testNode.getBounds().set(5000, 5000, 5001, 5001);
+        for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
+            spatialIndex.setDeferredUpdates(false);
+            Assert.assertFalse(spatialIndex.isDeferredUpdates());
+            List<TestNode> result = new ArrayList<TestNode>();
+            spatialIndex.getIntersecting(testNode.getBounds(), result);
+            Assert.assertTrue(result.contains(testNode));
+        }
+    }
+
+    @Test
+    public void testSearchesUseIndexedBoundsUntilFlushed() throws Exception {
+        List<TestNode> testNodes = createTestNodes(2000);
+        TestNode movedNode = new TestNode("MovedObject", new ImmutableBoundingBox(100000, 100000, 100001, 100001));
+        testNodes.add(movedNode);
+        for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
+            spatialIndex.addAll(testNodes);
+            spatialIndex.setDeferredUpdates(true);
+        }
+        movedNode.getBounds().set(-100000, -100000, -99999, -99999);
+
+        // Every index finds the object where it was before the move, and only there, until the update is flushed
+        for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
+            assertFoundAt(spatialIndex, movedNode, 100000, true);
+            assertFoundAt(spatialIndex, movedNode, -100000, false);
+
+            Assert.assertEquals(1, spatialIndex.flushUpdates());
+            assertFoundAt(spatialIndex, movedNode, 100000, false);
+            assertFoundAt(spatialIndex, movedNode, -100000, true);
+        }
+    }
+
+    private void assertFoundAt(SpatialIndex<TestNode> spatialIndex, TestNode testNode, double position, boolean expected) {
+        ImmutableBoundingBox area = new ImmutableBoundingBox(position - 1, position - 1, position + 2, position + 2);
+        List<TestNode> result = new ArrayList<TestNode>();
+        spatialIndex.getIntersecting(area, result);
+        Assert.assertEquals(expected, result.contains(testNode));
+
+        result.clear();
+        spatialIndex.getContained(area, result);
+        Assert.assertEquals(expected, result.contains(testNode));
+
+        result.clear();
+        spatialIndex.getWithinRadius(position, position, 1, result);
+        Assert.assertEquals(expected, result.contains(testNode));
+
+        result.clear();
+        spatialIndex.getNearest(position, position, 1, Double.POSITIVE_INFINITY, result);
+        Assert.assertEquals(expected, result.contains(testNode));
+    }
+
+    @Test
+    public void testVisitors() throws Exception {
+        List<TestNode> testNodes = createTestNodes(20000);
+        for (final SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
+            spatialIndex.addAll(testNodes);
+
+            for (int i = 0; i < 100; i++) {
+                final ImmutableBoundingBox bounds = createRandomBoundingBox(100, 1000);
+                List<TestNode> intersecting = new ArrayList<TestNode>();
+                List<TestNode> contained = new ArrayList<TestNode>();
+                spatialIndex.getIntersecting(bounds, intersecting);
+                spatialIndex.getContained(bounds, contained);
+
+                // Count only
+                final int[] count = {0};
+                final SpatialVisitor<TestNode> counter = new SpatialVisitor<TestNode>() {
+                    @Override
+                    public boolean visit(TestNode object) {
+                        count[0]++;
+                        return true;
+                    }
+                };
+                Assert.assertEquals(intersecting.size(), spatialIndex.visitIntersecting(bounds, counter));
+                Assert.assertEquals(contained.size(), spatialIndex.visitContained(bounds, counter));
+                Assert.assertEquals(intersecting.size() + contained.size(), count[0]);
+
+                // Stop after a few
+                final List<TestNode> firstFew = new ArrayList<TestNode>();
+                spatialIndex.visitIntersecting(bounds, new SpatialVisitor<TestNode>() {
+                    @Override
+                    public boolean visit(TestNode object) {
+                        firstFew.add(object);
+                        return firstFew.size() < 3;
+                    }
+                });
+                Assert.assertEquals(Math.min(3, intersecting.size()), firstFew.size());
+                Assert.assertTrue(intersecting.containsAll(firstFew));
+
+                // Search from inside a search
+                final int[] nestedCount = {0};
+                spatialIndex.visitContained(bounds, new SpatialVisitor<TestNode>() {
+                    @Override
+                    public boolean visit(TestNode object) {
+                        nestedCount[0] += spatialIndex.visitIntersecting(object.getBounds(), counter) > 0 ? 1 : 0;
+                        return true;
+                    }
+                });
+                Assert.assertEquals("Each contained object should at least find itself", contained.size(), nestedCount[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testNearestAndRadius() throws Exception {
+        List<TestNode> testNodes = createTestNodes(20000);
+        for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
+            spatialIndex.addAll(testNodes);
+        }
+
+        Set<TestNode> referenceResult = new HashSet<TestNode>();
+        Set<TestNode> currentResult = new HashSet<TestNode>();
+        List<TestNode> referenceNearest = new ArrayList<TestNode>();
+        List<TestNode> currentNearest = new ArrayList<TestNode>();
+        SpatialIndex<TestNode> reference = spatialIndexes.get(0);
+        for (int i = 0; i < 200; i++) {
+            double x = random.nextGaussian() * 1000;
+            double y = random.nextGaussian() * 1000;
+            double radius = random.nextDouble() * 50;
+            int count = 1 + random.nextInt(20);
+            double maxDistance = i % 2 == 0 ? Double.POSITIVE_INFINITY : radius;
+
+            referenceResult.clear();
+            reference.getWithinRadius(x, y, radius, referenceResult);
+            referenceNearest.clear();
+            reference.getNearest(x, y, count, maxDistance, referenceNearest);
+
+            for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
+                currentResult.clear();
+                Assert.assertEquals(referenceResult.size(), spatialIndex.getWithinRadius(x, y, radius, currentResult));
+                Assert.assertNull("Objects within radius should be the same", setsEqual(referenceResult, currentResult));
+
+                // Compare distances, as objects at the same distance can be returned in any order
+                currentNearest.clear();
+                Assert.assertEquals(referenceNearest.size(), spatialIndex.getNearest(x, y, count, maxDistance, currentNearest));
+                for (int j = 0; j < referenceNearest.size(); j++) {
+                    Assert.assertEquals("Nearest objects should be at the same distances",
+                                        squaredDistance(referenceNearest.get(j), x, y),
+                                        squaredDistance(currentNearest.get(j), x, y),
+                                        0.0);
+                }
+            }
+        }
+    }
+
+    private double squaredDistance(TestNode testNode, double x, double y) {
+        double dx = Math.max(0, Math.max(testNode.getBounds().getMinX() - x, x - testNode.getBounds().getMaxX()));
+        double dy = Math.max(0, Math.max(testNode.getBounds().getMinY() - y, y - testNode.getBounds().getMaxY()));
+        return dx * dx + dy * dy;
+    }
+
+    @Test
+    public void testConcurrentSearches() throws Exception {
+        final SpatialIndex<TestNode> spatialIndex = new RStarSpatialIndex<TestNode>(RStarSpatialIndex.DEFAULT_MAX_NODE_SIZE, true);
+        final List<TestNode> staticNodes = createTestNodes(10000);
+        final List<TestNode> movingNodes = createTestNodes(10000);
+        spatialIndex.addAll(staticNodes);
+        spatialIndex.addAll(movingNodes);
+
+        // Search for objects that do not move, while other objects are moved
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger searchCount = new AtomicInteger(0);
+        final AtomicInteger missingCount = new AtomicInteger(0);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < 2; i++) {
+            final Random readerRandom = new Random(i);
+            final Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final List<TestNode> result = new ArrayList<TestNode>();
+                        while (running.get()) {
+                            final TestNode testNode = staticNodes.get(readerRandom.nextInt(staticNodes.size()));
+                            result.clear();
+                            spatialIndex.getIntersecting(testNode.getBounds(), result);
+                            if (!result.contains(testNode)) missingCount.incrementAndGet();
+                            searchCount.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        for (int i = 0; i < 50000; i++) {
+            TestNode testNode = movingNodes.get(random.nextInt(movingNodes.size()));
+            testNode.getBounds().set(createRandomBoundingBox());
+        }
+
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        Assert.assertNull("Searches should not fail while the index changes", failure.get());
+        Assert.assertTrue("Some searches should have been done", searchCount.get() > 0);
+        Assert.assertEquals("Objects that did not move should always be found", 0, missingCount.get());
+    }
+
+    /**
+     * @return number of random searches that gave different results in some of the indexes.
+     */
+    private int countMissmatches(int searchCount) {
         // Verify results same for contains search
         Set<TestNode> referenceResult = new HashSet<TestNode>();
         Set<TestNode> currentResult = new HashSet<TestNode>();
         int missmatchesFound = 0;
-        for (int i = 0; i < 1000; i++) {
+        for (int i = 0; i < searchCount; i++) {
             ImmutableBoundingBox bounds = createRandomBoundingBox();
             boolean first = true;
             for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
@@ -89,7 +396,7 @@ public class SpatialIndexTest {
         }
 
         // Verify results same for intersection search
-        for (int i = 0; i < 1000; i++) {
+        for (int i = 0; i < searchCount; i++) {
             ImmutableBoundingBox bounds = createRandomBoundingBox();
             boolean first = true;
             for (SpatialIndex<TestNode> spatialIndex : spatialIndexes) {
@@ -108,7 +415,15 @@ public class SpatialIndexTest {
 
             }
         }
-        Assert.assertEquals("Some results missmatch.", 0, missmatchesFound);
+        return missmatchesFound;
+    }
+
+    private List<TestNode> createTestNodes(int count) {
+        List<TestNode> testNodes = new ArrayList<TestNode>(count);
+        for (int i = 0; i < count; i++) {
+            testNodes.add(new TestNode("TestObject_" + i, createRandomBoundingBox()));
+        }
+        return testNodes;
     }
 
     private void assertSetsEqual(String message, Set<String> a, Set<String> b) {
@@ -16,21 +16,31 @@ public class Server extends DefaultWorld {
 
     public static final int PORT = 9775;
 
+    /**
+     * Max number of removed components of each pooled type kept for reuse.
+     */
+    public static final int COMPONENT_POOL_SIZE = 1024;
+
     private final PlayerEntityFactory playerEntityFactory = new PlayerEntityFactory() {
         @Override
         public Entity createPlayerEntity(World world, String accountName) {
-            return world.createEntity(new Named("Player"), new Controllable());
+            return world.createEntity(Named.obtain(world, "Player"), new Controllable());
         }
     };
 
     public static void main(String[] args) {
         Server server = new Server();
         server.setSimulationStepMilliseconds(100);
+        server.setParallelSystemProcessing(true);
         server.start();
     }
 
     @Override
     protected void registerSystems() {
+        // Crops are planted and harvested often, recycle their components
+        addComponentPool(Named.class, COMPONENT_POOL_SIZE);
+        addComponentPool(Crop.class, COMPONENT_POOL_SIZE);
+
         AccountSystem accountSystem = addSystem(new AccountSystem(playerEntityFactory));
         addSystem(new ServerNetworking(PORT, accountSystem));
         addSystem(new GrowSystem());
@@ -38,10 +48,14 @@ public class Server extends DefaultWorld {
 
     @Override
     protected void initWorld() {
-        createEntity(new Named("POTATO"), new Crop(40));
-        createEntity(new Named("PoTatO!"), new Crop(34));
-        createEntity(new Named("POTATOE!!"), new Crop(10));
-        createEntity(new Named("Pottatto"), new Crop(200));
+        createCrop("POTATO", 40);
+        createCrop("PoTatO!", 34);
+        createCrop("POTATOE!!", 10);
+        createCrop("Pottatto", 200);
+    }
+
+    private Entity createCrop(String name, float growTimeSeconds) {
+        return createEntity(Named.obtain(this, name), Crop.obtain(this, growTimeSeconds));
     }
 
 }
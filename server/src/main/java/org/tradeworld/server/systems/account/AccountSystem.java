@@ -19,6 +19,9 @@ public class AccountSystem extends BaseSystem {
 
     public AccountSystem(PlayerEntityFactory playerEntityFactory) {
         super(AccountSystem.class);
+
+        // Accounts are only modified from the networking threads, processing does not touch any components
+        declareReadComponents();
         this.playerEntityFactory = playerEntityFactory;
     }
 
@@ -35,7 +35,9 @@ public final class PlayerConnection extends Connection {
     }
 
     public Entity getPlayerEntity(World world) {
-        if (playerEntity == null) {
+        // A removed entity has id 0, so a cached entity that was removed is resolved again.
+        // Entity indexes are reused, but with a new generation, so a stale player entity id resolves to null.
+        if (playerEntity == null || playerEntity.getEntityId() != playerEntityId) {
             playerEntity = world.getEntity(playerEntityId);
         }
 
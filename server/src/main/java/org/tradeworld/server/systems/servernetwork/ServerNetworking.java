@@ -82,6 +82,7 @@ public class ServerNetworking extends BaseEntitySystem {
      */
     public ServerNetworking(int port, AccountSystem accountSystem) {
         super(null, UserControlled.class);
+        declareWrittenComponents(UserControlled.class);
         this.port = port;
         this.accountSystem = accountSystem;
     }